@@ -0,0 +1,76 @@
+#!/usr/bin/env bash
+#
+# Measures the server's time-to-first-request (from launching the JVM
+# to getting a successful response) with and without the startup
+# improvements:
+#
+#   baseline  - plain `java -cp lib/*` with the JDK's default CDS archive
+#   app CDS   - the installed start script, which maps lib/server.jsa
+#   app CDS + warm-up - as above, with STARTUP_WARMUP=true
+#
+# Usage: scripts/measure-startup.sh [runs]
+#
+# The URL that counts as "first request" defaults to the metrics route,
+# which doesn't need Mongo; set FIRST_REQUEST_URL to use another route.
+# A server that hasn't answered within STARTUP_TIMEOUT_SECONDS (default
+# 60) is stopped, and the script fails.
+
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+
+runs="${1:-5}"
+url="${FIRST_REQUEST_URL:-http://localhost:4567/api/admin/metrics}"
+app_home="build/install/server"
+report="build/cds/startup-report.txt"
+timeout_ms=$(( ${STARTUP_TIMEOUT_SECONDS:-60} * 1000 ))
+
+./gradlew -q cdsArchive
+
+# `date +%s%3N` is GNU only, so ask perl, which macOS has too.
+now_ms() {
+  perl -MTime::HiRes=time -e 'printf "%d\n", time * 1000'
+}
+
+# Launch the server with the given command, and print how long it took
+# for `url` to answer successfully.
+time_to_first_request() {
+  local start end pid
+  start=$(now_ms)
+  "$@" > /dev/null 2>&1 &
+  pid=$!
+  until curl -sf -o /dev/null "$url"; do
+    if ! kill -0 "$pid" 2> /dev/null; then
+      echo "The server exited before answering $url" >&2
+      return 1
+    fi
+    if (( $(now_ms) - start > timeout_ms )); then
+      echo "The server didn't answer $url within $timeout_ms ms" >&2
+      kill "$pid"
+      wait "$pid" 2> /dev/null || true
+      return 1
+    fi
+    sleep 0.01
+  done
+  end=$(now_ms)
+  kill "$pid"
+  wait "$pid" 2> /dev/null || true
+  echo $((end - start))
+}
+
+measure() {
+  local label=$1 total=0 ms
+  shift
+  for _ in $(seq "$runs"); do
+    ms=$(time_to_first_request "$@")
+    total=$((total + ms))
+  done
+  printf '%-20s %6d ms (mean of %d runs)\n' "$label" $((total / runs)) "$runs"
+}
+
+{
+  echo "Time to first request: $url"
+  measure "baseline" java -cp "$app_home/lib/*" umm3601.Server
+  measure "app CDS" "$app_home/bin/server"
+  measure "app CDS + warm-up" env STARTUP_WARMUP=true "$app_home/bin/server"
+} | tee "$report"
@@ -0,0 +1,135 @@
+package umm3601.columnar;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import umm3601.metrics.MetricsRegistry;
+import umm3601.todos.TodoController;
+
+/**
+ * Compares answering `getTodos` filters from a `ColumnStore` with the
+ * query `getTodos` sends Mongo for them, both sorted by owner (the
+ * default) and with every matching todo read into a list.
+ * <p>
+ * This needs Mongo running at `MONGO_ADDR` (default localhost). Setup
+ * fills a `columnStoreBenchmark` database, which is dropped at the end,
+ * and prints how many todos each filter matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColumnStoreBenchmark {
+
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Dawn", "Roberta", "Workman"};
+  private static final String[] CATEGORIES = {"software design", "video games", "homework", "groceries"};
+  // One todo in this many is done.
+  private static final int DONE_EVERY = 3;
+  private static final int INSERT_BATCH_SIZE = 10_000;
+
+  @Param({"10000", "100000"})
+  private int todoCount;
+
+  // The filters, as their query strings
+  @Param({"status=false", "status=false&owner=bla", "owner=fry&category=home", "category=games&body=number 7"})
+  private String filter;
+
+  private MongoClient mongoClient;
+  private MongoDatabase database;
+  private MongoCollection<RawBsonDocument> todos;
+  private ColumnStore store;
+
+  private Bson mongoFilter;
+  private ColumnQuery columnQuery;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mongoClient = MongoClients.create("mongodb://" + System.getenv().getOrDefault("MONGO_ADDR", "localhost"));
+    database = mongoClient.getDatabase("columnStoreBenchmark");
+    database.drop();
+    MongoCollection<Document> documents = database.getCollection("todos");
+    List<Document> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+    for (int i = 0; i < todoCount; i++) {
+      batch.add(new Document()
+        .append("owner", OWNERS[i % OWNERS.length])
+        .append("status", i % DONE_EVERY == 0)
+        .append("body", "Todo number " + i + " has a body long enough to look like the ones in the seed data.")
+        .append("category", CATEGORIES[i % CATEGORIES.length]));
+      if (batch.size() == INSERT_BATCH_SIZE) {
+        documents.insertMany(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      documents.insertMany(batch);
+    }
+    // The same indexes the server has.
+    new TodoController(database).ensureIndexes();
+    todos = database.getCollection("todos", RawBsonDocument.class);
+
+    store = new ColumnStore(documents, TodoController.COLUMN_FIELDS, TodoController.BITMAP_FIELDS,
+      new MetricsRegistry());
+    store.rebuild();
+
+    // The same filters `getTodos` builds for the query string.
+    List<Bson> filters = new ArrayList<>();
+    columnQuery = new ColumnQuery();
+    for (String param : filter.split("&")) {
+      String[] nameAndValue = param.split("=");
+      if (nameAndValue[0].equals("status")) {
+        filters.add(eq("status", Boolean.parseBoolean(nameAndValue[1])));
+        columnQuery.equalTo("status", Boolean.parseBoolean(nameAndValue[1]));
+      } else {
+        filters.add(regex(nameAndValue[0], Pattern.compile(Pattern.quote(nameAndValue[1]), Pattern.CASE_INSENSITIVE)));
+        columnQuery.contains(nameAndValue[0], nameAndValue[1]);
+      }
+    }
+    mongoFilter = and(filters);
+    System.out.printf("%n%s matches %d of %d todos%n", filter, columns().size(), todoCount);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    database.drop();
+    mongoClient.close();
+  }
+
+  @Benchmark
+  public List<Map<String, Object>> columns() {
+    return store.find(columnQuery, "owner", true);
+  }
+
+  @Benchmark
+  public List<RawBsonDocument> mongo() {
+    return todos.find(mongoFilter)
+      .projection(TodoController.TODO_FIELDS)
+      .sort(Sorts.ascending("owner"))
+      .into(new ArrayList<>());
+  }
+}
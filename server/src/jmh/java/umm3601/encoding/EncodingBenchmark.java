@@ -0,0 +1,68 @@
+package umm3601.encoding;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import umm3601.todos.Todo;
+
+/**
+ * Compares how long it takes to encode and decode a list of todos in
+ * each `Encoding`. The encoded size of the list in each encoding is
+ * printed during setup, since JMH itself only reports times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodingBenchmark {
+
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Dawn", "Roberta", "Workman"};
+  private static final String[] CATEGORIES = {"software design", "video games", "homework", "groceries"};
+
+  @Param({"JSON", "SMILE", "CBOR", "MSGPACK"})
+  private Encoding encoding;
+
+  @Param({"300", "10000"})
+  private int todoCount;
+
+  private List<Todo> todos;
+  private byte[] encoded;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    todos = new ArrayList<>(todoCount);
+    for (int i = 0; i < todoCount; i++) {
+      Todo todo = new Todo();
+      todo._id = new ObjectId().toHexString();
+      todo.owner = OWNERS[i % OWNERS.length];
+      todo.status = i % 2 == 0;
+      todo.body = "Todo number " + i + " has a body long enough to look like the ones in the seed data.";
+      todo.category = CATEGORIES[i % CATEGORIES.length];
+      todos.add(todo);
+    }
+    encoded = encoding.getMapper().writeValueAsBytes(todos);
+    System.out.printf("%n%s: %d todos encode to %d bytes%n", encoding, todoCount, encoded.length);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return encoding.getMapper().writeValueAsBytes(todos);
+  }
+
+  @Benchmark
+  public Todo[] decode() throws IOException {
+    return encoding.getMapper().readValue(encoded, Todo[].class);
+  }
+}
@@ -1,46 +1,330 @@
 package umm3601;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 
+import org.bson.Document;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import io.javalin.Javalin;
 import io.javalin.core.util.RouteOverviewPlugin;
+import io.javalin.http.Handler;
 import io.javalin.http.InternalServerErrorResponse;
+import io.opentelemetry.api.OpenTelemetry;
+import umm3601.accesslog.AccessLog;
+import umm3601.cache.ResponseCache;
+import umm3601.columnar.ColumnStore;
+import umm3601.health.HealthController;
+import umm3601.health.MongoPinger;
+import umm3601.health.MongoPoolMonitor;
+import umm3601.jfr.JfrController;
+import umm3601.jfr.MongoEvents;
+import umm3601.jfr.RequestEvent;
+import umm3601.limiter.AdaptiveLimiter;
+import umm3601.limiter.MongoCommandCounter;
+import umm3601.metrics.MetricsController;
+import umm3601.metrics.MetricsRegistry;
+import umm3601.mongo.DeadlineExceededException;
+import umm3601.mongo.Deadlines;
+import umm3601.mongo.KnownIds;
+import umm3601.search.SubstringSearch;
+import umm3601.slowquery.SlowQueryController;
+import umm3601.slowquery.SlowQueryRecorder;
+import umm3601.snapshot.Snapshots;
+import umm3601.tracing.MongoTracing;
+import umm3601.tracing.RecentSpans;
+import umm3601.tracing.RouteTracing;
+import umm3601.tracing.TraceController;
+import umm3601.tracing.Tracing;
 import umm3601.user.UserController;
 import umm3601.todos.TodoController;
+import umm3601.todos.TodoCounts;
+import umm3601.todos.TodoSync;
 
 public class Server {
 
   private static final int PORT_NUMBER = 4567;
 
-  public static void main(String[] args) {
+  // Mongo won't accept a max staleness below 90 seconds.
+  private static final String DEFAULT_MAX_STALENESS_SECONDS = "90";
+
+  // Request deadlines, in milliseconds, for requests that don't ask for
+  // one, and the most that a request is allowed to ask for.
+  private static final String DEFAULT_REQUEST_TIMEOUT_MS = "10000";
+  private static final String MAX_REQUEST_TIMEOUT_MS = "60000";
+
+  // Readiness thresholds (see `HealthController`): the fraction of the
+  // Mongo connection pool, Jetty's threads and the limiter's slots in
+  // use, and the number of requests waiting for a Jetty thread, at which
+  // the server stops saying it's ready for more requests.
+  private static final String DEFAULT_READY_MAX_MONGO_POOL_USAGE = "0.9";
+  private static final String DEFAULT_READY_MAX_THREAD_USAGE = "0.9";
+  private static final String DEFAULT_READY_MAX_LIMITER_USAGE = "1.0";
+  private static final String DEFAULT_READY_MAX_QUEUED = "100";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Server.class);
+
+  public static void main(String[] args) throws IOException {
+
+    // `--warmup` runs just the startup warm-up and exits; this is the
+    // training run used to build the class-data sharing archive.
+    if (Arrays.asList(args).contains("--warmup")) {
+      StartupWarmup.run();
+      return;
+    }
+    // Otherwise `STARTUP_WARMUP` lets us finish class loading before we
+    // start taking requests, so the first few requests aren't slow.
+    if (Boolean.parseBoolean(System.getenv().getOrDefault("STARTUP_WARMUP", "false"))) {
+      StartupWarmup.run();
+    }
+
+    // Tracing has to be set up before anything asks for a tracer; see
+    // `Tracing` for what `TRACE_EXPORT` can be.
+    RecentSpans recentSpans = new RecentSpans(RecentSpans.DEFAULT_CAPACITY);
+    OpenTelemetry openTelemetry = Tracing.install(System.getenv().getOrDefault("TRACE_EXPORT", "none"),
+      Path.of(System.getenv().getOrDefault("TRACE_FILE", "traces.ndjson")), recentSpans);
+    RouteTracing routeTracing = new RouteTracing(openTelemetry);
 
     // Get the MongoDB address and database name from environment variables and
     // if they aren't set, use the defaults of "localhost" and "dev".
     String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
     String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
 
+    // `MONGO_ADDR` can be a comma separated list of hosts, in which case
+    // `MONGO_REPLICA_SET` should name the replica set they belong to.
+    List<ServerAddress> mongoHosts = Arrays.stream(mongoAddr.split(","))
+      .map(String::trim)
+      .map(ServerAddress::new)
+      .collect(Collectors.toList());
+    String replicaSet = System.getenv("MONGO_REPLICA_SET");
+
+    // Every Mongo operation that takes at least `SLOW_QUERY_MS` gets
+    // recorded, and some of them explained (see `SlowQueryRecorder`).
+    SlowQueryRecorder slowQueries = new SlowQueryRecorder(
+      Long.parseLong(System.getenv().getOrDefault("SLOW_QUERY_MS",
+        String.valueOf(SlowQueryRecorder.DEFAULT_THRESHOLD_MS))),
+      Integer.parseInt(System.getenv().getOrDefault("SLOW_QUERY_EXPLAIN_EVERY",
+        String.valueOf(SlowQueryRecorder.DEFAULT_EXPLAIN_EVERY))));
+
+    // Keeps track of how many of the driver's pooled connections are in use,
+    // for the readiness check.
+    MongoPoolMonitor mongoPool = new MongoPoolMonitor();
+
     // Setup the MongoDB client object with the information we set earlier
     MongoClient mongoClient
       = MongoClients.create(MongoClientSettings
         .builder()
-        .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+        .applyToClusterSettings(builder -> {
+          builder.hosts(mongoHosts);
+          if (replicaSet != null) {
+            builder.requiredReplicaSetName(replicaSet);
+          }
+        })
+        .addCommandListener(slowQueries)
+        .addCommandListener(new MongoTracing(openTelemetry))
+        .addCommandListener(new MongoEvents())
+        // So the limiter can tell which requests reached Mongo
+        .addCommandListener(new MongoCommandCounter())
+        .applyToConnectionPoolSettings(builder -> builder.addConnectionPoolListener(mongoPool))
         .build());
+    slowQueries.explainWith(mongoClient);
 
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // Readiness depends on Mongo answering pings, which happen in the
+    // background every `READY_PING_INTERVAL_MS`.
+    MongoPinger mongoPinger = new MongoPinger(() -> database.runCommand(new Document("ping", 1)),
+      Long.parseLong(System.getenv().getOrDefault("READY_PING_INTERVAL_MS",
+        String.valueOf(MongoPinger.DEFAULT_INTERVAL_MS))));
+    mongoPinger.start();
+
     // Initialize dependencies
-    UserController userController = new UserController(database);
-    TodoController todoController = new TodoController(database);
+    // Sorting on a field outside the controllers' sortable field registries
+    // is only allowed if `ALLOW_ADHOC_SORTS` is set, and even then each
+    // request has to opt in with `allowdiskuse=true`.
+    boolean allowAdHocSorts = Boolean.parseBoolean(System.getenv().getOrDefault("ALLOW_ADHOC_SORTS", "false"));
+    // Everything that writes todos shares one `TodoCounts`, and one
+    // `TodoSync`, which keeps track of the writes in flight for delta syncs.
+    TodoCounts todoCounts = new TodoCounts(database);
+    TodoSync todoSync = new TodoSync(database);
+    ReadPreference userListReadPreference = listReadPreference("USERS");
+    ReadPreference todoListReadPreference = listReadPreference("TODOS");
+    UserController userController = new UserController(database, userListReadPreference, allowAdHocSorts,
+      todoCounts, todoSync);
+    TodoController todoController = new TodoController(database, todoListReadPreference, allowAdHocSorts,
+      todoCounts, todoSync);
+
+    MetricsRegistry metrics = new MetricsRegistry();
+
+    // With `ID_FILTER=true`, lookups of a todo or user by ID first check
+    // a Bloom filter of the IDs that exist (see `KnownIds`), so IDs that
+    // certainly don't exist get a 404 without a trip to Mongo. Only turn
+    // this on if this server is the only thing inserting todos and users.
+    if (Boolean.parseBoolean(System.getenv().getOrDefault("ID_FILTER", "false"))) {
+      double falsePositiveRate = Double.parseDouble(System.getenv().getOrDefault("ID_FILTER_FALSE_POSITIVE_RATE",
+        String.valueOf(KnownIds.DEFAULT_FALSE_POSITIVE_RATE)));
+      long rebuildSeconds = Long.parseLong(System.getenv().getOrDefault("ID_FILTER_REBUILD_SECONDS",
+        String.valueOf(KnownIds.DEFAULT_REBUILD_SECONDS)));
+      KnownIds todoIds = new KnownIds(database.getCollection("todos"), falsePositiveRate, metrics);
+      KnownIds userIds = new KnownIds(database.getCollection("users"), falsePositiveRate, metrics);
+      todoController.rejectUnknownIds(todoIds);
+      userController.rejectUnknownIds(userIds);
+      todoIds.start(rebuildSeconds);
+      userIds.start(rebuildSeconds);
+    }
+
+    // With `SUBSTRING_INDEX=true`, the todos' owner, body and category
+    // filters are narrowed with an in-memory trigram index (see
+    // `SubstringSearch`). Like `ID_FILTER`, only turn this on if this
+    // server is the only thing changing todos.
+    if (Boolean.parseBoolean(System.getenv().getOrDefault("SUBSTRING_INDEX", "false"))) {
+      SubstringSearch todoSearch = new SubstringSearch(database.getCollection("todos"),
+        TodoController.SEARCHABLE_FIELDS,
+        Integer.parseInt(System.getenv().getOrDefault("SUBSTRING_INDEX_MAX_CANDIDATES",
+          String.valueOf(SubstringSearch.DEFAULT_MAX_CANDIDATES))),
+        metrics);
+      todoController.searchSubstringsWith(todoSearch);
+      todoSearch.start(Long.parseLong(System.getenv().getOrDefault("SUBSTRING_INDEX_REBUILD_SECONDS",
+        String.valueOf(SubstringSearch.DEFAULT_REBUILD_SECONDS))));
+    }
+
+    // With `COLUMN_STORE=true`, the todos and users are kept in memory a
+    // column at a time (see `ColumnStore`), and `getTodos` and `getUsers`
+    // filter and sort them there, with bitmaps, instead of asking Mongo.
+    // Like `ID_FILTER`, only turn this on if this server is the only
+    // thing changing todos and users.
+    if (Boolean.parseBoolean(System.getenv().getOrDefault("COLUMN_STORE", "false"))) {
+      long rebuildSeconds = Long.parseLong(System.getenv().getOrDefault("COLUMN_STORE_REBUILD_SECONDS",
+        String.valueOf(ColumnStore.DEFAULT_REBUILD_SECONDS)));
+      ColumnStore todoColumns = new ColumnStore(database.getCollection("todos"),
+        TodoController.COLUMN_FIELDS, TodoController.BITMAP_FIELDS, metrics);
+      ColumnStore userColumns = new ColumnStore(database.getCollection("users"),
+        UserController.COLUMN_FIELDS, UserController.BITMAP_FIELDS, metrics);
+      todoController.filterInMemoryWith(todoColumns);
+      userController.filterInMemoryWith(userColumns, todoColumns);
+      todoColumns.start(rebuildSeconds);
+      userColumns.start(rebuildSeconds);
+    }
+
+    // With `SNAPSHOT_FILE` set, the todos and users are snapshotted to that
+    // file every `SNAPSHOT_SECONDS`, and lookups by ID are answered from
+    // the last snapshot (see `Snapshots`) once it's been brought up to
+    // date: the todos before we start, and the users in the background.
+    // Like `ID_FILTER`, only use this if this server is the only thing
+    // changing users.
+    String snapshotFile = System.getenv("SNAPSHOT_FILE");
+    if (snapshotFile != null && !snapshotFile.isEmpty()) {
+      Snapshots snapshots = new Snapshots(Path.of(snapshotFile), database, metrics)
+        .collection("todos", TodoController.TODO_FIELDS, todoSync)
+        .collection("users", UserController.USER_FIELDS, null);
+      snapshots.load();
+      todoController.readFromSnapshot(snapshots);
+      userController.readFromSnapshot(snapshots);
+      snapshots.start(Long.parseLong(System.getenv().getOrDefault("SNAPSHOT_SECONDS",
+        String.valueOf(Snapshots.DEFAULT_SNAPSHOT_SECONDS))));
+    }
+    MetricsController metricsController = new MetricsController(metrics);
+    SlowQueryController slowQueryController = new SlowQueryController(slowQueries);
+
+    // Every request gets a line of JSON in the access log, which goes to
+    // standard out unless `ACCESS_LOG` names a file (or is "off").
+    // `ACCESS_LOG_CAPACITY` (a power of two) bounds how many lines can be
+    // waiting to be written before we start dropping them.
+    String accessLogTarget = System.getenv().getOrDefault("ACCESS_LOG", "stdout");
+    int accessLogCapacity = Integer.parseInt(System.getenv().getOrDefault("ACCESS_LOG_CAPACITY",
+      String.valueOf(AccessLog.DEFAULT_CAPACITY)));
+    AccessLog accessLog = accessLogTarget.equals("off") ? null
+      : new AccessLog(accessLogWriter(accessLogTarget), accessLogCapacity, metrics);
+    if (accessLog != null) {
+      accessLog.start();
+    }
+    TraceController traceController = new TraceController(recentSpans);
+    JfrController jfrController = new JfrController();
+
+    // All the routes that talk to Mongo share one adaptive limit on how
+    // many requests can be in flight at once, so that when Mongo slows
+    // down we shed load quickly instead of piling up requests in Jetty.
+    int maxInFlight = Integer.parseInt(System.getenv().getOrDefault("MONGO_MAX_IN_FLIGHT",
+      String.valueOf(AdaptiveLimiter.DEFAULT_MAX_LIMIT)));
+    AdaptiveLimiter limiter = new AdaptiveLimiter(metrics, "limiter",
+      Math.min(AdaptiveLimiter.DEFAULT_INITIAL_LIMIT, maxInFlight), AdaptiveLimiter.DEFAULT_MIN_LIMIT, maxInFlight);
+
+    // With `RESPONSE_CACHE=true`, whole responses to the todo and user
+    // lists are cached (see `ResponseCache`) until the controllers change
+    // what they were read from, or for `RESPONSE_CACHE_TTL_SECONDS` at
+    // most, which bounds how stale changes made elsewhere leave them. A
+    // list read from secondaries isn't cached, since a read just after a
+    // change could cache a secondary's stale answer for the whole TTL.
+    Handler getTodos = limiter.wrap(todoController::getTodos);
+    Handler getUsers = limiter.wrap(userController::getUsers);
+    if (Boolean.parseBoolean(System.getenv().getOrDefault("RESPONSE_CACHE", "false"))) {
+      ResponseCache responseCache = new ResponseCache(
+        Long.parseLong(System.getenv().getOrDefault("RESPONSE_CACHE_MAX_BYTES",
+          String.valueOf(ResponseCache.DEFAULT_MAX_BYTES))),
+        Long.parseLong(System.getenv().getOrDefault("RESPONSE_CACHE_TTL_SECONDS",
+          String.valueOf(ResponseCache.DEFAULT_TTL_SECONDS))),
+        metrics);
+      todoController.invalidateOnWrite(responseCache);
+      userController.invalidateOnWrite(responseCache);
+      // Outside the limiter, so hits don't need a permit.
+      if (todoListReadPreference.equals(ReadPreference.primary())) {
+        getTodos = responseCache.wrap(getTodos, "todos");
+      } else {
+        LOGGER.warn("Not caching todo lists, since they're read from secondaries");
+      }
+      if (userListReadPreference.equals(ReadPreference.primary())) {
+        getUsers = responseCache.wrap(getUsers, "users", "todos");
+      } else {
+        LOGGER.warn("Not caching user lists, since they're read from secondaries");
+      }
+    }
+
+    // Every API request gets a deadline that the controllers pass on to
+    // Mongo, so queries stop running once the client has given up.
+    Deadlines deadlines = new Deadlines(metrics,
+      Long.parseLong(System.getenv().getOrDefault("REQUEST_TIMEOUT_MS", DEFAULT_REQUEST_TIMEOUT_MS)),
+      Long.parseLong(System.getenv().getOrDefault("MAX_REQUEST_TIMEOUT_MS", MAX_REQUEST_TIMEOUT_MS)));
 
     Javalin server = Javalin.create(config -> {
       config.registerPlugin(new RouteOverviewPlugin("/api"));
+      // This runs once the response has been written, so it's where we
+      // log each request, and where its span and flight recorder event end.
+      // The span's scope has to be closed whatever happens, or it would
+      // leak into the next request this thread handles.
+      config.requestLogger((ctx, executionTimeMs) -> {
+        try {
+          if (accessLog != null) {
+            accessLog.record(ctx, executionTimeMs);
+          }
+          RequestEvent.end(ctx);
+        } finally {
+          routeTracing.finish(ctx);
+        }
+      });
     });
     /*
      * We want to shut the `mongoClient` down if the server either
@@ -51,37 +335,156 @@ public class Server {
      */
     server.events(event -> {
       event.serverStartFailed(mongoClient::close);
+      event.serverStopped(mongoPinger::stop);
       event.serverStopped(mongoClient::close);
+      event.serverStopped(() -> Tracing.shutdown(openTelemetry));
+      if (accessLog != null) {
+        event.serverStopped(accessLog::stop);
+      }
     });
     Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
     server.start(PORT_NUMBER);
 
+    metrics.gauge("mongo.pool.checkedOut", mongoPool::getCheckedOut);
+    metrics.gauge("mongo.pool.maxSize", mongoPool::getMaxSize);
+    HealthController healthController = new HealthController(mongoPinger)
+      .saturation("mongoPool", mongoPool::getUsage, readyThreshold("MONGO_POOL_USAGE",
+        DEFAULT_READY_MAX_MONGO_POOL_USAGE))
+      .saturation("limiter", () -> (double) limiter.getInFlight() / limiter.getLimit(),
+        readyThreshold("LIMITER_USAGE", DEFAULT_READY_MAX_LIMITER_USAGE));
+    // Javalin's Jetty uses a `QueuedThreadPool`, unless it's been configured
+    // not to, in which case we can't tell how busy it is.
+    ThreadPool threadPool = server.jettyServer().server().getThreadPool();
+    if (threadPool instanceof QueuedThreadPool) {
+      QueuedThreadPool jettyThreads = (QueuedThreadPool) threadPool;
+      metrics.gauge("jetty.threads.busy", jettyThreads::getBusyThreads);
+      metrics.gauge("jetty.queued", jettyThreads::getQueueSize);
+      healthController
+        .saturation("jettyThreads", () -> (double) jettyThreads.getBusyThreads() / jettyThreads.getMaxThreads(),
+          readyThreshold("THREAD_USAGE", DEFAULT_READY_MAX_THREAD_USAGE))
+        .saturation("jettyQueue", jettyThreads::getQueueSize,
+          readyThreshold("QUEUED", DEFAULT_READY_MAX_QUEUED));
+    }
+    LOGGER.info("Server ready {} ms after JVM start", ManagementFactory.getRuntimeMXBean().getUptime());
+
+    // The per owner and per category todo counts are kept up to date as
+    // todos change, but recounted from scratch every
+    // `TODO_COUNTS_RECONCILE_SECONDS` to catch changes made elsewhere.
+    todoCounts.start(Long.parseLong(System.getenv().getOrDefault("TODO_COUNTS_RECONCILE_SECONDS",
+      String.valueOf(TodoCounts.DEFAULT_RECONCILE_SECONDS))));
+
+    // Todos written without a sync sequence number (e.g., by the seed
+    // scripts) get one, and old tombstones are forgotten, every
+    // `TODO_SYNC_MAINTENANCE_SECONDS`.
+    todoSync.start(Long.parseLong(System.getenv().getOrDefault("TODO_SYNC_MAINTENANCE_SECONDS",
+        String.valueOf(TodoSync.DEFAULT_MAINTENANCE_SECONDS))),
+      Duration.ofDays(Long.parseLong(System.getenv().getOrDefault("TODO_SYNC_TOMBSTONE_DAYS",
+        String.valueOf(TodoSync.DEFAULT_TOMBSTONE_DAYS)))));
+
+    // Creating indexes needs a round trip to Mongo per index, so do it
+    // in the background instead of making startup wait for it.
+    CompletableFuture.runAsync(() -> {
+      userController.ensureIndexes();
+      todoController.ensureIndexes();
+    }).exceptionally(e -> {
+      LOGGER.error("Couldn't create indexes", e);
+      return null;
+    });
+
+    server.before(routeTracing::start);
+    server.before("/api/*", RequestEvent::begin);
+    server.before("/api/*", deadlines::start);
+
+    // Health checks for the load balancer. These aren't under `/api`, so
+    // they don't get deadlines, and they aren't limited, since they have
+    // to answer even (especially) when the server is overloaded.
+    server.get("/health/live", healthController::getLive);
+    server.get("/health/ready", healthController::getReady);
+
     // List users, filtered using query parameters
-    server.get("/api/users", userController::getUsers);
+    server.get("/api/users", getUsers);
+
+    // Stream all the users matching the filters as NDJSON or CSV. This
+    // has to come before `/api/users/{id}` so "export" isn't taken as an
+    // ID, and isn't under the limiter since exports are long running.
+    server.get("/api/users/export", userController::exportUsers);
+
+    // The status of cascading deletes of users' todos (see `deleteUser`).
+    // These also have to come before `/api/users/{id}`.
+    server.get("/api/users/deletions", userController::getDeletions);
+    server.get("/api/users/deletions/{id}", userController::getDeletion);
 
     // Get the specified user
-    server.get("/api/users/{id}", userController::getUser);
+    server.get("/api/users/{id}", limiter.wrap(userController::getUser));
+
+    // Get the specified user along with their todos
+    server.get("/api/users/{id}/todos", limiter.wrap(userController::getUserTodos));
 
-    // Delete the specified user
-    server.delete("/api/users/{id}", userController::deleteUser);
+    // Change some of the fields of the specified user
+    server.patch("/api/users/{id}", limiter.wrap(userController::patchUser));
+
+    // Delete the specified user (and, with `cascade=true`, their todos)
+    server.delete("/api/users/{id}", limiter.wrap(userController::deleteUser));
 
     // Add new user with the user info being in the JSON body
     // of the HTTP request
-    server.post("/api/users", userController::addNewUser);
+    server.post("/api/users", limiter.wrap(userController::addNewUser));
 
     // List todos, filtered using query parameters
-    server.get("/api/todos", todoController::getTodos);
+    server.get("/api/todos", getTodos);
+
+    // Stream all the todos matching the filters as NDJSON or CSV
+    server.get("/api/todos/export", todoController::exportTodos);
+
+    // How many todos, and open todos, each owner or category has. This
+    // has to come before `/api/todos/{id}` so "counts" isn't taken as an ID.
+    server.get("/api/todos/counts", limiter.wrap(todoController::getTodoCounts));
+
+    // The todos changed and deleted since the `since` token. This has
+    // to come before `/api/todos/{id}` so "sync" isn't taken as an ID.
+    server.get("/api/todos/sync", limiter.wrap(todoController::syncTodos));
+
+    // Set (or flip) the status of a list of todos at once. This has
+    // to come before `/api/todos/{id}` so "status" isn't taken as an ID.
+    server.patch("/api/todos/status", limiter.wrap(todoController::setTodosStatus));
 
     // Get the specified todo
-    server.get("/api/todos/{id}", todoController::getTodo);
+    server.get("/api/todos/{id}", limiter.wrap(todoController::getTodo));
+
+    // Change some of the fields of the specified todo
+    server.patch("/api/todos/{id}", limiter.wrap(todoController::patchTodo));
 
     // Delete the specified todo
-    server.delete("/api/todos/{id}", todoController::deleteTodo);
+    server.delete("/api/todos/{id}", limiter.wrap(todoController::deleteTodo));
 
     // Add new todo with the todo info being in the JSON body
     // of the HTTP request
-    server.post("/api/todos", todoController::addNewTodo);
+    server.post("/api/todos", limiter.wrap(todoController::addNewTodo));
+
+    // Report the server's metrics (current concurrency limit,
+    // rejection counts, etc.)
+    server.get("/api/admin/metrics", metricsController::getMetrics);
+
+    // Report the recent slow Mongo operations, and how often each
+    // query shape has been slow
+    server.get("/api/admin/slow-queries", slowQueryController::getSlowQueries);
+
+    // Report the most recent spans, when traces are kept in memory
+    // (`TRACE_EXPORT=memory`)
+    server.get("/api/admin/traces", traceController::getTraces);
+
+    // Start and stop a Java Flight Recorder recording; stopping it sends
+    // the recording as a file to open in JDK Mission Control
+    server.get("/api/admin/jfr", jfrController::getRecording);
+    server.post("/api/admin/jfr/start", jfrController::startRecording);
+    server.post("/api/admin/jfr/stop", jfrController::stopRecording);
+
+    // Operations that were cut short by their request's deadline, either
+    // before they started or by Mongo enforcing `maxTimeMS`, turn into
+    // 504 (Gateway Timeout) responses.
+    server.exception(DeadlineExceededException.class, deadlines::handleExceeded);
+    server.exception(MongoExecutionTimeoutException.class, deadlines::handleExceeded);
 
     // This catches any uncaught exceptions thrown in the server
     // code and turns them into a 500 response ("Internal Server
@@ -96,4 +499,47 @@ public class Server {
       throw new InternalServerErrorResponse(e.toString());
     });
   }
+
+  /**
+   * @param name the end of the environment variable, after `READY_MAX_`
+   * @param defaultValue the threshold to use if the variable isn't set
+   * @return the readiness threshold for one of the saturation checks
+   */
+  private static double readyThreshold(String name, String defaultValue) {
+    return Double.parseDouble(System.getenv().getOrDefault("READY_MAX_" + name, defaultValue));
+  }
+
+  /**
+   * @param target "stdout", or the path of a file to append to
+   * @return a writer for the access log
+   * @throws IOException if the file can't be opened
+   */
+  private static Writer accessLogWriter(String target) throws IOException {
+    if (target.equals("stdout")) {
+      return new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    }
+    return Files.newBufferedWriter(Path.of(target), StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Work out the read preference to use for a list endpoint from the
+   * environment. `<prefix>_LIST_READ_PREFERENCE` names the read preference
+   * mode (e.g., "secondaryPreferred", default "primary") and
+   * `LIST_MAX_STALENESS_SECONDS` bounds how far behind the primary a
+   * secondary may be and still be used.
+   *
+   * @param prefix the route prefix, e.g., "TODOS" or "USERS"
+   * @return the read preference to use for that route's list endpoint
+   */
+  private static ReadPreference listReadPreference(String prefix) {
+    String mode = System.getenv().getOrDefault(prefix + "_LIST_READ_PREFERENCE", "primary");
+    if (mode.equals("primary")) {
+      // The primary is never stale, so Mongo rejects a max staleness for it.
+      return ReadPreference.primary();
+    }
+    long maxStaleness = Long.parseLong(
+      System.getenv().getOrDefault("LIST_MAX_STALENESS_SECONDS", DEFAULT_MAX_STALENESS_SECONDS));
+    return ReadPreference.valueOf(mode, List.of(), maxStaleness, TimeUnit.SECONDS);
+  }
 }
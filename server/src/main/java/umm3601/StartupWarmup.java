@@ -0,0 +1,158 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.Javalin;
+import io.javalin.core.util.RouteOverviewPlugin;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.todos.Todo;
+import umm3601.user.User;
+
+/**
+ * Exercises the parts of Javalin, Jackson and MongoJack that the
+ * server uses, without needing a running Mongo, so that all of their
+ * classes get loaded (and their lazy caches filled) before the first
+ * real request arrives.
+ * <p>
+ * This is also the training run for the server's class-data sharing
+ * (AppCDS) archive: the `cdsArchive` Gradle task runs the server with
+ * `--warmup`, records every class loaded along the way, and dumps them
+ * into an archive that the start scripts then map at launch.
+ */
+public final class StartupWarmup {
+
+  private static final int ROUNDS = 3;
+  private static final long CONNECT_TIMEOUT_MS = 100;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StartupWarmup.class);
+
+  private StartupWarmup() {
+  }
+
+  /**
+   * Run the warm-up.
+   */
+  public static void run() {
+    warmJackson();
+    warmMongoJack();
+    warmJavalin();
+  }
+
+  private static Todo sampleTodo() {
+    Todo todo = new Todo();
+    todo.owner = "Warmup";
+    todo.status = true;
+    todo.body = "Warm up the serializers";
+    todo.category = "warmup";
+    return todo;
+  }
+
+  private static User sampleUser() {
+    User user = new User();
+    user.name = "Warmup";
+    user.age = 1;
+    user.company = "Warmup";
+    user.email = "warmup@example.com";
+    user.role = "viewer";
+    return user;
+  }
+
+  // The JSON mapper Javalin uses for `ctx.json` and `bodyValidator`
+  private static void warmJackson() {
+    JavalinJackson mapper = new JavalinJackson();
+    for (int i = 0; i < ROUNDS; i++) {
+      String todos = mapper.toJsonString(List.of(sampleTodo(), sampleTodo()));
+      mapper.fromJsonString(todos, Todo[].class);
+      String users = mapper.toJsonString(List.of(sampleUser(), sampleUser()));
+      mapper.fromJsonString(users, User[].class);
+    }
+  }
+
+  // MongoJack builds its codecs lazily; encoding and decoding a document
+  // through them loads them without needing to talk to the server.
+  private static void warmMongoJack() {
+    MongoClientSettings settings = MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.serverSelectionTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+      .applyToSocketSettings(builder -> builder.connectTimeout((int) CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+      .build();
+    try (MongoClient client = MongoClients.create(settings)) {
+      MongoDatabase database = client.getDatabase("warmup");
+      roundTrip(JacksonMongoCollection.builder().build(database, "todos", Todo.class), sampleTodo());
+      roundTrip(JacksonMongoCollection.builder().build(database, "users", User.class), sampleUser());
+    }
+  }
+
+  private static <T> void roundTrip(JacksonMongoCollection<T> collection, T value) {
+    @SuppressWarnings("unchecked")
+    Codec<T> codec = (Codec<T>) collection.getCodecRegistry().get(value.getClass());
+    for (int i = 0; i < ROUNDS; i++) {
+      BsonDocument document = new BsonDocument();
+      codec.encode(new BsonDocumentWriter(document), value, EncoderContext.builder().build());
+      codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+    }
+  }
+
+  // Start a throwaway Javalin on a random port and send it a few requests
+  // so Jetty's connectors, request parsing and response writing are loaded.
+  private static void warmJavalin() {
+    Javalin app = Javalin.create(config -> {
+      config.registerPlugin(new RouteOverviewPlugin("/api"));
+      config.showJavalinBanner = false;
+    });
+    app.get("/api/todos", ctx -> ctx.json(List.of(sampleTodo())));
+    app.post("/api/todos", ctx -> ctx.json(ctx.bodyAsClass(Todo.class)));
+    app.start(0);
+    try {
+      String todo = new JavalinJackson().toJsonString(sampleTodo());
+      for (int i = 0; i < ROUNDS; i++) {
+        request(app.port(), "GET", "/api/todos", null);
+        request(app.port(), "POST", "/api/todos", todo);
+        request(app.port(), "GET", "/api", null);
+      }
+    } catch (IOException e) {
+      // The warm-up is best effort; a failure here shouldn't stop the server.
+      LOGGER.warn("Startup warm-up request failed", e);
+    } finally {
+      app.stop();
+    }
+  }
+
+  private static void request(int port, String method, String path, String json) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    connection.setRequestMethod(method);
+    if (json != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json");
+      try (OutputStream body = connection.getOutputStream()) {
+        body.write(json.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    try (InputStream body = connection.getInputStream()) {
+      body.readAllBytes();
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
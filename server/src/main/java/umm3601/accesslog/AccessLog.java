@@ -0,0 +1,255 @@
+package umm3601.accesslog;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.eclipse.jetty.server.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.javalin.http.Context;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * A structured access log: one JSON object per request, with its route,
+ * status, latency, how many results it sent and how many bytes.
+ * <p>
+ * Handlers never wait on the log. `record` just puts an entry in a
+ * lock-free `RingBuffer`, and a background thread turns entries into
+ * JSON and writes them out. The buffer is a fixed size, so if the
+ * writer falls behind, new entries are dropped (and counted in the
+ * `accessLog.dropped` metric) rather than using more memory or slowing
+ * down requests.
+ */
+public class AccessLog {
+
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  /**
+   * The context attribute, an `AtomicLong`, that counts the results a
+   * request sends. It's an `AtomicLong` (rather than a number) so that
+   * responses that are streamed can keep counting as they're written.
+   */
+  public static final String RESULT_COUNT_KEY = "accessLog.resultCount";
+
+  // How long the writer sleeps when there's nothing to write.
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccessLog.class);
+
+  /**
+   * One request. Its getters are the fields of the JSON written for it.
+   */
+  public static final class Entry {
+    private final String time;
+    private final String method;
+    private final String route;
+    private final String path;
+    private final int status;
+    private final float latencyMs;
+    private final long resultCount;
+    private final long bytes;
+    private final String traceId;
+
+    private Entry(Context ctx, float latencyMs) {
+      this.time = Instant.now().toString();
+      this.method = ctx.method();
+      this.route = route(ctx);
+      this.path = ctx.path();
+      this.status = ctx.status();
+      this.latencyMs = latencyMs;
+      AtomicLong count = ctx.attribute(RESULT_COUNT_KEY);
+      this.resultCount = count == null ? -1 : count.get();
+      this.bytes = bytesWritten(ctx);
+      SpanContext span = Span.current().getSpanContext();
+      this.traceId = span.isValid() ? span.getTraceId() : null;
+    }
+
+    public String getTime() {
+      return time;
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getRoute() {
+      return route;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public float getLatencyMs() {
+      return latencyMs;
+    }
+
+    /**
+     * @return how many results (documents, usually) were sent, or -1 if
+     *   the response wasn't a list of results
+     */
+    public long getResultCount() {
+      return resultCount;
+    }
+
+    /**
+     * @return how many bytes of response were sent, or -1 if we can't tell
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    public String getTraceId() {
+      return traceId;
+    }
+  }
+
+  private final RingBuffer<Entry> buffer;
+  private final Writer out;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final LongAdder dropped;
+  private final LongAdder written;
+  private final LongAdder errors;
+
+  private volatile boolean running;
+  private Thread writer;
+
+  /**
+   * Construct an access log.
+   *
+   * @param out where to write the log
+   * @param capacity how many entries can be waiting to be written; a power of two
+   * @param metrics where to count written and dropped entries
+   */
+  public AccessLog(Writer out, int capacity, MetricsRegistry metrics) {
+    this.buffer = new RingBuffer<>(capacity);
+    this.out = out;
+    this.dropped = metrics.counter("accessLog.dropped");
+    this.written = metrics.counter("accessLog.written");
+    this.errors = metrics.counter("accessLog.errors");
+    metrics.gauge("accessLog.queued", buffer::size);
+  }
+
+  /**
+   * Count the results a request is sending, for its access log entry.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param count how many results it's sending so far
+   * @return the counter, so streamed responses can add to it as they go
+   */
+  public static AtomicLong countResults(Context ctx, long count) {
+    AtomicLong counter = new AtomicLong(count);
+    ctx.attribute(RESULT_COUNT_KEY, counter);
+    return counter;
+  }
+
+  /**
+   * Start the background writer.
+   */
+  public void start() {
+    running = true;
+    writer = new Thread(this::drain, "access-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Stop the background writer, once it's written everything already logged.
+   *
+   * @throws InterruptedException if we're interrupted while waiting for it
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+      writer.join();
+    }
+  }
+
+  /**
+   * Log a request; call this from Javalin's request logger. This never
+   * blocks; if the buffer is full the entry is dropped.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param latencyMs how long the request took
+   */
+  public void record(Context ctx, float latencyMs) {
+    if (!buffer.offer(new Entry(ctx, latencyMs))) {
+      dropped.increment();
+    }
+  }
+
+  private void drain() {
+    boolean unflushed = false;
+    while (true) {
+      Entry entry = buffer.poll();
+      if (entry != null) {
+        write(entry);
+        unflushed = true;
+        continue;
+      }
+      // Nothing waiting, so this is a good time to flush.
+      if (unflushed) {
+        flush();
+        unflushed = false;
+      }
+      if (!running) {
+        return;
+      }
+      LockSupport.parkNanos(IDLE_NANOS);
+    }
+  }
+
+  private void write(Entry entry) {
+    try {
+      out.write(mapper.writeValueAsString(entry));
+      out.write('\n');
+      written.increment();
+    } catch (IOException e) {
+      errors.increment();
+    }
+  }
+
+  private void flush() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      errors.increment();
+      LOGGER.warn("Couldn't flush the access log", e);
+    }
+  }
+
+  // The route's path pattern (e.g., `/api/users/{id}`), or the actual
+  // path if no route matched.
+  private static String route(Context ctx) {
+    try {
+      String route = ctx.endpointHandlerPath();
+      return route == null || route.isEmpty() ? ctx.path() : route;
+    } catch (IllegalStateException e) {
+      return ctx.path();
+    }
+  }
+
+  // Jetty counts the bytes it actually sent (after any compression).
+  private static long bytesWritten(Context ctx) {
+    if (ctx.res instanceof Response) {
+      return ((Response) ctx.res).getHttpChannel().getBytesWritten();
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,101 @@
+package umm3601.accesslog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ * <p>
+ * This is Dmitry Vyukov's bounded queue: every slot has a sequence
+ * number that says whose turn it is to use the slot. A producer claims
+ * the next position with one compare-and-set, fills the slot, and then
+ * bumps the slot's sequence to hand it to the consumer. Producers never
+ * wait; when the buffer is full, `offer` just returns false, so the
+ * caller decides what to drop.
+ *
+ * @param <T> the type of the items
+ */
+final class RingBuffer<T> {
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<T> items;
+  private final AtomicLongArray sequences;
+
+  // The next position to write; shared by all the producers.
+  private final AtomicLong tail = new AtomicLong();
+  // The next position to read; only the consumer touches it.
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * @param capacity how many items the buffer holds; a power of two
+   */
+  RingBuffer(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("The capacity must be a power of two, not " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.items = new AtomicReferenceArray<>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Add an item, if there's room. Safe to call from any thread.
+   *
+   * @param item the item to add
+   * @return whether it was added; false if the buffer was full
+   */
+  boolean offer(T item) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        // The slot is free for this position; try to claim it.
+        if (tail.compareAndSet(position, position + 1)) {
+          items.set(index, item);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        // The consumer hasn't emptied this slot since it was last used.
+        return false;
+      } else {
+        // Another producer got this position first.
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Take the oldest item. Only one thread may call this.
+   *
+   * @return the oldest item, or null if the buffer is empty
+   */
+  T poll() {
+    long position = head.get();
+    int index = (int) (position & mask);
+    if (sequences.get(index) != position + 1) {
+      return null;
+    }
+    T item = items.get(index);
+    items.set(index, null);
+    // Hand the slot back to the producers for its next lap.
+    sequences.set(index, position + capacity);
+    head.set(position + 1);
+    return item;
+  }
+
+  /**
+   * @return roughly how many items are in the buffer
+   */
+  int size() {
+    return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+  }
+}
@@ -0,0 +1,321 @@
+package umm3601.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HttpCode;
+import umm3601.accesslog.AccessLog;
+import umm3601.encoding.ContentNegotiation;
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * Caches the bytes of whole responses, so a popular list query (e.g.,
+ * `/api/todos?status=false`) is answered without asking Mongo or
+ * serializing anything.
+ * <p>
+ * Responses are keyed by their path, their query parameters (sorted,
+ * so the order they're given in doesn't matter) and the `Encoding`
+ * they're in. Each cached route says which collections its responses
+ * are read from, and the controllers `invalidate` a collection whenever
+ * they change it, which drops every response read from it. Bodies big
+ * enough to be worth it are gzipped once, when they're cached, and that
+ * copy is sent to clients that accept gzip.
+ * <p>
+ * The cache holds at most `maxBytes` of bodies (gzipped copies
+ * included), forgetting the least recently used first, and never caches
+ * a body bigger than an eighth of that. It only knows
+ * about changes made through this server, so entries also expire after
+ * `ttlSeconds` to bound how stale changes made elsewhere can leave it.
+ * <p>
+ * Only cache routes that read from the primary. A response read from a
+ * secondary just after an `invalidate` may not have the change yet, and
+ * would stay cached, stale, for the whole TTL.
+ */
+public class ResponseCache {
+
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+  public static final long DEFAULT_TTL_SECONDS = 60;
+
+  // Smaller bodies aren't worth gzipping; this is the same threshold
+  // Javalin uses for its own compression.
+  private static final int MIN_GZIP_SIZE = 1500;
+  // No one response may take more than this fraction of the cache.
+  private static final int MAX_ENTRY_FRACTION = 8;
+
+  private static final String CACHE_HEADER = "X-Cache";
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  // One cached response.
+  private static final class Entry {
+    private final String contentType;
+    private final byte[] body;
+    private final byte[] gzipped;
+    private final long resultCount;
+    private final List<String> collections;
+    private final long expiresAt;
+
+    private Entry(String contentType, byte[] body, byte[] gzipped, long resultCount, List<String> collections,
+        long expiresAt) {
+      this.contentType = contentType;
+      this.body = body;
+      this.gzipped = gzipped;
+      this.resultCount = resultCount;
+      this.collections = collections;
+      this.expiresAt = expiresAt;
+    }
+
+    private long size() {
+      return body.length + (gzipped == null ? 0 : gzipped.length);
+    }
+  }
+
+  private final long maxBytes;
+  private final long ttlNanos;
+
+  // Least recently used first. Every access, including `get`, changes
+  // the order, so everything touching it holds its lock.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  private long bytes;
+
+  // Bumped by every `invalidate`, so a response read from a collection
+  // that changed while it was being made isn't cached.
+  private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final LongAdder invalidations;
+
+  /**
+   * Construct a response cache.
+   *
+   * @param maxBytes the most bytes of responses to hold
+   * @param ttlSeconds how long a response may be served from the cache
+   * @param metrics where to count hits, misses and evictions
+   */
+  public ResponseCache(long maxBytes, long ttlSeconds, MetricsRegistry metrics) {
+    this.maxBytes = maxBytes;
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    this.hits = metrics.counter("responseCache.hits");
+    this.misses = metrics.counter("responseCache.misses");
+    this.evictions = metrics.counter("responseCache.evictions");
+    this.invalidations = metrics.counter("responseCache.invalidations");
+    metrics.gauge("responseCache.hitRate", this::hitRate);
+    metrics.gauge("responseCache.bytes", this::getBytes);
+    metrics.gauge("responseCache.entries", this::size);
+  }
+
+  /**
+   * Wrap a handler so that its successful responses are cached, and
+   * served from the cache until one of `collections` changes.
+   *
+   * @param handler a handler whose response depends only on the request's
+   *   path, query parameters and `Accept` header
+   * @param collections the collections its responses are read from
+   * @return a handler that answers from the cache when it can
+   */
+  public Handler wrap(Handler handler, String... collections) {
+    List<String> dependsOn = List.of(collections);
+    return ctx -> {
+      String key = keyFor(ctx);
+      if (respondFromCache(ctx, key)) {
+        return;
+      }
+      misses.increment();
+      long[] before = generationsOf(dependsOn);
+      handler.handle(ctx);
+      cache(ctx, key, dependsOn, before);
+    };
+  }
+
+  /**
+   * Forget every cached response read from a collection. Call this
+   * after changing it.
+   *
+   * @param collection the name of the collection that changed
+   */
+  public void invalidate(String collection) {
+    synchronized (entries) {
+      generation(collection).incrementAndGet();
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (iterator.hasNext()) {
+        Entry entry = iterator.next();
+        if (entry.collections.contains(collection)) {
+          bytes -= entry.size();
+          iterator.remove();
+        }
+      }
+    }
+    invalidations.increment();
+  }
+
+  /**
+   * @return the fraction of requests answered from the cache
+   */
+  public double hitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * @return how many bytes of responses the cache holds
+   */
+  public long getBytes() {
+    synchronized (entries) {
+      return bytes;
+    }
+  }
+
+  /**
+   * @return how many responses the cache holds
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * The key for a request: its path, its query parameters in order of
+   * name, and the encoding it'll be answered in.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the key its response is cached under
+   */
+  static String keyFor(Context ctx) {
+    StringBuilder key = new StringBuilder(ContentNegotiation.responseEncoding(ctx).name())
+      .append(' ').append(ctx.path()).append('?');
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(ctx.queryParamMap()).entrySet()) {
+      for (String value : param.getValue()) {
+        key.append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8)).append('=')
+          .append(URLEncoder.encode(value, StandardCharsets.UTF_8)).append('&');
+      }
+    }
+    return key.toString();
+  }
+
+  private boolean respondFromCache(Context ctx, String key) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.expiresAt > 0) {
+        entries.remove(key);
+        bytes -= entry.size();
+        entry = null;
+      }
+    }
+    if (entry == null) {
+      return false;
+    }
+    hits.increment();
+    ctx.header(CACHE_HEADER, "HIT");
+    ctx.header("Vary", "Accept, Accept-Encoding");
+    ctx.contentType(entry.contentType);
+    AccessLog.countResults(ctx, entry.resultCount);
+    if (entry.gzipped != null && acceptsGzip(ctx)) {
+      ctx.header("Content-Encoding", "gzip");
+      ctx.result(entry.gzipped);
+    } else {
+      ctx.result(entry.body);
+    }
+    return true;
+  }
+
+  private void cache(Context ctx, String key, List<String> dependsOn, long[] before) throws IOException {
+    InputStream result = ctx.resultStream();
+    if (ctx.status() != HttpCode.OK.getStatus() || result == null) {
+      return;
+    }
+    // Streamed responses are read here, rather than as they're sent, so
+    // there's something to cache, but only as far as the most we'd cache.
+    // If there's more than that, what was read goes out ahead of the rest
+    // of the stream, and none of it is cached.
+    int maxEntryBytes = (int) Math.min(maxBytes / MAX_ENTRY_FRACTION, Integer.MAX_VALUE - 1);
+    byte[] body;
+    try {
+      body = result.readNBytes(maxEntryBytes + 1);
+    } catch (IOException | RuntimeException e) {
+      result.close();
+      throw e;
+    }
+    ctx.header(CACHE_HEADER, "MISS");
+    if (body.length > maxEntryBytes) {
+      ctx.result(new SequenceInputStream(new ByteArrayInputStream(body), result));
+      return;
+    }
+    result.close();
+    ctx.result(body);
+    byte[] gzipped = body.length >= MIN_GZIP_SIZE ? gzip(body) : null;
+    AtomicLong count = ctx.attribute(AccessLog.RESULT_COUNT_KEY);
+    Entry entry = new Entry(ctx.res.getContentType(), body, gzipped, count == null ? -1 : count.get(), dependsOn,
+      System.nanoTime() + ttlNanos);
+
+    synchronized (entries) {
+      if (!Arrays.equals(before, generationsOf(dependsOn))) {
+        // Something it was read from changed while it was being made.
+        return;
+      }
+      Entry replaced = entries.put(key, entry);
+      if (replaced != null) {
+        bytes -= replaced.size();
+      }
+      bytes += entry.size();
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        bytes -= eldest.next().size();
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  private long[] generationsOf(List<String> collections) {
+    long[] result = new long[collections.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = generation(collections.get(i)).get();
+    }
+    return result;
+  }
+
+  private AtomicLong generation(String collection) {
+    return generations.computeIfAbsent(collection, name -> new AtomicLong());
+  }
+
+  private static boolean acceptsGzip(Context ctx) {
+    String acceptEncoding = ctx.header("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+
+  private static byte[] gzip(byte[] body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(body);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // Not worth it if it barely shrank.
+    return out.size() < body.length ? out.toByteArray() : null;
+  }
+}
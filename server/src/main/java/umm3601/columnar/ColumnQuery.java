@@ -0,0 +1,123 @@
+package umm3601.columnar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+
+/**
+ * The filters of a list request, for a `ColumnStore` to answer. They
+ * mean the same as the Mongo filters the controllers build for the same
+ * request, so either can answer it.
+ */
+public final class ColumnQuery {
+
+  /**
+   * One filter: the values of `field` that `test` accepts.
+   */
+  static final class Condition {
+    private final String field;
+    private final Predicate<Object> test;
+
+    private Condition(String field, Predicate<Object> test) {
+      this.field = field;
+      this.test = test;
+    }
+
+    String field() {
+      return field;
+    }
+
+    boolean test(Object value) {
+      return value != null && test.test(value);
+    }
+  }
+
+  // How Mongo orders values of different types (see `compare`).
+  private static final int NUMBER_RANK = 1;
+  private static final int STRING_RANK = 2;
+  private static final int OBJECT_ID_RANK = 3;
+  private static final int BOOLEAN_RANK = 4;
+  private static final int OTHER_RANK = 5;
+
+  private final List<Condition> conditions = new ArrayList<>();
+
+  /**
+   * Only match documents whose `field` is `value`, like Mongo's `$eq`:
+   * numbers are equal if their values are, whatever their types.
+   *
+   * @param field the field to filter on
+   * @param value the value it must have
+   * @return this, so calls can be chained
+   */
+  public ColumnQuery equalTo(String field, Object value) {
+    conditions.add(new Condition(field, other -> compare(value, other) == 0));
+    return this;
+  }
+
+  /**
+   * Only match documents whose `field` is a string containing
+   * `substring`, ignoring case, like the controllers' quoted,
+   * case-insensitive regexes.
+   *
+   * @param field the field to filter on
+   * @param substring what it must contain
+   * @return this, so calls can be chained
+   */
+  public ColumnQuery contains(String field, String substring) {
+    Pattern pattern = Pattern.compile(Pattern.quote(substring), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    conditions.add(new Condition(field, other -> other instanceof String && pattern.matcher((String) other).find()));
+    return this;
+  }
+
+  List<Condition> conditions() {
+    return conditions;
+  }
+
+  /**
+   * Compare two field values in the order Mongo sorts them: missing
+   * values first, then numbers (by value), strings, object IDs and
+   * booleans.
+   *
+   * @param a a value, or null if it's missing
+   * @param b another value, or null if it's missing
+   * @return less than, equal to or greater than zero as `a` sorts
+   *   before, with or after `b`
+   */
+  static int compare(Object a, Object b) {
+    int rankA = rank(a);
+    int rankB = rank(b);
+    if (rankA != rankB) {
+      return Integer.compare(rankA, rankB);
+    }
+    if (a == null) {
+      return 0;
+    } else if (a instanceof Number) {
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    } else if (a instanceof String) {
+      return ((String) a).compareTo((String) b);
+    } else if (a instanceof ObjectId) {
+      return ((ObjectId) a).compareTo((ObjectId) b);
+    } else if (a instanceof Boolean) {
+      return Boolean.compare((Boolean) a, (Boolean) b);
+    }
+    return a.toString().compareTo(b.toString());
+  }
+
+  private static int rank(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof Number) {
+      return NUMBER_RANK;
+    } else if (value instanceof String) {
+      return STRING_RANK;
+    } else if (value instanceof ObjectId) {
+      return OBJECT_ID_RANK;
+    } else if (value instanceof Boolean) {
+      return BOOLEAN_RANK;
+    }
+    return OTHER_RANK;
+  }
+}
@@ -0,0 +1,266 @@
+package umm3601.columnar;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * A copy of a collection kept in memory as a `ColumnTable`, so list
+ * requests can be filtered and sorted with bitmaps instead of asking
+ * Mongo to scan documents.
+ * <p>
+ * The table is built by scanning the collection. Controllers then
+ * `refresh` the documents they write, which reads them back from the
+ * primary, so the table has what Mongo has however the write changed
+ * them (e.g., flipping statuses with an update pipeline). That costs
+ * each write one read by `_id`. Anything else that changes the
+ * collection (another server, the seed loader) is only seen at the next
+ * rebuild, so as with `SubstringSearch`, only use this when this server
+ * is the collection's only writer, or when that's an acceptable delay.
+ * <p>
+ * Everything is held on the heap: about a hundred bytes per document,
+ * plus whatever its stored (not indexed) fields take.
+ */
+public class ColumnStore {
+
+  public static final long DEFAULT_REBUILD_SECONDS = 600;
+
+  private static final int SCAN_BATCH_SIZE = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ColumnStore.class);
+
+  private final MongoCollection<Document> collection;
+  private final List<String> fields;
+  private final List<String> indexedFields;
+
+  private final LongAdder answered;
+  private final LongAdder skipped;
+
+  // `current` is null until the first build finishes. While a rebuild
+  // is scanning the collection, changes go to `building` as well.
+  private volatile ColumnTable current;
+  private volatile ColumnTable building;
+
+  // Changes are read back from Mongo without holding any lock, so two
+  // reads of a document can finish in either order. Each read gets a
+  // ticket before it starts, and a document only takes what a read found
+  // if no read with a later ticket has been applied to it: a read with a
+  // later ticket saw every write the earlier one was made for. These
+  // are guarded by `changeLock`, which is never held during a read.
+  private final Object changeLock = new Object();
+  private long lastTicket;
+  // The tickets of the reads still going
+  private final NavigableSet<Long> reading = new TreeSet<>();
+  // The ticket of the last change applied to each document, while a read
+  // with an earlier ticket might still be going
+  private final Map<ObjectId, Long> appliedTickets = new HashMap<>();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a store; it can't answer anything until it's built.
+   *
+   * @param collection the collection to keep
+   * @param fields the fields of its documents to keep, in the order to
+   *   send them back in; these should be the fields the list requests
+   *   it answers send back
+   * @param indexedFields which of them have few enough distinct values to
+   *   keep a bitmap for each
+   * @param metrics where to count how many requests it answered
+   */
+  public ColumnStore(MongoCollection<?> collection, List<String> fields, List<String> indexedFields,
+      MetricsRegistry metrics) {
+    this.collection = collection.withDocumentClass(Document.class)
+      .withReadPreference(ReadPreference.primary());
+    this.fields = List.copyOf(fields);
+    this.indexedFields = List.copyOf(indexedFields);
+    String name = "columnStore." + collection.getNamespace().getCollectionName();
+    this.answered = metrics.counter(name + ".answered");
+    this.skipped = metrics.counter(name + ".skipped");
+    metrics.gauge(name + ".documents", () -> current == null ? 0 : current.size());
+  }
+
+  /**
+   * Build the table now, and then rebuild it in the background every
+   * `rebuildSeconds`.
+   *
+   * @param rebuildSeconds how often to rebuild the table
+   */
+  public void start(long rebuildSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "column-store-" + collection.getNamespace().getCollectionName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        rebuild();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't rebuild the column store for {}", collection.getNamespace(), e);
+      }
+    }, 0, rebuildSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop rebuilding the table.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Build a new table from every document in the collection, and start
+   * using it.
+   */
+  public void rebuild() {
+    ColumnTable table = new ColumnTable(fields, indexedFields);
+    // Changes from here on go in the new table too, and the scan won't
+    // overwrite them (see `ColumnTable.load`).
+    building = table;
+    try {
+      for (Document document : collection.find()
+          .projection(Projections.include(fields))
+          .batchSize(SCAN_BATCH_SIZE)) {
+        Object id = document.get("_id");
+        if (id instanceof ObjectId) {
+          table.load((ObjectId) id, document);
+        }
+      }
+      table.built();
+      current = table;
+    } finally {
+      building = null;
+    }
+  }
+
+  /**
+   * Read some documents back from Mongo after changing them, and update
+   * (or, if they're gone, remove) them in the table.
+   *
+   * @param ids the IDs of the documents that were inserted, changed or
+   *   deleted
+   */
+  public void refresh(Collection<ObjectId> ids) {
+    if (ids.isEmpty() || (current == null && building == null)) {
+      return;
+    }
+    long ticket;
+    synchronized (changeLock) {
+      ticket = ++lastTicket;
+      reading.add(ticket);
+    }
+    try {
+      Map<ObjectId, Document> documents = new HashMap<>();
+      for (Document document : collection.find(in("_id", ids)).projection(Projections.include(fields))) {
+        documents.put(document.getObjectId("_id"), document);
+      }
+      synchronized (changeLock) {
+        // As with `KnownIds`, read `building` before `current`: a rebuild
+        // sets `current` before it clears `building`.
+        ColumnTable next = building;
+        ColumnTable table = current;
+        for (ObjectId id : ids) {
+          if (isNewest(id, ticket)) {
+            apply(table, id, documents.get(id));
+            apply(next, id, documents.get(id));
+          }
+        }
+      }
+    } finally {
+      synchronized (changeLock) {
+        reading.remove(ticket);
+        forgetOldTickets();
+      }
+    }
+  }
+
+  // Whether a change with this ticket is newer than any applied to the
+  // document so far, in which case it's now the newest. Must hold
+  // `changeLock`.
+  private boolean isNewest(ObjectId id, long ticket) {
+    Long applied = appliedTickets.get(id);
+    if (applied != null && applied > ticket) {
+      return false;
+    }
+    appliedTickets.put(id, ticket);
+    return true;
+  }
+
+  // Every read still going, or yet to start, has a later ticket than the
+  // oldest one going, so older tickets can't stop any of them being
+  // applied. Must hold `changeLock`.
+  private void forgetOldTickets() {
+    long oldest = reading.isEmpty() ? lastTicket + 1 : reading.first();
+    appliedTickets.values().removeIf(applied -> applied < oldest);
+  }
+
+  private static void apply(ColumnTable table, ObjectId id, Document document) {
+    if (table == null) {
+      return;
+    } else if (document == null) {
+      table.remove(id);
+    } else {
+      table.put(id, document);
+    }
+  }
+
+  /**
+   * Forget some documents, after deleting them.
+   *
+   * @param ids the IDs of the deleted documents
+   */
+  public void remove(Collection<ObjectId> ids) {
+    synchronized (changeLock) {
+      // A read that started before this mustn't bring them back.
+      long ticket = ++lastTicket;
+      ColumnTable next = building;
+      ColumnTable table = current;
+      for (ObjectId id : ids) {
+        if (isNewest(id, ticket)) {
+          apply(table, id, null);
+          apply(next, id, null);
+        }
+      }
+      forgetOldTickets();
+    }
+  }
+
+  /**
+   * Find the documents that match a query.
+   *
+   * @param query the filters to apply
+   * @param sortField the field to sort the documents by
+   * @param ascending whether to sort them in ascending order
+   * @return the matching documents, or null if the store can't answer
+   *   (it isn't built yet, or the query or sort uses a field it doesn't
+   *   keep), in which case ask Mongo
+   */
+  public List<Map<String, Object>> find(ColumnQuery query, String sortField, boolean ascending) {
+    ColumnTable table = current;
+    List<Map<String, Object>> documents = table == null ? null : table.find(query, sortField, ascending);
+    (documents == null ? skipped : answered).increment();
+    return documents;
+  }
+}
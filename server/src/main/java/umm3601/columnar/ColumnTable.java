@@ -0,0 +1,406 @@
+package umm3601.columnar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * A collection's documents held in memory a column at a time, for
+ * answering list requests without Mongo.
+ * <p>
+ * Each document gets a row number, and each field is a column: an array
+ * indexed by row. Fields with only a few distinct values (a todo's
+ * status, owner or category; a user's age, company or role) are
+ * "indexed": each distinct value gets a small code, the column holds
+ * codes rather than values, and each code has a `RoaringBitmap` of the
+ * rows that have it. A filter on an indexed field is then the union of
+ * the bitmaps of the values it accepts, and a request's filters are the
+ * intersection of those; neither looks at a single document. Other
+ * fields (a todo's body, a user's name) are only stored, so they can be
+ * sent back; filters on them are checked row by row, but only for the
+ * rows the indexed filters let through. Only the rows that match are
+ * turned back into documents.
+ * <p>
+ * Deleted documents leave their row empty, rather than moving others
+ * about; the rows are packed again when the table is next rebuilt.
+ * <p>
+ * This is safe to use from many threads; queries share a read lock, and
+ * changes take a write lock.
+ */
+final class ColumnTable {
+
+  private static final int INITIAL_ROWS = 1024;
+  private static final int MISSING = -1;
+
+  // A column of codes, and the values and rows of each code.
+  private static final class IndexedColumn {
+    private int[] codes;
+    private final List<Object> values = new ArrayList<>();
+    private final Map<Object, Integer> codesByValue = new HashMap<>();
+    private final List<RoaringBitmap> rows = new ArrayList<>();
+
+    private IndexedColumn(int capacity) {
+      codes = new int[capacity];
+      Arrays.fill(codes, MISSING);
+    }
+
+    private void grow(int capacity) {
+      int old = codes.length;
+      codes = Arrays.copyOf(codes, capacity);
+      Arrays.fill(codes, old, capacity, MISSING);
+    }
+
+    private Object get(int row) {
+      int code = codes[row];
+      return code == MISSING ? null : values.get(code);
+    }
+
+    private void set(int row, Object value) {
+      clear(row);
+      if (value == null) {
+        return;
+      }
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codesByValue.put(value, code);
+        rows.add(new RoaringBitmap());
+      }
+      codes[row] = code;
+      rows.get(code).add(row);
+    }
+
+    private void clear(int row) {
+      int code = codes[row];
+      if (code != MISSING) {
+        rows.get(code).remove(row);
+        codes[row] = MISSING;
+      }
+    }
+
+    // The rows whose values the condition accepts.
+    private RoaringBitmap matching(ColumnQuery.Condition condition) {
+      RoaringBitmap result = new RoaringBitmap();
+      for (int code = 0; code < values.size(); code++) {
+        if (condition.test(values.get(code))) {
+          result.or(rows.get(code));
+        }
+      }
+      return result;
+    }
+
+    // The codes, in the order their values sort in.
+    private List<Integer> sortedCodes() {
+      List<Integer> sorted = new ArrayList<>(values.size());
+      for (int code = 0; code < values.size(); code++) {
+        sorted.add(code);
+      }
+      sorted.sort((a, b) -> ColumnQuery.compare(values.get(a), values.get(b)));
+      return sorted;
+    }
+  }
+
+  private final List<String> fields;
+  // By field number; each field is either indexed or only stored.
+  private final IndexedColumn[] indexed;
+  private final Object[][] stored;
+
+  private ObjectId[] ids = new ObjectId[INITIAL_ROWS];
+  private int rowCount;
+  private final Map<ObjectId, Integer> rows = new HashMap<>();
+  private final RoaringBitmap live = new RoaringBitmap();
+
+  // Documents changed by a controller since this table started being
+  // built, which the build's scan mustn't overwrite with older values.
+  private final Set<ObjectId> touched = new HashSet<>();
+  private boolean building = true;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Construct an empty table.
+   *
+   * @param fields the fields to keep, in the order to send them back in
+   * @param indexedFields which of them to index
+   */
+  ColumnTable(List<String> fields, Collection<String> indexedFields) {
+    this.fields = List.copyOf(fields);
+    this.indexed = new IndexedColumn[fields.size()];
+    this.stored = new Object[fields.size()][];
+    for (int field = 0; field < fields.size(); field++) {
+      if (indexedFields.contains(fields.get(field))) {
+        indexed[field] = new IndexedColumn(INITIAL_ROWS);
+      } else {
+        stored[field] = new Object[INITIAL_ROWS];
+      }
+    }
+  }
+
+  /**
+   * Set a document's fields, adding it if it isn't already in the table.
+   *
+   * @param id the document's ID
+   * @param document the whole document; fields it doesn't have are missing
+   */
+  void put(ObjectId id, Map<String, ?> document) {
+    lock.writeLock().lock();
+    try {
+      if (building) {
+        touched.add(id);
+      }
+      set(id, document);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add a document read while building the table, unless it has already
+   * been changed (by `put` or `remove`) since the build started, in
+   * which case what we have is newer than what was read.
+   *
+   * @param id the document's ID
+   * @param document the whole document
+   */
+  void load(ObjectId id, Map<String, ?> document) {
+    lock.writeLock().lock();
+    try {
+      if (!touched.contains(id)) {
+        set(id, document);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a document from the table.
+   *
+   * @param id the document's ID
+   */
+  void remove(ObjectId id) {
+    lock.writeLock().lock();
+    try {
+      if (building) {
+        touched.add(id);
+      }
+      Integer row = rows.remove(id);
+      if (row == null) {
+        return;
+      }
+      live.remove(row);
+      ids[row] = null;
+      for (int field = 0; field < fields.size(); field++) {
+        if (indexed[field] != null) {
+          indexed[field].clear(row);
+        } else {
+          stored[field][row] = null;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Mark the end of the build: from now on there's no need to remember
+   * which documents were changed during it.
+   */
+  void built() {
+    lock.writeLock().lock();
+    try {
+      building = false;
+      touched.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return how many documents are in the table
+   */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return rows.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the documents that match a query.
+   *
+   * @param query the filters to apply
+   * @param sortField the field to sort the documents by
+   * @param ascending whether to sort them in ascending order
+   * @return the matching documents, with `_id` as a hex string like our
+   *   JSON has it, or null if the query or sort uses a field this table
+   *   doesn't keep
+   */
+  List<Map<String, Object>> find(ColumnQuery query, String sortField, boolean ascending) {
+    lock.readLock().lock();
+    try {
+      int sortColumn = fields.indexOf(sortField);
+      if (sortColumn < 0) {
+        return null;
+      }
+      RoaringBitmap matched = live.clone();
+      List<ColumnQuery.Condition> unindexed = new ArrayList<>();
+      for (ColumnQuery.Condition condition : query.conditions()) {
+        int field = fields.indexOf(condition.field());
+        if (field < 0) {
+          return null;
+        } else if (indexed[field] == null) {
+          unindexed.add(condition);
+        } else {
+          matched.and(indexed[field].matching(condition));
+        }
+      }
+      if (!unindexed.isEmpty()) {
+        matched = check(matched, unindexed);
+      }
+
+      int[] sorted = indexed[sortColumn] == null
+        ? sortStored(matched, stored[sortColumn], ascending)
+        : sortIndexed(matched, indexed[sortColumn], ascending);
+      List<Map<String, Object>> documents = new ArrayList<>(sorted.length);
+      for (int row : sorted) {
+        documents.add(document(row));
+      }
+      return documents;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // The rows whose stored fields the conditions accept.
+  private RoaringBitmap check(RoaringBitmap candidates, List<ColumnQuery.Condition> conditions) {
+    int[] columns = conditions.stream().mapToInt(condition -> fields.indexOf(condition.field())).toArray();
+    RoaringBitmap result = new RoaringBitmap();
+    IntIterator iterator = candidates.getIntIterator();
+    while (iterator.hasNext()) {
+      int row = iterator.next();
+      if (accepts(row, columns, conditions)) {
+        result.add(row);
+      }
+    }
+    return result;
+  }
+
+  private boolean accepts(int row, int[] columns, List<ColumnQuery.Condition> conditions) {
+    for (int i = 0; i < columns.length; i++) {
+      if (!conditions.get(i).test(stored[columns[i]][row])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Sorting on an indexed field just takes the rows of each value in
+  // turn; rows with the same value stay in the order they were added.
+  private static int[] sortIndexed(RoaringBitmap matched, IndexedColumn column, boolean ascending) {
+    int[] sorted = new int[matched.getCardinality()];
+    int count = 0;
+    // Mongo sorts documents missing the field first.
+    RoaringBitmap missing = new RoaringBitmap();
+    IntIterator iterator = matched.getIntIterator();
+    while (iterator.hasNext()) {
+      int row = iterator.next();
+      if (column.codes[row] == MISSING) {
+        missing.add(row);
+      }
+    }
+    if (ascending) {
+      count = append(missing, sorted, count);
+    }
+    List<Integer> codes = column.sortedCodes();
+    if (!ascending) {
+      Collections.reverse(codes);
+    }
+    for (int code : codes) {
+      count = append(RoaringBitmap.and(matched, column.rows.get(code)), sorted, count);
+    }
+    if (!ascending) {
+      append(missing, sorted, count);
+    }
+    return sorted;
+  }
+
+  private static int append(RoaringBitmap rows, int[] sorted, int count) {
+    IntIterator iterator = rows.getIntIterator();
+    int next = count;
+    while (iterator.hasNext()) {
+      sorted[next++] = iterator.next();
+    }
+    return next;
+  }
+
+  private static int[] sortStored(RoaringBitmap matched, Object[] column, boolean ascending) {
+    Integer[] sorted = Arrays.stream(matched.toArray()).boxed().toArray(Integer[]::new);
+    Arrays.sort(sorted, (a, b) -> ascending
+      ? ColumnQuery.compare(column[a], column[b])
+      : ColumnQuery.compare(column[b], column[a]));
+    return Arrays.stream(sorted).mapToInt(Integer::intValue).toArray();
+  }
+
+  // Turn a row back into a document. Must hold a lock.
+  private Map<String, Object> document(int row) {
+    Map<String, Object> document = new LinkedHashMap<>();
+    document.put("_id", ids[row].toHexString());
+    for (int field = 0; field < fields.size(); field++) {
+      Object value = indexed[field] == null ? stored[field][row] : indexed[field].get(row);
+      if (value != null) {
+        document.put(fields.get(field), value);
+      }
+    }
+    return document;
+  }
+
+  // Must hold the write lock.
+  private void set(ObjectId id, Map<String, ?> document) {
+    Integer row = rows.get(id);
+    if (row == null) {
+      row = rowCount++;
+      if (row == ids.length) {
+        grow(ids.length * 2);
+      }
+      ids[row] = id;
+      rows.put(id, row);
+      live.add(row);
+    }
+    for (int field = 0; field < fields.size(); field++) {
+      Object value = document.get(fields.get(field));
+      if (indexed[field] != null) {
+        indexed[field].set(row, value);
+      } else {
+        stored[field][row] = value;
+      }
+    }
+  }
+
+  private void grow(int capacity) {
+    ids = Arrays.copyOf(ids, capacity);
+    for (int field = 0; field < fields.size(); field++) {
+      if (indexed[field] != null) {
+        indexed[field].grow(capacity);
+      } else {
+        stored[field] = Arrays.copyOf(stored[field], capacity);
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package umm3601.encoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+
+import com.mongodb.client.MongoIterable;
+
+import org.bson.RawBsonDocument;
+
+import io.javalin.core.validation.BodyValidator;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.InternalServerErrorResponse;
+import io.javalin.plugin.json.JsonMapper;
+import io.javalin.plugin.json.JsonMapperKt;
+import io.opentelemetry.api.trace.Span;
+import umm3601.accesslog.AccessLog;
+import umm3601.mongo.RawJson;
+import umm3601.tracing.Tracing;
+
+/**
+ * Helpers that let controllers answer in whichever `Encoding` the client
+ * asked for with its `Accept` header, and accept request bodies in
+ * whichever `Encoding` their `Content-Type` says they're in.
+ * <p>
+ * JSON stays the default, and JSON requests and responses still go
+ * through Javalin's own `ctx.json` and `ctx.bodyValidator`, so
+ * nothing changes for clients that don't ask for anything else.
+ */
+public final class ContentNegotiation {
+
+  /**
+   * The most bytes of a raw JSON array `respondRaw` reads before it
+   * starts sending the response.
+   */
+  public static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+  private ContentNegotiation() {
+  }
+
+  /**
+   * Work out which encoding to answer a request in. We take the
+   * supported type with the highest `q` value in the `Accept` header,
+   * falling back on JSON if there's no header or nothing in it we support.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the encoding to respond with
+   */
+  public static Encoding responseEncoding(Context ctx) {
+    String accept = ctx.header("Accept");
+    if (accept == null) {
+      return Encoding.JSON;
+    }
+    Encoding best = Encoding.JSON;
+    double bestQuality = 0;
+    for (String range : accept.split(",")) {
+      String[] parts = range.split(";");
+      Encoding encoding = Encoding.forMediaType(parts[0].trim());
+      double quality = quality(parts);
+      if (encoding != null && quality > bestQuality) {
+        best = encoding;
+        bestQuality = quality;
+      }
+    }
+    return best;
+  }
+
+  private static double quality(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Double.parseDouble(param.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Send `value` as the response body, in the encoding the client asked for.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param value the object to send
+   */
+  public static void respond(Context ctx, Object value) {
+    Encoding encoding = responseEncoding(ctx);
+    ctx.header("Vary", "Accept");
+    if (value instanceof Collection) {
+      AccessLog.countResults(ctx, ((Collection<?>) value).size());
+    }
+    Span span = Tracing.tracer().spanBuilder("serialize " + encoding.getContentType()).startSpan();
+    try {
+      if (encoding == Encoding.JSON) {
+        ctx.json(value);
+        return;
+      }
+      ctx.contentType(encoding.getContentType());
+      ctx.result(encoding.getMapper().writeValueAsBytes(value));
+    } catch (IOException e) {
+      throw new InternalServerErrorResponse("Couldn't encode the response as " + encoding.getContentType());
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Send a raw BSON document as a JSON response body, transcoding it
+   * directly instead of going through a POJO. Only use this when
+   * `responseEncoding` is JSON.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param document the document to send
+   */
+  public static void respondRaw(Context ctx, RawBsonDocument document) {
+    ctx.header("Vary", "Accept");
+    ctx.contentType(Encoding.JSON.getContentType());
+    AccessLog.countResults(ctx, 1);
+    Span span = Tracing.tracer().spanBuilder("serialize raw " + Encoding.JSON.getContentType()).startSpan();
+    try {
+      ctx.result(RawJson.toBytes(document));
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * Send the results of a query for raw BSON documents as a JSON array.
+   * Only use this when `responseEncoding` is JSON.
+   * <p>
+   * The results are read and transcoded right away, while the handler
+   * still holds its limiter permit and a failed query (or one that runs
+   * out of time) still fails the request as usual. Only if they come to
+   * more than `MAX_BUFFERED_BYTES` is the rest read and written as
+   * Javalin sends the response; if the query fails then, the response is
+   * cut off before the array is closed (see `RawJson.arrayStream`).
+   * <p>
+   * Fields a document doesn't have are left out of its JSON, where
+   * Jackson would send a POJO's default (null, or false for a todo's
+   * status). Everything this server writes has every field, so that only
+   * shows for documents written some other way.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param documents the query whose results to send
+   */
+  public static void respondRaw(Context ctx, MongoIterable<RawBsonDocument> documents) {
+    ctx.header("Vary", "Accept");
+    ctx.contentType(Encoding.JSON.getContentType());
+    InputStream array = Tracing.traced("serialize raw " + Encoding.JSON.getContentType(),
+      RawJson.arrayStream(documents.iterator(), AccessLog.countResults(ctx, 0)));
+    byte[] buffered;
+    try {
+      buffered = array.readNBytes(MAX_BUFFERED_BYTES);
+    } catch (IOException e) {
+      closeQuietly(array);
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new UncheckedIOException(e);
+    }
+    if (buffered.length < MAX_BUFFERED_BYTES) {
+      // That's all of it, and the cursor is closed.
+      ctx.result(buffered);
+    } else {
+      ctx.result(new SequenceInputStream(new ByteArrayInputStream(buffered), array));
+    }
+  }
+
+  private static void closeQuietly(InputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      // It's already failed; there's nothing more to do.
+    }
+  }
+
+  /**
+   * Get a validator for the request body, decoding it from whatever
+   * encoding its `Content-Type` says it's in.
+   * <p>
+   * Binary bodies are transcoded to JSON before validation so that
+   * they're checked (and rejected) exactly the same way JSON bodies are.
+   * They're small, single documents, so that extra step is cheap.
+   *
+   * @param <T> the type the body should contain
+   * @param ctx a Javalin HTTP context
+   * @param clazz the class the body should contain
+   * @return a validator for the body
+   */
+  public static <T> BodyValidator<T> bodyValidator(Context ctx, Class<T> clazz) {
+    String contentType = ctx.contentType();
+    Encoding encoding = contentType == null ? null : Encoding.forMediaType(contentType.split(";")[0].trim());
+    if (encoding == null || encoding == Encoding.JSON) {
+      return ctx.bodyValidator(clazz);
+    }
+    String json;
+    try {
+      json = Encoding.JSON.getMapper().writeValueAsString(encoding.getMapper().readTree(ctx.bodyAsBytes()));
+    } catch (IOException e) {
+      throw new BadRequestResponse("The request body wasn't valid " + encoding.getContentType());
+    }
+    JsonMapper jsonMapper = ctx.appAttribute(JsonMapperKt.JSON_MAPPER_KEY);
+    return new BodyValidator<>(json, clazz, jsonMapper);
+  }
+}
@@ -0,0 +1,57 @@
+package umm3601.encoding;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+/**
+ * The wire formats the API can speak. They all encode the same Jackson
+ * model, so a `Todo` or `User` looks the same in each; the binary ones
+ * are just smaller and cheaper to produce and parse than JSON.
+ */
+public enum Encoding {
+  JSON("application/json", new JsonFactory()),
+  SMILE("application/x-jackson-smile", new SmileFactory()),
+  CBOR("application/cbor", new CBORFactory()),
+  MSGPACK("application/x-msgpack", new MessagePackFactory());
+
+  private final String contentType;
+  private final ObjectMapper mapper;
+
+  Encoding(String contentType, JsonFactory factory) {
+    this.contentType = contentType;
+    this.mapper = new ObjectMapper(factory).findAndRegisterModules();
+  }
+
+  /**
+   * @return the MIME type for this encoding
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return a Jackson mapper that reads and writes this encoding
+   */
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /**
+   * Find the encoding for a MIME type.
+   *
+   * @param mediaType a MIME type, without any parameters
+   * @return the matching encoding, or null if we don't support that type
+   */
+  public static Encoding forMediaType(String mediaType) {
+    for (Encoding encoding : values()) {
+      if (encoding.contentType.equalsIgnoreCase(mediaType)) {
+        return encoding;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,187 @@
+package umm3601.export;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+import umm3601.accesslog.AccessLog;
+import umm3601.mongo.RawJson;
+
+/**
+ * Streams the results of a query straight from a Mongo cursor into
+ * the HTTP response, as either newline delimited JSON (NDJSON) or CSV.
+ * <p>
+ * Documents are written one at a time as they come off the cursor, and
+ * the cursor only fetches its next batch once we've written the last
+ * one. Since writes to the response block while the client is behind,
+ * a slow reader slows down how fast we pull from Mongo (backpressure),
+ * and memory use stays constant no matter how big the collection is.
+ */
+public final class CursorExporter {
+
+  public static final String FORMAT_KEY = "format";
+  public static final String GZIP_KEY = "gzip";
+
+  // How many documents Mongo sends back per round trip
+  private static final int BATCH_SIZE = 1000;
+  // Buffer sizes that keep writes to the servlet reasonably large
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The formats we can export in.
+   */
+  public enum Format {
+    NDJSON("application/x-ndjson", "ndjson"),
+    CSV("text/csv", "csv");
+
+    private final String contentType;
+    private final String extension;
+
+    Format(String contentType, String extension) {
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+  }
+
+  private CursorExporter() {
+  }
+
+  /**
+   * Work out the export format a request asks for, from its `format`
+   * query param (`ndjson` or `csv`), or failing that its `Accept` header.
+   * The default is NDJSON.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the format to export in
+   */
+  public static Format formatFor(Context ctx) {
+    String format = ctx.queryParam(FORMAT_KEY);
+    if (format != null) {
+      for (Format candidate : Format.values()) {
+        if (candidate.extension.equalsIgnoreCase(format)) {
+          return candidate;
+        }
+      }
+      throw new BadRequestResponse("The export format must be either 'ndjson' or 'csv'");
+    }
+    String accept = ctx.header("Accept");
+    if (accept != null && accept.contains(Format.CSV.contentType)) {
+      return Format.CSV;
+    }
+    return Format.NDJSON;
+  }
+
+  /**
+   * Stream every document a query returns into the response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param documents the query to export the results of
+   * @param name the base name for the downloaded file, e.g., "todos"
+   * @param columns the fields to include, in order, in a CSV export
+   *   (NDJSON exports include whatever fields the query returns)
+   * @throws IOException if the client goes away part way through
+   */
+  public static void export(Context ctx, FindIterable<RawBsonDocument> documents, String name, List<String> columns)
+      throws IOException {
+    Format format = formatFor(ctx);
+    // An explicit `gzip` parameter wins; without one, gzip if the client
+    // accepts it.
+    String gzipParam = ctx.queryParam(GZIP_KEY);
+    String acceptEncoding = ctx.header("Accept-Encoding");
+    boolean gzip = gzipParam != null
+      ? Boolean.parseBoolean(gzipParam)
+      : acceptEncoding != null && acceptEncoding.contains("gzip");
+
+    // Open the cursor before we commit to a 200, so a bad query still
+    // gets a proper error response.
+    try (MongoCursor<RawBsonDocument> cursor = documents.batchSize(BATCH_SIZE).iterator()) {
+      ctx.status(HttpCode.OK);
+      ctx.contentType(format.contentType);
+      ctx.header("Content-Disposition", "attachment; filename=\"" + name + "." + format.extension + "\"");
+      if (gzip) {
+        ctx.header("Content-Encoding", "gzip");
+      }
+
+      OutputStream out = ctx.res.getOutputStream();
+      if (gzip) {
+        out = new GZIPOutputStream(out, WRITE_BUFFER_SIZE);
+      }
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+          WRITE_BUFFER_SIZE)) {
+        long count = format == Format.CSV ? writeCsv(cursor, columns, writer) : writeNdjson(cursor, writer);
+        AccessLog.countResults(ctx, count);
+      }
+    }
+  }
+
+  // Returns how many documents were written, as does `writeCsv`.
+  static long writeNdjson(MongoCursor<RawBsonDocument> cursor, Writer writer) throws IOException {
+    long count = 0;
+    while (cursor.hasNext()) {
+      RawJson.write(cursor.next(), writer);
+      writer.write('\n');
+      count++;
+    }
+    return count;
+  }
+
+  static long writeCsv(MongoCursor<RawBsonDocument> cursor, List<String> columns, Writer writer)
+      throws IOException {
+    writer.write(String.join(",", columns));
+    writer.write("\r\n");
+    long count = 0;
+    while (cursor.hasNext()) {
+      count++;
+      RawBsonDocument document = cursor.next();
+      for (int i = 0; i < columns.size(); i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writer.write(csvField(document.get(columns.get(i))));
+      }
+      writer.write("\r\n");
+    }
+    return count;
+  }
+
+  // Turn a BSON value into a CSV field, quoting it if it needs it.
+  static String csvField(BsonValue value) {
+    if (value == null || value.isNull()) {
+      return "";
+    }
+    String text;
+    if (value.isString()) {
+      text = value.asString().getValue();
+    } else if (value.isObjectId()) {
+      text = value.asObjectId().getValue().toHexString();
+    } else if (value.isBoolean()) {
+      text = String.valueOf(value.asBoolean().getValue());
+    } else if (value.isInt32()) {
+      text = String.valueOf(value.asInt32().getValue());
+    } else if (value.isInt64()) {
+      text = String.valueOf(value.asInt64().getValue());
+    } else if (value.isDouble()) {
+      text = String.valueOf(value.asDouble().getValue());
+    } else {
+      text = value.toString();
+    }
+    if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0) {
+      return '"' + text.replace("\"", "\"\"") + '"';
+    }
+    return text;
+  }
+}
@@ -0,0 +1,124 @@
+package umm3601.health;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpCode;
+
+/**
+ * Controller for the health checks a load balancer uses to decide
+ * whether to send this instance traffic.
+ * <p>
+ * `/health/live` just says the process is up and serving requests. If
+ * it stops answering, the instance should be restarted.
+ * <p>
+ * `/health/ready` says whether the instance should be given more
+ * requests right now. It isn't ready if Mongo hasn't answered a recent
+ * ping (see `MongoPinger`), or if any of its saturation checks (how full
+ * the Mongo connection pool is, how many Jetty threads are busy, etc.)
+ * has reached its threshold. That way traffic moves off an instance as
+ * it fills up, before its latency blows up, and comes back once it has
+ * caught up.
+ */
+public class HealthController {
+
+  // One saturation check: a current value, and the value at which
+  // the instance stops being ready.
+  private static final class Saturation {
+    private final String name;
+    private final Supplier<? extends Number> value;
+    private final double threshold;
+
+    private Saturation(String name, Supplier<? extends Number> value, double threshold) {
+      this.name = name;
+      this.value = value;
+      this.threshold = threshold;
+    }
+  }
+
+  private final MongoPinger pinger;
+  private final List<Saturation> saturations = new ArrayList<>();
+
+  /**
+   * Construct a controller.
+   *
+   * @param pinger keeps track of whether Mongo is answering pings
+   */
+  public HealthController(MongoPinger pinger) {
+    this.pinger = pinger;
+  }
+
+  /**
+   * Add a saturation check, which makes the instance not ready whenever
+   * `value` is at or above `threshold`.
+   *
+   * @param name what the check is called in the readiness report
+   * @param value the current value, e.g., the fraction of a pool in use
+   * @param threshold the value at which the instance stops being ready
+   * @return this controller, so checks can be chained
+   */
+  public HealthController saturation(String name, Supplier<? extends Number> value, double threshold) {
+    saturations.add(new Saturation(name, value, threshold));
+    return this;
+  }
+
+  /**
+   * Report that the server is alive.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getLive(Context ctx) {
+    ctx.json(Map.of("status", "live"));
+  }
+
+  /**
+   * Report whether the server is ready for more requests, with a 200
+   * (OK) if it is and a 503 (Service Unavailable) if it isn't. Either
+   * way the body says how each check went.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getReady(Context ctx) {
+    Map<String, Object> report = readiness();
+    ctx.status((boolean) report.get("ready") ? HttpCode.OK : HttpCode.SERVICE_UNAVAILABLE);
+    ctx.json(report);
+  }
+
+  /**
+   * @return whether the server is ready, along with how each check went
+   */
+  public Map<String, Object> readiness() {
+    boolean ready = true;
+
+    Map<String, Object> mongo = new LinkedHashMap<>();
+    boolean reachable = pinger.isReachable();
+    mongo.put("ok", reachable);
+    mongo.put("pingMs", pinger.getLastLatencyMs());
+    if (pinger.getLastError() != null) {
+      mongo.put("error", pinger.getLastError());
+    }
+    ready &= reachable;
+
+    Map<String, Object> checks = new LinkedHashMap<>();
+    for (Saturation saturation : saturations) {
+      double value = saturation.value.get().doubleValue();
+      boolean ok = value < saturation.threshold;
+      Map<String, Object> check = new LinkedHashMap<>();
+      check.put("ok", ok);
+      check.put("value", value);
+      check.put("threshold", saturation.threshold);
+      checks.put(saturation.name, check);
+      ready &= ok;
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("ready", ready);
+    report.put("mongo", mongo);
+    report.put("saturation", checks);
+    return report;
+  }
+}
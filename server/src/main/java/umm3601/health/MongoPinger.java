@@ -0,0 +1,114 @@
+package umm3601.health;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pings Mongo every so often, in the background, and remembers how that
+ * went.
+ * <p>
+ * Readiness checks come in often and have to answer quickly, even (in
+ * fact especially) when Mongo is slow or unreachable, when a ping could
+ * block until the driver's server selection times out. So the checks
+ * never ping Mongo themselves; they ask this whether the last successful
+ * ping was recent enough.
+ */
+public class MongoPinger {
+
+  public static final long DEFAULT_INTERVAL_MS = 2000;
+
+  // How many intervals can go by without a successful ping before
+  // Mongo counts as unreachable.
+  private static final int MISSED_PINGS = 3;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MongoPinger.class);
+
+  private final Runnable ping;
+  private final long intervalMs;
+
+  private volatile long lastSuccessNanos;
+  private volatile boolean everSucceeded;
+  private volatile long lastLatencyMs = -1;
+  private volatile String lastError;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a pinger.
+   *
+   * @param ping pings Mongo, throwing if it can't (e.g., by running the
+   *   `ping` command)
+   * @param intervalMs how often to ping, in milliseconds
+   */
+  public MongoPinger(Runnable ping, long intervalMs) {
+    this.ping = ping;
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Start pinging in the background.
+   */
+  public void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "mongo-pinger");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::pingNow, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop pinging.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Ping Mongo once, now, and remember how it went.
+   */
+  public void pingNow() {
+    long start = System.nanoTime();
+    try {
+      ping.run();
+      long end = System.nanoTime();
+      lastLatencyMs = TimeUnit.NANOSECONDS.toMillis(end - start);
+      lastSuccessNanos = end;
+      everSucceeded = true;
+      lastError = null;
+    } catch (RuntimeException e) {
+      if (lastError == null) {
+        LOGGER.warn("Couldn't ping Mongo", e);
+      }
+      lastError = e.toString();
+    }
+  }
+
+  /**
+   * @return whether Mongo answered a ping within the last few intervals
+   */
+  public boolean isReachable() {
+    return everSucceeded
+      && System.nanoTime() - lastSuccessNanos <= TimeUnit.MILLISECONDS.toNanos(intervalMs * MISSED_PINGS);
+  }
+
+  /**
+   * @return how long the last successful ping took, or -1 if none has
+   */
+  public long getLastLatencyMs() {
+    return lastLatencyMs;
+  }
+
+  /**
+   * @return what went wrong with the last ping, or null if it worked
+   */
+  public String getLastError() {
+    return lastError;
+  }
+}
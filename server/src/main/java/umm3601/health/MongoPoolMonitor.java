@@ -0,0 +1,85 @@
+package umm3601.health;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+
+/**
+ * Keeps track of how much of the Mongo connection pool is in use, using
+ * the driver's connection pool events.
+ * <p>
+ * The driver keeps a pool per server. The counts are totals across all
+ * of them, but the usage is that of the busiest pool: with a replica
+ * set, nearly everything goes to the primary, and its pool running out
+ * is what matters, however idle the secondaries' pools are.
+ */
+public class MongoPoolMonitor extends ConnectionPoolListenerAdapter {
+
+  // One server's pool.
+  private static final class Pool {
+    private volatile int maxSize;
+    private final AtomicInteger checkedOut = new AtomicInteger();
+  }
+
+  private final Map<ServerId, Pool> pools = new ConcurrentHashMap<>();
+
+  private Pool pool(ServerId server) {
+    return pools.computeIfAbsent(server, id -> new Pool());
+  }
+
+  @Override
+  public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+    pool(event.getServerId()).maxSize = event.getSettings().getMaxSize();
+  }
+
+  @Override
+  public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+    pools.remove(event.getServerId());
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    pool(event.getConnectionId().getServerId()).checkedOut.incrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+    Pool pool = pools.get(event.getConnectionId().getServerId());
+    if (pool != null) {
+      pool.checkedOut.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return how many connections are checked out right now, from all
+   *   the pools
+   */
+  public int getCheckedOut() {
+    return pools.values().stream().mapToInt(pool -> pool.checkedOut.get()).sum();
+  }
+
+  /**
+   * @return the most connections the pools will hand out between them
+   */
+  public int getMaxSize() {
+    return pools.values().stream().mapToInt(pool -> pool.maxSize).sum();
+  }
+
+  /**
+   * @return the fraction (0 to 1) of the busiest pool's connections in use
+   */
+  public double getUsage() {
+    return pools.values().stream()
+      .filter(pool -> pool.maxSize > 0)
+      .mapToDouble(pool -> (double) pool.checkedOut.get() / pool.maxSize)
+      .max()
+      .orElse(0);
+  }
+}
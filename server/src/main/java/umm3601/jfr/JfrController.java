@@ -0,0 +1,129 @@
+package umm3601.jfr;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ConflictResponse;
+import io.javalin.http.Context;
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Controller for starting and stopping a Java Flight Recorder recording,
+ * so we can profile the server in production and look at the recording
+ * (with our `RequestEvent`s and `MongoCommandEvent`s alongside the JVM's
+ * own GC, allocation and locking events) in JDK Mission Control.
+ * <p>
+ * There's at most one recording at a time. It's bounded by age and size,
+ * so one that's left running doesn't fill up the disk.
+ */
+public class JfrController {
+
+  public static final long DEFAULT_MAX_AGE_SECONDS = 600;
+  public static final long DEFAULT_MAX_SIZE_BYTES = 256L * 1024 * 1024;
+
+  private Recording recording;
+
+  /**
+   * Construct a controller, and register our event types so recordings
+   * know about them before the first request or Mongo command.
+   */
+  public JfrController() {
+    FlightRecorder.register(RequestEvent.class);
+    FlightRecorder.register(MongoCommandEvent.class);
+  }
+
+  /**
+   * Start a recording. The `settings` query parameter names the JFR
+   * configuration to use ("default", the default, which is meant to be
+   * cheap enough to leave running, or "profile", which records more),
+   * and `maxAgeSeconds` how much of the recording to keep.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public synchronized void startRecording(Context ctx) {
+    if (recording != null) {
+      throw new ConflictResponse("A recording is already running");
+    }
+    String settings = ctx.queryParamAsClass("settings", String.class)
+      .check(name -> name.equals("default") || name.equals("profile"), "settings must be default or profile")
+      .getOrDefault("default");
+    long maxAgeSeconds = ctx.queryParamAsClass("maxAgeSeconds", Long.class)
+      .check(age -> age > 0, "maxAgeSeconds must be positive")
+      .getOrDefault(DEFAULT_MAX_AGE_SECONDS);
+
+    Recording started;
+    try {
+      started = new Recording(Configuration.getConfiguration(settings));
+    } catch (IOException | ParseException e) {
+      throw new BadRequestResponse("Couldn't load the " + settings + " JFR settings: " + e);
+    }
+    started.setName("umm3601-" + Instant.now());
+    started.setMaxAge(Duration.ofSeconds(maxAgeSeconds));
+    started.setMaxSize(DEFAULT_MAX_SIZE_BYTES);
+    started.start();
+    recording = started;
+    ctx.json(status());
+  }
+
+  /**
+   * Stop the recording, and send it as a `.jfr` file to open in JDK
+   * Mission Control.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void stopRecording(Context ctx) {
+    Recording stopped;
+    synchronized (this) {
+      if (recording == null) {
+        throw new ConflictResponse("No recording is running");
+      }
+      stopped = recording;
+      recording = null;
+    }
+    try {
+      Path file = Files.createTempFile("umm3601-", ".jfr");
+      stopped.stop();
+      stopped.dump(file);
+      stopped.close();
+      ctx.contentType("application/octet-stream");
+      ctx.header("Content-Disposition", "attachment; filename=\"" + file.getFileName() + "\"");
+      // The file goes away once it's been sent.
+      ctx.result(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Get a JSON object describing the running recording, if there is one.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getRecording(Context ctx) {
+    ctx.json(status());
+  }
+
+  private synchronized Map<String, Object> status() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("recording", recording != null && recording.getState() == RecordingState.RUNNING);
+    if (recording != null) {
+      status.put("name", recording.getName());
+      status.put("startTime", String.valueOf(recording.getStartTime()));
+      status.put("maxAgeSeconds", recording.getMaxAge().toSeconds());
+      status.put("size", recording.getSize());
+    }
+    return status;
+  }
+}
@@ -0,0 +1,45 @@
+package umm3601.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for one command sent to Mongo; see
+ * `MongoEvents`, which creates them.
+ */
+@Name("umm3601.MongoCommand")
+@Label("Mongo Command")
+@Category({ "umm3601", "Mongo" })
+@Description("A command sent to Mongo, from sending it to getting its reply")
+final class MongoCommandEvent extends Event {
+
+  @Label("Command")
+  private String command;
+
+  @Label("Database")
+  private String database;
+
+  @Label("Collection")
+  private String collection;
+
+  @Label("Filter Shape")
+  @Description("What the command filters on, with every value replaced by \"?\"")
+  private String filterShape;
+
+  @Label("Failed")
+  private boolean failed;
+
+  void describe(String commandName, String databaseName, String collectionName, String shape) {
+    this.command = commandName;
+    this.database = databaseName;
+    this.collection = collectionName;
+    this.filterShape = shape;
+  }
+
+  void setFailed(boolean failed) {
+    this.failed = failed;
+  }
+}
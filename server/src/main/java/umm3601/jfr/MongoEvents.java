@@ -0,0 +1,69 @@
+package umm3601.jfr;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonValue;
+
+import umm3601.slowquery.QueryShapes;
+
+/**
+ * Turns the driver's command events into `MongoCommandEvent`s for Java
+ * Flight Recorder.
+ * <p>
+ * When no recording wants Mongo events, this does nothing more than
+ * check that, so it's cheap enough to leave registered all the time.
+ */
+public class MongoEvents implements CommandListener {
+
+  // The commands that have a filter worth recording the shape of.
+  private static final Set<String> FILTERED_COMMANDS =
+    Set.of("find", "aggregate", "count", "distinct", "delete", "update", "findAndModify");
+
+  private final Map<Integer, MongoCommandEvent> started = new ConcurrentHashMap<>();
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    MongoCommandEvent jfrEvent = new MongoCommandEvent();
+    if (!jfrEvent.isEnabled()) {
+      return;
+    }
+    jfrEvent.begin();
+    // The command document is only good until this returns, so work out
+    // everything we need from it now.
+    String commandName = event.getCommandName();
+    BsonValue collectionName = event.getCommand().get(commandName);
+    jfrEvent.describe(commandName, event.getDatabaseName(),
+      collectionName != null && collectionName.isString() ? collectionName.asString().getValue() : null,
+      FILTERED_COMMANDS.contains(commandName) ? QueryShapes.shapeOf(commandName, event.getCommand()) : null);
+    started.put(event.getRequestId(), jfrEvent);
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    finished(event.getRequestId(), false);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    finished(event.getRequestId(), true);
+  }
+
+  private void finished(int requestId, boolean failed) {
+    MongoCommandEvent jfrEvent = started.remove(requestId);
+    if (jfrEvent == null) {
+      return;
+    }
+    jfrEvent.end();
+    if (jfrEvent.shouldCommit()) {
+      jfrEvent.setFailed(failed);
+      jfrEvent.commit();
+    }
+  }
+}
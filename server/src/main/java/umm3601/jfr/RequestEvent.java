@@ -0,0 +1,109 @@
+package umm3601.jfr;
+
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.javalin.http.Context;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import umm3601.accesslog.AccessLog;
+
+/**
+ * A Java Flight Recorder event for one API request, from when it reaches
+ * our handlers until its response has been written.
+ * <p>
+ * The event is begun by a `before` handler and committed by Javalin's
+ * request logger (so it includes streaming the response), both on the
+ * request's thread. That lets JDK Mission Control line it up with the GC
+ * pauses, allocation and lock contention that happened during it.
+ */
+@Name("umm3601.Request")
+@Label("API Request")
+@Category({ "umm3601", "HTTP" })
+@Description("An API request handled by one of the controllers")
+public final class RequestEvent extends Event {
+
+  // The context attribute holding a request's event.
+  private static final String EVENT_KEY = "jfr.requestEvent";
+
+  @Label("Method")
+  private String method;
+
+  @Label("Route")
+  @Description("The route's path pattern, e.g., /api/users/{id}")
+  private String route;
+
+  @Label("Filter Shape")
+  @Description("The names of the query parameters the request used, sorted")
+  private String filterShape;
+
+  @Label("Status")
+  private int status;
+
+  @Label("Result Count")
+  @Description("How many results were sent, or -1 if the response wasn't a list of results")
+  private long resultCount;
+
+  @Label("Trace ID")
+  private String traceId;
+
+  private RequestEvent() {
+  }
+
+  /**
+   * Begin timing a request, if a recording wants request events; use
+   * this as a `before` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void begin(Context ctx) {
+    RequestEvent event = new RequestEvent();
+    if (event.isEnabled()) {
+      event.begin();
+      ctx.attribute(EVENT_KEY, event);
+    }
+  }
+
+  /**
+   * Finish timing a request, and commit its event if there is one and
+   * it's long enough to record; call this from the request logger.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public static void end(Context ctx) {
+    RequestEvent event = ctx.attribute(EVENT_KEY);
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      event.fill(ctx);
+      event.commit();
+    }
+  }
+
+  private void fill(Context ctx) {
+    method = ctx.method();
+    route = route(ctx);
+    filterShape = String.join(",", new TreeSet<>(ctx.queryParamMap().keySet()));
+    status = ctx.status();
+    AtomicLong count = ctx.attribute(AccessLog.RESULT_COUNT_KEY);
+    resultCount = count == null ? -1 : count.get();
+    SpanContext span = Span.current().getSpanContext();
+    traceId = span.isValid() ? span.getTraceId() : null;
+  }
+
+  private static String route(Context ctx) {
+    try {
+      String pattern = ctx.endpointHandlerPath();
+      return pattern == null || pattern.isEmpty() ? ctx.path() : pattern;
+    } catch (IllegalStateException e) {
+      return ctx.path();
+    }
+  }
+}
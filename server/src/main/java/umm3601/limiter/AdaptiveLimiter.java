@@ -0,0 +1,227 @@
+package umm3601.limiter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.MongoTimeoutException;
+
+import io.javalin.http.Handler;
+import io.javalin.http.HttpCode;
+import io.javalin.http.HttpResponseException;
+import io.javalin.http.ServiceUnavailableResponse;
+import umm3601.metrics.MetricsRegistry;
+import umm3601.mongo.Deadlines;
+
+/**
+ * An adaptive (AIMD) limit on the number of requests that are
+ * allowed to be talking to Mongo at the same time.
+ * <p>
+ * Every completed request that talked to Mongo gives us a latency
+ * sample. We keep track of the "no load" latency (a low percentile of
+ * the last `BASELINE_WINDOW` samples), and as long as requests finish
+ * within `tolerance` times that, we slowly raise the limit (additive
+ * increase). As soon as latency
+ * climbs past that, or Mongo times out on us, we cut the limit by
+ * `backoffRatio` (multiplicative decrease). Requests that arrive
+ * when we're already at the limit are rejected right away with a
+ * 503 and a `Retry-After` header instead of queueing up in Jetty.
+ * <p>
+ * Requests that never reach Mongo (e.g., ones answered from memory),
+ * or that fail with a 4xx, say nothing about how Mongo is doing, and
+ * they're fast enough to drag the no-load latency down until every real
+ * query looks slow, so they aren't sampled. Neither are Mongo timeouts
+ * of requests whose client asked for less time than the default (see
+ * `Deadline.isShortenedByClient`). Telling whether a request reached
+ * Mongo needs the client to have a `MongoCommandCounter`.
+ */
+public class AdaptiveLimiter {
+
+  public static final int DEFAULT_INITIAL_LIMIT = 20;
+  public static final int DEFAULT_MIN_LIMIT = 1;
+  public static final int DEFAULT_MAX_LIMIT = 200;
+
+  private static final double DEFAULT_BACKOFF_RATIO = 0.9;
+  private static final double DEFAULT_TOLERANCE = 2.0;
+  // The no-load latency is this percentile of the last `BASELINE_WINDOW`
+  // samples, worked out again every `BASELINE_REFRESH` samples, so one
+  // lucky sample can't pin it forever.
+  private static final int BASELINE_WINDOW = 100;
+  private static final int BASELINE_REFRESH = 10;
+  private static final double BASELINE_PERCENTILE = 0.1;
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double tolerance;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder rejected;
+  private final LongAdder timedOut;
+
+  private double limit;
+  private double noLoadNanos = Double.MAX_VALUE;
+  private final long[] recentNanos = new long[BASELINE_WINDOW];
+  private long samples;
+
+  /**
+   * Construct a limiter with the default limits.
+   *
+   * @param metrics the registry to export the limit and rejection counts to
+   * @param name the prefix to use for this limiter's metrics
+   */
+  public AdaptiveLimiter(MetricsRegistry metrics, String name) {
+    this(metrics, name, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+  }
+
+  /**
+   * Construct a limiter.
+   *
+   * @param metrics the registry to export the limit and rejection counts to
+   * @param name the prefix to use for this limiter's metrics
+   * @param initialLimit the limit to start with before we've seen any latencies
+   * @param minLimit the limit will never drop below this
+   * @param maxLimit the limit will never climb above this
+   */
+  public AdaptiveLimiter(MetricsRegistry metrics, String name, int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = DEFAULT_BACKOFF_RATIO;
+    this.tolerance = DEFAULT_TOLERANCE;
+    this.limit = initialLimit;
+
+    this.rejected = metrics.counter(name + ".rejected");
+    this.timedOut = metrics.counter(name + ".timedOut");
+    metrics.gauge(name + ".limit", this::getLimit);
+    metrics.gauge(name + ".inFlight", inFlight::get);
+  }
+
+  /**
+   * @return the current (whole number) limit on in-flight requests
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  /**
+   * @return the number of requests currently holding a permit
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Try to claim a permit to run a request.
+   *
+   * @return true if the caller got a permit (and so must later call `release`),
+   *   false if we're at the limit and the request should be shed
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= getLimit()) {
+        rejected.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back a permit and feed the observed latency into the limit.
+   *
+   * @param latencyNanos how long the request held its permit
+   * @param overloaded true if the request failed in a way that signals
+   *   Mongo is overloaded (e.g., a timeout), regardless of its latency
+   */
+  public void release(long latencyNanos, boolean overloaded) {
+    int inFlightAtRelease = inFlight.getAndDecrement();
+    if (overloaded) {
+      timedOut.increment();
+    }
+    onSample(latencyNanos, overloaded, inFlightAtRelease);
+  }
+
+  /**
+   * Give back a permit without a latency sample, for a request whose
+   * latency says nothing about how Mongo is doing.
+   */
+  public void release() {
+    inFlight.decrementAndGet();
+  }
+
+  private synchronized void onSample(long latencyNanos, boolean overloaded, int inFlightAtRelease) {
+    recentNanos[(int) (samples++ % BASELINE_WINDOW)] = latencyNanos;
+    if (samples < BASELINE_WINDOW) {
+      // Until the window fills, the fastest sample will do.
+      noLoadNanos = Math.min(noLoadNanos, latencyNanos);
+    } else if (samples % BASELINE_REFRESH == 0) {
+      long[] sorted = recentNanos.clone();
+      Arrays.sort(sorted);
+      noLoadNanos = sorted[(int) (BASELINE_WINDOW * BASELINE_PERCENTILE)];
+    }
+
+    if (overloaded || latencyNanos > noLoadNanos * tolerance) {
+      limit = Math.max(minLimit, limit * backoffRatio);
+    } else if (inFlightAtRelease * 2 >= limit) {
+      // Only grow when we're actually using a good chunk of the
+      // current limit; otherwise an idle server would creep up to
+      // `maxLimit` without ever having proved it can handle it.
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /**
+   * Wrap a handler so that it only runs if it can get a permit from
+   * this limiter, and otherwise fails fast with a 503.
+   *
+   * @param handler the handler to protect
+   * @return a handler that runs `handler` under this limiter
+   */
+  public Handler wrap(Handler handler) {
+    return ctx -> {
+      if (!tryAcquire()) {
+        ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+        throw new ServiceUnavailableResponse("The server is overloaded; please retry shortly");
+      }
+      long start = System.nanoTime();
+      long commandsBefore = MongoCommandCounter.onThisThread();
+      boolean overloaded = false;
+      boolean clientError = false;
+      try {
+        handler.handle(ctx);
+      } catch (MongoExecutionTimeoutException e) {
+        // Running out of time the client cut short isn't Mongo's fault,
+        // and says no more about Mongo than any other client error.
+        if (Deadlines.of(ctx).isShortenedByClient()) {
+          clientError = true;
+        } else {
+          overloaded = true;
+        }
+        throw e;
+      } catch (MongoSocketReadTimeoutException | MongoTimeoutException e) {
+        overloaded = true;
+        throw e;
+      } catch (HttpResponseException e) {
+        clientError = e.getStatus() < HttpCode.INTERNAL_SERVER_ERROR.getStatus();
+        throw e;
+      } finally {
+        clientError |= ctx.status() >= HttpCode.BAD_REQUEST.getStatus()
+          && ctx.status() < HttpCode.INTERNAL_SERVER_ERROR.getStatus();
+        if (overloaded || (!clientError && MongoCommandCounter.onThisThread() != commandsBefore)) {
+          release(System.nanoTime() - start, overloaded);
+        } else {
+          release();
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,40 @@
+package umm3601.limiter;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Counts the Mongo commands each thread sends, so `AdaptiveLimiter` can
+ * tell which requests actually talked to Mongo.
+ * <p>
+ * The sync driver sends commands (and so tells its listeners about
+ * them) on the thread that asked for them, which for us is the thread
+ * running the request's handler.
+ */
+public class MongoCommandCounter implements CommandListener {
+
+  private static final ThreadLocal<long[]> STARTED = ThreadLocal.withInitial(() -> new long[1]);
+
+  /**
+   * @return how many commands this thread has sent; only the difference
+   *   between two calls means anything
+   */
+  public static long onThisThread() {
+    return STARTED.get()[0];
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    STARTED.get()[0]++;
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+  }
+}
@@ -0,0 +1,29 @@
+package umm3601.metrics;
+
+import io.javalin.http.Context;
+
+/**
+ * Controller that exposes the current values in a `MetricsRegistry`.
+ */
+public class MetricsController {
+
+  private final MetricsRegistry registry;
+
+  /**
+   * Construct a controller for the given metrics.
+   *
+   * @param registry the registry whose values we'll report
+   */
+  public MetricsController(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Get a JSON object with the current value of every metric.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.json(registry.snapshot());
+  }
+}
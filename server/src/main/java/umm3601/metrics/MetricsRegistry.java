@@ -0,0 +1,54 @@
+package umm3601.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A very small registry of named counters and gauges.
+ * <p>
+ * Counters are `LongAdder`s so that they can be bumped from
+ * lots of request threads at once without contention. Gauges
+ * are just suppliers that get asked for their current value
+ * whenever somebody takes a snapshot of the registry.
+ */
+public class MetricsRegistry {
+
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Get the counter with the given name, creating it if it
+   * doesn't exist yet.
+   *
+   * @param name the name of the counter
+   * @return the (shared) counter with that name
+   */
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  /**
+   * Register a gauge whose value is computed on demand.
+   *
+   * @param name the name of the gauge
+   * @param value a supplier for the current value of the gauge
+   */
+  public void gauge(String name, Supplier<? extends Number> value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Take a snapshot of every counter and gauge in the registry.
+   *
+   * @return a map from metric name to its current value, sorted by name
+   */
+  public Map<String, Number> snapshot() {
+    Map<String, Number> result = new TreeMap<>();
+    counters.forEach((name, counter) -> result.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> result.put(name, gauge.get()));
+    return result;
+  }
+}
@@ -0,0 +1,145 @@
+package umm3601.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+
+/**
+ * The point in time by which a request has to be done.
+ * <p>
+ * Controllers use this to pass whatever time the request has left on
+ * to Mongo as `maxTimeMS`, so Mongo gives up on a query at the same
+ * time the client does instead of carrying on with work nobody
+ * will ever see.
+ */
+public final class Deadline {
+
+  /**
+   * A deadline that never expires; used when a request has no deadline,
+   * such as when a controller is called directly in a test.
+   */
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE, false);
+
+  private final long expiresAtNanos;
+  private final boolean shortenedByClient;
+
+  private Deadline(long expiresAtNanos, boolean shortenedByClient) {
+    this.expiresAtNanos = expiresAtNanos;
+    this.shortenedByClient = shortenedByClient;
+  }
+
+  /**
+   * @param millis how many milliseconds from now the deadline should be
+   * @return a deadline `millis` milliseconds from now
+   */
+  public static Deadline after(long millis) {
+    return after(millis, false);
+  }
+
+  /**
+   * @param millis how many milliseconds from now the deadline should be
+   * @param shortenedByClient whether the client asked for less time than
+   *   requests get by default
+   * @return a deadline `millis` milliseconds from now
+   */
+  public static Deadline after(long millis, boolean shortenedByClient) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), shortenedByClient);
+  }
+
+  /**
+   * @return true if the client asked for less time than requests get by
+   *   default, in which case running out of it says more about the client
+   *   than about how busy Mongo is
+   */
+  public boolean isShortenedByClient() {
+    return shortenedByClient;
+  }
+
+  /**
+   * @return true if this deadline can actually expire
+   */
+  public boolean isBounded() {
+    return this != NONE;
+  }
+
+  /**
+   * @return the number of milliseconds left before this deadline, which
+   *   will be zero or negative once it has passed
+   */
+  public long remainingMillis() {
+    if (!isBounded()) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime());
+  }
+
+  /**
+   * Make sure there is still time left before issuing an operation.
+   *
+   * @throws DeadlineExceededException if this deadline has already passed
+   */
+  public void check() {
+    if (isBounded() && remainingMillis() <= 0) {
+      throw new DeadlineExceededException();
+    }
+  }
+
+  // The time left to give Mongo as `maxTimeMS`. That's worked out once,
+  // and is never zero, since Mongo takes a `maxTimeMS` of zero as no limit.
+  private long maxTimeMillis() {
+    long remaining = remainingMillis();
+    if (remaining <= 0) {
+      throw new DeadlineExceededException();
+    }
+    return Math.max(1, remaining);
+  }
+
+  /**
+   * Limit a find to the time left on this deadline.
+   *
+   * @param <T> the type of the results
+   * @param find the find to limit
+   * @return `find`, with `maxTime` set if this deadline is bounded
+   * @throws DeadlineExceededException if this deadline has already passed
+   */
+  public <T> FindIterable<T> apply(FindIterable<T> find) {
+    return isBounded() ? find.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS) : find;
+  }
+
+  /**
+   * Limit an aggregation to the time left on this deadline.
+   *
+   * @param <T> the type of the results
+   * @param aggregate the aggregation to limit
+   * @return `aggregate`, with `maxTime` set if this deadline is bounded
+   * @throws DeadlineExceededException if this deadline has already passed
+   */
+  public <T> AggregateIterable<T> apply(AggregateIterable<T> aggregate) {
+    return isBounded() ? aggregate.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS) : aggregate;
+  }
+
+  /**
+   * Limit a `findOneAndDelete` to the time left on this deadline.
+   *
+   * @param options the options to limit
+   * @return `options`, with `maxTime` set if this deadline is bounded
+   * @throws DeadlineExceededException if this deadline has already passed
+   */
+  public FindOneAndDeleteOptions apply(FindOneAndDeleteOptions options) {
+    return isBounded() ? options.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS) : options;
+  }
+
+  /**
+   * Limit a `findOneAndUpdate` to the time left on this deadline.
+   *
+   * @param options the options to limit
+   * @return `options`, with `maxTime` set if this deadline is bounded
+   * @throws DeadlineExceededException if this deadline has already passed
+   */
+  public FindOneAndUpdateOptions apply(FindOneAndUpdateOptions options) {
+    return isBounded() ? options.maxTime(maxTimeMillis(), TimeUnit.MILLISECONDS) : options;
+  }
+}
@@ -0,0 +1,15 @@
+package umm3601.mongo;
+
+/**
+ * Thrown when a request's deadline passes before we get a chance to
+ * send an operation to Mongo.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+  /**
+   * Construct a new exception for a request that ran out of time.
+   */
+  public DeadlineExceededException() {
+    super("The request deadline passed before the database operation could run");
+  }
+}
@@ -0,0 +1,95 @@
+package umm3601.mongo;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * Assigns each request a `Deadline` and turns requests that run past
+ * theirs into clean 504 (Gateway Timeout) responses.
+ * <p>
+ * The deadline is `defaultMillis` from the start of the request, unless
+ * the client sends an `X-Request-Timeout-Ms` header asking for a
+ * different budget; that's capped at `maxMillis` so a client can't ask
+ * us to scan forever, and raised to at least `MIN_REQUESTED_MILLIS` so
+ * a client can't make its queries time out on purpose.
+ */
+public class Deadlines {
+
+  public static final String TIMEOUT_HEADER = "X-Request-Timeout-Ms";
+
+  /**
+   * The least time a client can ask for with `TIMEOUT_HEADER`.
+   */
+  public static final long MIN_REQUESTED_MILLIS = 100;
+
+  private static final String DEADLINE_ATTRIBUTE = "umm3601.deadline";
+
+  private final long defaultMillis;
+  private final long maxMillis;
+  private final LongAdder exceeded;
+
+  /**
+   * Construct a source of request deadlines.
+   *
+   * @param metrics the registry to count exceeded deadlines in
+   * @param defaultMillis the budget for requests that don't ask for one
+   * @param maxMillis the largest budget a client is allowed to ask for
+   */
+  public Deadlines(MetricsRegistry metrics, long defaultMillis, long maxMillis) {
+    this.defaultMillis = defaultMillis;
+    this.maxMillis = maxMillis;
+    this.exceeded = metrics.counter("deadline.exceeded");
+  }
+
+  /**
+   * Start the clock on a request. This is meant to be registered as a
+   * `before` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void start(Context ctx) {
+    long budget = defaultMillis;
+    String requested = ctx.header(TIMEOUT_HEADER);
+    if (requested != null) {
+      try {
+        budget = Math.min(maxMillis, Long.parseLong(requested.trim()));
+      } catch (NumberFormatException e) {
+        throw new BadRequestResponse("The " + TIMEOUT_HEADER + " header must be a number of milliseconds");
+      }
+      if (budget <= 0) {
+        throw new BadRequestResponse("The " + TIMEOUT_HEADER + " header must be positive");
+      }
+      budget = Math.max(MIN_REQUESTED_MILLIS, budget);
+    }
+    ctx.attribute(DEADLINE_ATTRIBUTE, Deadline.after(budget, budget < defaultMillis));
+  }
+
+  /**
+   * Handle a database operation that was cancelled because its request
+   * ran out of time. This is meant to be registered as an exception
+   * handler for both our own `DeadlineExceededException` and the
+   * driver's `MongoExecutionTimeoutException`.
+   *
+   * @param e the exception that cancelled the operation
+   * @param ctx a Javalin HTTP context
+   */
+  public void handleExceeded(Exception e, Context ctx) {
+    exceeded.increment();
+    throw new GatewayTimeoutResponse("The request took longer than its deadline allowed");
+  }
+
+  /**
+   * Get the deadline for a request.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the request's deadline, or `Deadline.NONE` if it doesn't have one
+   */
+  public static Deadline of(Context ctx) {
+    Deadline deadline = ctx.attribute(DEADLINE_ATTRIBUTE);
+    return deadline == null ? Deadline.NONE : deadline;
+  }
+}
@@ -0,0 +1,115 @@
+package umm3601.mongo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A Bloom filter of `ObjectId`s. It can say for certain that an ID was
+ * never added, but only that one probably was.
+ * <p>
+ * Its bits are an `AtomicLongArray`, so IDs can be added while other
+ * threads are checking for them, without any locking.
+ */
+final class IdBloomFilter {
+
+  private static final int BITS_PER_WORD = 64;
+
+  // Constants from MurmurHash3's 64-bit finalizer, and an odd constant
+  // (from the golden ratio) to tell the two hashes apart.
+  private static final long MIX_1 = 0xff51afd7ed558ccdL;
+  private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+  private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+  private static final int SHIFT = 33;
+
+  private static final int ID_HIGH_OFFSET = 0;
+  private static final int ID_LOW_OFFSET = 8;
+
+  private final AtomicLongArray bits;
+  private final long bitCount;
+  private final int hashCount;
+
+  /**
+   * Construct a filter sized to hold `capacity` IDs with about the given
+   * false positive rate.
+   *
+   * @param capacity how many IDs the filter should hold
+   * @param falsePositiveRate how often (0 to 1) an ID that was never
+   *   added should be reported as probably added, once the filter holds
+   *   `capacity` IDs
+   */
+  IdBloomFilter(long capacity, double falsePositiveRate) {
+    long n = Math.max(1, capacity);
+    long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    int words = (int) Math.max(1, (m + BITS_PER_WORD - 1) / BITS_PER_WORD);
+    this.bits = new AtomicLongArray(words);
+    this.bitCount = (long) words * BITS_PER_WORD;
+    this.hashCount = (int) Math.max(1, Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  /**
+   * @param id an ID to add to the filter
+   */
+  void put(ObjectId id) {
+    long h1 = hash(id);
+    long h2 = mix(h1 ^ GOLDEN) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      long mask = 1L << bit;
+      int word = (int) (bit / BITS_PER_WORD);
+      if ((bits.get(word) & mask) == 0) {
+        bits.getAndAccumulate(word, mask, (current, added) -> current | added);
+      }
+    }
+  }
+
+  /**
+   * @param id an ID to check for
+   * @return false if the ID was certainly never added, true if it
+   *   probably was
+   */
+  boolean mightContain(ObjectId id) {
+    long h1 = hash(id);
+    long h2 = mix(h1 ^ GOLDEN) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      long bit = Math.floorMod(h1 + i * h2, bitCount);
+      if ((bits.get((int) (bit / BITS_PER_WORD)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return how many bits the filter uses
+   */
+  long bitCount() {
+    return bitCount;
+  }
+
+  /**
+   * @return how many bits each ID sets
+   */
+  int hashCount() {
+    return hashCount;
+  }
+
+  // An `ObjectId` is 12 bytes: a timestamp, a random value per process
+  // and a counter. Only the counter changes between IDs made one after
+  // another, so everything has to be mixed together well.
+  private static long hash(ObjectId id) {
+    ByteBuffer bytes = ByteBuffer.wrap(id.toByteArray());
+    return mix(bytes.getLong(ID_HIGH_OFFSET) ^ mix(bytes.getInt(ID_LOW_OFFSET) + GOLDEN));
+  }
+
+  private static long mix(long value) {
+    long h = value;
+    h ^= h >>> SHIFT;
+    h *= MIX_1;
+    h ^= h >>> SHIFT;
+    h *= MIX_2;
+    h ^= h >>> SHIFT;
+    return h;
+  }
+}
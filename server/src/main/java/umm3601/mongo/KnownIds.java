@@ -0,0 +1,173 @@
+package umm3601.mongo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * The `_id`s that exist in a collection, kept in a Bloom filter (see
+ * `IdBloomFilter`), so that lookups of IDs that certainly don't exist
+ * can be answered with a 404 without asking Mongo.
+ * <p>
+ * The filter is built by scanning the collection's `_id` index, and
+ * controllers add to it as they insert documents. Deleted IDs stay in
+ * the filter (a Bloom filter can't forget), which only means lookups of
+ * them still go to Mongo, so the filter is rebuilt every so often to
+ * drop them, and to resize it as the collection grows.
+ * <p>
+ * Until the first build finishes, every ID might exist. Documents
+ * inserted by anything other than this server (another instance, or
+ * the seed loader) aren't in the filter until the next rebuild, so this
+ * should only be turned on when this server is the collection's only
+ * writer, or when a 404 for that long after such an insert is fine.
+ */
+public class KnownIds {
+
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+  public static final long DEFAULT_REBUILD_SECONDS = 300;
+
+  // The filter is sized for this many times the collection's current
+  // size, so it has room for inserts until the next rebuild.
+  private static final int GROWTH = 2;
+  private static final long MIN_CAPACITY = 1024;
+  private static final int SCAN_BATCH_SIZE = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KnownIds.class);
+
+  private final MongoCollection<BsonDocument> collection;
+  private final double falsePositiveRate;
+  private final LongAdder rejected;
+
+  // `current` is null until the first build finishes. While a rebuild
+  // is scanning the collection, `building` is the filter it's filling,
+  // and inserts go in both.
+  private volatile IdBloomFilter current;
+  private volatile IdBloomFilter building;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a set of known IDs; it's empty (and so allows any ID)
+   * until it's first built.
+   *
+   * @param collection the collection whose IDs to keep track of
+   * @param falsePositiveRate how often an ID that doesn't exist may get
+   *   past the filter (and so cost a trip to Mongo)
+   * @param metrics where to count the IDs the filter rejects
+   */
+  public KnownIds(MongoCollection<?> collection, double falsePositiveRate, MetricsRegistry metrics) {
+    this.collection = collection.withDocumentClass(BsonDocument.class)
+      .withReadPreference(ReadPreference.primary());
+    this.falsePositiveRate = falsePositiveRate;
+    String name = "idFilter." + collection.getNamespace().getCollectionName();
+    this.rejected = metrics.counter(name + ".rejected");
+    metrics.gauge(name + ".bits", () -> current == null ? 0 : current.bitCount());
+  }
+
+  /**
+   * Build the filter now, and then rebuild it in the background every
+   * `rebuildSeconds`.
+   *
+   * @param rebuildSeconds how often to rebuild the filter
+   */
+  public void start(long rebuildSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "known-ids-" + collection.getNamespace().getCollectionName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        rebuild();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't rebuild the ID filter for {}", collection.getNamespace(), e);
+      }
+    }, 0, rebuildSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop rebuilding the filter.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Build a new filter from every `_id` in the collection, and start
+   * using it.
+   */
+  public void rebuild() {
+    long capacity = Math.max(MIN_CAPACITY, collection.estimatedDocumentCount() * GROWTH);
+    IdBloomFilter filter = new IdBloomFilter(capacity, falsePositiveRate);
+    // Anything inserted from here on goes in the new filter, so it
+    // doesn't matter whether the scan sees it.
+    building = filter;
+    try {
+      for (BsonDocument document : collection.find()
+          .projection(Projections.include("_id"))
+          .hint(Indexes.ascending("_id"))
+          .batchSize(SCAN_BATCH_SIZE)) {
+        BsonValue id = document.get("_id");
+        if (id != null && id.isObjectId()) {
+          filter.put(id.asObjectId().getValue());
+        }
+      }
+      current = filter;
+    } finally {
+      building = null;
+    }
+  }
+
+  /**
+   * @param id an ID that has just been inserted
+   */
+  public void add(ObjectId id) {
+    // Read `building` before `current`: a rebuild sets `current` before
+    // it clears `building`, so if we miss one, we'll see the other.
+    IdBloomFilter next = building;
+    IdBloomFilter filter = current;
+    if (filter != null) {
+      filter.put(id);
+    }
+    if (next != null) {
+      next.put(id);
+    }
+  }
+
+  /**
+   * @param id an ID being looked up
+   * @return false if there's certainly no document with that ID, true
+   *   if there might be
+   */
+  public boolean mightContain(ObjectId id) {
+    IdBloomFilter filter = current;
+    if (filter == null || filter.mightContain(id)) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  /**
+   * @return whether the filter has been built, and so can reject IDs
+   */
+  public boolean isBuilt() {
+    return current != null;
+  }
+}
@@ -0,0 +1,126 @@
+package umm3601.mongo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.client.model.Updates;
+
+import org.bson.conversions.Bson;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * The fields of a collection that a `PATCH` may change, and how to check
+ * each of them. A controller registers its fields with `text`, `bool`
+ * and `integer`, and then `validate` turns a request body into the
+ * changes to make, checking only the fields the body actually changes.
+ */
+public class PatchFields {
+
+  /**
+   * How to check and convert one field's new value.
+   */
+  private static final class Rule {
+    private final Predicate<JsonNode> isType;
+    private final Function<JsonNode, Object> value;
+    private final Predicate<Object> check;
+    private final String message;
+
+    private Rule(Predicate<JsonNode> isType, Function<JsonNode, Object> value, Predicate<Object> check,
+        String message) {
+      this.isType = isType;
+      this.value = value;
+      this.check = check;
+      this.message = message;
+    }
+  }
+
+  private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+  /**
+   * Allow a string field to be changed.
+   *
+   * @param field the field's name
+   * @param check what a legal value looks like
+   * @param message what to tell the client when a value isn't legal
+   * @return this, so calls can be chained
+   */
+  public PatchFields text(String field, Predicate<String> check, String message) {
+    rules.put(field, new Rule(JsonNode::isTextual, JsonNode::textValue, v -> check.test((String) v), message));
+    return this;
+  }
+
+  /**
+   * Allow a boolean field to be changed; any boolean is legal.
+   *
+   * @param field the field's name
+   * @return this, so calls can be chained
+   */
+  public PatchFields bool(String field) {
+    rules.put(field, new Rule(JsonNode::isBoolean, JsonNode::booleanValue, v -> true,
+      "The " + field + " must be true or false"));
+    return this;
+  }
+
+  /**
+   * Allow an integer field to be changed.
+   *
+   * @param field the field's name
+   * @param check what a legal value looks like
+   * @param message what to tell the client when a value isn't legal
+   * @return this, so calls can be chained
+   */
+  public PatchFields integer(String field, Predicate<Integer> check, String message) {
+    rules.put(field, new Rule(JsonNode::isInt, JsonNode::intValue, v -> check.test((Integer) v), message));
+    return this;
+  }
+
+  /**
+   * Check the changes in a `PATCH` body.
+   *
+   * @param body the request body, a JSON object of fields to change
+   * @return the new value of each changed field, in the order given
+   * @throws BadRequestResponse if the body is empty, tries to change a
+   *   field that can't be changed, or gives a field an illegal value
+   */
+  public Map<String, Object> validate(JsonNode body) {
+    if (body == null || !body.isObject() || body.size() == 0) {
+      throw new BadRequestResponse("A patch must be an object with at least one field to change");
+    }
+    Map<String, Object> changes = new LinkedHashMap<>();
+    Iterator<Map.Entry<String, JsonNode>> fields = body.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      Rule rule = rules.get(field.getKey());
+      if (rule == null) {
+        throw new BadRequestResponse("The field " + field.getKey() + " can't be changed; only "
+          + String.join(", ", rules.keySet()) + " can");
+      }
+      if (!rule.isType.test(field.getValue())) {
+        throw new BadRequestResponse(rule.message);
+      }
+      Object value = rule.value.apply(field.getValue());
+      if (!rule.check.test(value)) {
+        throw new BadRequestResponse(rule.message);
+      }
+      changes.put(field.getKey(), value);
+    }
+    return changes;
+  }
+
+  /**
+   * @param changes the changes to make, as returned by `validate`
+   * @return a single update that `$set`s all of them
+   */
+  public static Bson toUpdate(Map<String, Object> changes) {
+    List<Bson> sets = new ArrayList<>();
+    changes.forEach((field, value) -> sets.add(Updates.set(field, value)));
+    return Updates.combine(sets);
+  }
+}
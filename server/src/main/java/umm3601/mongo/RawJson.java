@@ -0,0 +1,189 @@
+package umm3601.mongo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.client.MongoCursor;
+
+import org.bson.BsonBinaryReader;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Transcodes raw BSON documents straight into JSON bytes, without
+ * decoding them into POJOs (or any other objects) along the way.
+ * <p>
+ * The JSON has the same shape Jackson gives our POJOs: plain numbers
+ * and booleans, and `_id` as a plain hex string rather than Mongo's
+ * extended JSON `{"$oid": ...}`.
+ */
+public final class RawJson {
+
+  private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder()
+    .outputMode(JsonMode.RELAXED)
+    .objectIdConverter((id, writer) -> writer.writeString(id.toHexString()))
+    .build();
+
+  private static final int BYTE_MASK = 0xff;
+
+  private RawJson() {
+  }
+
+  /**
+   * Write one document as JSON.
+   *
+   * @param document the document to write
+   * @param out where to write it
+   */
+  public static void write(RawBsonDocument document, Writer out) {
+    JsonWriter writer = new JsonWriter(out, SETTINGS);
+    try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+      writer.pipe(reader);
+    }
+  }
+
+  /**
+   * @param document a document
+   * @return the document as UTF-8 encoded JSON
+   */
+  public static byte[] toBytes(RawBsonDocument document) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Writer out = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+      write(document, out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Turn a cursor into a stream of JSON that holds an array of all the
+   * documents it returns. Documents are pulled from the cursor (and
+   * transcoded) only as the stream is read, so the whole result is never
+   * held in memory at once. The cursor is closed when the stream is.
+   * <p>
+   * If the cursor fails part way through (e.g., a `getMore` times out),
+   * reading the stream throws an `IOException` caused by the cursor's
+   * exception, and the array is never closed, so a client can't mistake
+   * what it got for the whole result.
+   *
+   * @param cursor the cursor to read documents from
+   * @return a stream of the cursor's documents as a JSON array
+   */
+  public static InputStream arrayStream(MongoCursor<RawBsonDocument> cursor) {
+    return arrayStream(cursor, new AtomicLong());
+  }
+
+  /**
+   * Like `arrayStream(MongoCursor)`, but also counts the documents as
+   * they're written.
+   *
+   * @param cursor the cursor to read documents from
+   * @param count incremented for each document written to the stream
+   * @return a stream of the cursor's documents as a JSON array
+   */
+  public static InputStream arrayStream(MongoCursor<RawBsonDocument> cursor, AtomicLong count) {
+    return new JsonArrayInputStream(cursor, count);
+  }
+
+  /**
+   * A `ByteArrayOutputStream` that lets us read its buffer in place
+   * instead of copying it with `toByteArray`.
+   */
+  private static class Chunk extends ByteArrayOutputStream {
+    byte[] bytes() {
+      return buf;
+    }
+  }
+
+  private static final class JsonArrayInputStream extends InputStream {
+    private final MongoCursor<RawBsonDocument> cursor;
+    private final AtomicLong count;
+    private final Chunk chunk = new Chunk();
+    private final Writer chunkWriter = new OutputStreamWriter(chunk, StandardCharsets.UTF_8);
+
+    private int position;
+    private boolean started;
+    private boolean first = true;
+    private boolean finished;
+
+    JsonArrayInputStream(MongoCursor<RawBsonDocument> cursor, AtomicLong count) {
+      this.cursor = cursor;
+      this.count = count;
+    }
+
+    // Refill `chunk` with the next piece of the array; false at the end.
+    private boolean fill() throws IOException {
+      chunk.reset();
+      position = 0;
+      if (!started) {
+        started = true;
+        chunkWriter.write('[');
+      }
+      RawBsonDocument next;
+      try {
+        next = finished || !cursor.hasNext() ? null : cursor.next();
+      } catch (RuntimeException e) {
+        cursor.close();
+        throw new IOException("The query failed part way through its results", e);
+      }
+      if (next != null) {
+        if (!first) {
+          chunkWriter.write(',');
+        }
+        first = false;
+        write(next, chunkWriter);
+        count.incrementAndGet();
+      } else if (!finished) {
+        finished = true;
+        chunkWriter.write(']');
+        cursor.close();
+      } else {
+        return false;
+      }
+      chunkWriter.flush();
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) == -1 ? -1 : one[0] & BYTE_MASK;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (position >= chunk.size()) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      int count = Math.min(length, chunk.size() - position);
+      System.arraycopy(chunk.bytes(), position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    // Javalin's `resultString` may try to rewind the result after reading
+    // it. A cursor can't be rewound, so there's nothing to do here.
+    @Override
+    public void reset() {
+    }
+
+    @Override
+    public void close() {
+      cursor.close();
+    }
+  }
+}
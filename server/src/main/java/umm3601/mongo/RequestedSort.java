@@ -0,0 +1,52 @@
+package umm3601.mongo;
+
+import com.mongodb.client.model.Sorts;
+
+import org.bson.conversions.Bson;
+
+/**
+ * The sort a request asked for, after it has been checked
+ * against a `SortableFields` registry.
+ */
+public final class RequestedSort {
+
+  private final String field;
+  private final boolean ascending;
+  private final boolean indexed;
+
+  RequestedSort(String field, boolean ascending, boolean indexed) {
+    this.field = field;
+    this.ascending = ascending;
+    this.indexed = indexed;
+  }
+
+  /**
+   * @return the name of the field to sort on
+   */
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * @return true if the sort is ascending, false if it's descending
+   */
+  public boolean isAscending() {
+    return ascending;
+  }
+
+  /**
+   * @return true if this sort is backed by an index; if it isn't, it
+   *   has to be run as an aggregation with `allowDiskUse` so that large
+   *   results don't hit Mongo's in-memory sort limit
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * @return the sort as a Mongo sort document
+   */
+  public Bson toBson() {
+    return ascending ? Sorts.ascending(field) : Sorts.descending(field);
+  }
+}
@@ -0,0 +1,108 @@
+package umm3601.mongo;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Indexes;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * The registry of fields that a collection's list endpoint may be
+ * sorted by.
+ * <p>
+ * Every registered field gets an index (see `ensureIndexes`), so
+ * sorting on it never needs an in-memory sort in Mongo. Requests to
+ * sort on any other field are rejected, unless ad-hoc sorts have been
+ * enabled *and* the request opts in with `allowdiskuse=true`, in which
+ * case the caller should run the query as an aggregation with
+ * `allowDiskUse` so it can spill to disk instead of failing once the
+ * results pass Mongo's 32MB in-memory sort limit.
+ */
+public class SortableFields {
+
+  public static final String SORT_BY_KEY = "sortby";
+  public static final String SORT_ORDER_KEY = "sortorder";
+  public static final String ALLOW_DISK_USE_KEY = "allowdiskuse";
+
+  // Ad-hoc sort fields must be plain (possibly dotted) field names;
+  // in particular they can't start with `$`.
+  private static final Pattern FIELD_NAME = Pattern.compile("^[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)*$");
+
+  private final String defaultField;
+  private final Set<String> fields;
+  private final boolean allowAdHocSorts;
+
+  /**
+   * Construct a registry of sortable fields.
+   *
+   * @param defaultField the field to sort by when the request doesn't say;
+   *   this must be one of `fields`
+   * @param fields the fields that can be sorted on using an index
+   * @param allowAdHocSorts whether requests can opt into sorting on other
+   *   fields using an `allowDiskUse` aggregation
+   */
+  public SortableFields(String defaultField, List<String> fields, boolean allowAdHocSorts) {
+    if (!fields.contains(defaultField)) {
+      throw new IllegalArgumentException("The default sort field must be one of the sortable fields");
+    }
+    this.defaultField = defaultField;
+    this.fields = Set.copyOf(fields);
+    this.allowAdHocSorts = allowAdHocSorts;
+  }
+
+  /**
+   * Make sure every sortable field has a supporting index. A single
+   * field index can be walked in either direction, so one ascending
+   * index covers both sort orders. Creating an index that already
+   * exists is a no-op in Mongo, so this is safe to call on every start.
+   *
+   * @param collection the collection to index
+   */
+  public void ensureIndexes(MongoCollection<?> collection) {
+    for (String field : fields) {
+      collection.createIndex(Indexes.ascending(field));
+    }
+  }
+
+  /**
+   * @param field a field name
+   * @return true if `field` is one of the registered (indexed) sort fields
+   */
+  public boolean isSortable(String field) {
+    return fields.contains(field);
+  }
+
+  /**
+   * Work out the sort a request is asking for. The `sortby` query param
+   * (default `defaultField`) is the field to sort by, and the `sortorder`
+   * query param (default "asc") is the sort order.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the requested sort
+   * @throws BadRequestResponse if the request asks for a sort we won't run
+   */
+  public RequestedSort resolve(Context ctx) {
+    String sortBy = Objects.requireNonNullElse(ctx.queryParam(SORT_BY_KEY), defaultField);
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+
+    if (!sortOrder.equals("asc") && !sortOrder.equals("desc")) {
+      throw new BadRequestResponse("The sort order must be either 'asc' or 'desc'");
+    }
+    boolean ascending = sortOrder.equals("asc");
+
+    if (fields.contains(sortBy)) {
+      return new RequestedSort(sortBy, ascending, true);
+    }
+    boolean optedIn = Boolean.parseBoolean(ctx.queryParam(ALLOW_DISK_USE_KEY));
+    if (allowAdHocSorts && optedIn && FIELD_NAME.matcher(sortBy).matches()) {
+      return new RequestedSort(sortBy, ascending, false);
+    }
+    throw new BadRequestResponse("Results can't be sorted by '" + sortBy + "'; sortable fields are "
+      + fields.stream().sorted().reduce((a, b) -> a + ", " + b).orElse(""));
+  }
+}
@@ -0,0 +1,214 @@
+package umm3601.search;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * Substring ("contains") search over some string fields of a collection,
+ * narrowed by a `TrigramIndex` kept in memory.
+ * <p>
+ * The index doesn't replace the query: controllers keep their regex
+ * filters, and add `_id: {$in: candidates}` when the index can narrow
+ * the search down. Mongo then only looks at the candidates (using the
+ * `_id` index) instead of running the regex over every document, and
+ * still checks each one really matches.
+ * <p>
+ * The index is built by scanning the collection, and controllers keep
+ * it up to date as they insert, change and delete documents. Anything
+ * else that changes the collection (another server, the seed loader) is
+ * only seen at the next rebuild. Documents deleted behind our back only
+ * cost a wasted candidate, but ones inserted behind our back would be
+ * missed, so only use this when this server is the collection's only
+ * writer, or when that's an acceptable delay.
+ */
+public class SubstringSearch {
+
+  public static final int DEFAULT_MAX_CANDIDATES = 5000;
+  public static final long DEFAULT_REBUILD_SECONDS = 600;
+
+  private static final int SCAN_BATCH_SIZE = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SubstringSearch.class);
+
+  private final MongoCollection<BsonDocument> collection;
+  private final List<String> fields;
+  private final int maxCandidates;
+
+  private final LongAdder narrowed;
+  private final LongAdder scanned;
+
+  // `current` is null until the first build finishes. While a rebuild
+  // is scanning the collection, changes go to `building` as well.
+  private volatile TrigramIndex current;
+  private volatile TrigramIndex building;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a search; it can't narrow anything down until it's built.
+   *
+   * @param collection the collection to search
+   * @param fields the string fields to index
+   * @param maxCandidates the most candidates worth sending to Mongo as an
+   *   `$in`; searches with more than this just use the regex
+   * @param metrics where to count how often the index narrowed searches
+   */
+  public SubstringSearch(MongoCollection<?> collection, List<String> fields, int maxCandidates,
+      MetricsRegistry metrics) {
+    this.collection = collection.withDocumentClass(BsonDocument.class)
+      .withReadPreference(ReadPreference.primary());
+    this.fields = List.copyOf(fields);
+    this.maxCandidates = maxCandidates;
+    String name = "substringIndex." + collection.getNamespace().getCollectionName();
+    this.narrowed = metrics.counter(name + ".narrowed");
+    this.scanned = metrics.counter(name + ".scanned");
+    metrics.gauge(name + ".documents", () -> current == null ? 0 : current.size());
+  }
+
+  /**
+   * Build the index now, and then rebuild it in the background every
+   * `rebuildSeconds`.
+   *
+   * @param rebuildSeconds how often to rebuild the index
+   */
+  public void start(long rebuildSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "substring-index-" + collection.getNamespace().getCollectionName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        rebuild();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't rebuild the substring index for {}", collection.getNamespace(), e);
+      }
+    }, 0, rebuildSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop rebuilding the index.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Build a new index from every document in the collection, and start
+   * using it.
+   */
+  public void rebuild() {
+    TrigramIndex index = new TrigramIndex(fields);
+    // Changes from here on go in the new index too, and the scan won't
+    // overwrite them (see `TrigramIndex.load`).
+    building = index;
+    try {
+      for (BsonDocument document : collection.find()
+          .projection(Projections.include(fields))
+          .batchSize(SCAN_BATCH_SIZE)) {
+        BsonValue id = document.get("_id");
+        if (id != null && id.isObjectId()) {
+          index.load(id.asObjectId().getValue(), stringFields(document));
+        }
+      }
+      index.built();
+      current = index;
+    } finally {
+      building = null;
+    }
+  }
+
+  /**
+   * Record a document's new values for some (or all) of the indexed
+   * fields, after inserting or changing it.
+   *
+   * @param id the document's ID
+   * @param changes the changed fields' new values; other fields are ignored
+   */
+  public void put(ObjectId id, Map<String, ?> changes) {
+    Map<String, String> strings = new HashMap<>();
+    for (Map.Entry<String, ?> change : changes.entrySet()) {
+      if (fields.contains(change.getKey())) {
+        Object value = change.getValue();
+        strings.put(change.getKey(), value instanceof String ? (String) value : null);
+      }
+    }
+    if (strings.isEmpty()) {
+      return;
+    }
+    // As with `KnownIds`, read `building` before `current`: a rebuild
+    // sets `current` before it clears `building`.
+    TrigramIndex next = building;
+    TrigramIndex index = current;
+    if (index != null) {
+      index.put(id, strings);
+    }
+    if (next != null) {
+      next.put(id, strings);
+    }
+  }
+
+  /**
+   * Forget a document, after deleting it.
+   *
+   * @param id the document's ID
+   */
+  public void remove(ObjectId id) {
+    TrigramIndex next = building;
+    TrigramIndex index = current;
+    if (index != null) {
+      index.remove(id);
+    }
+    if (next != null) {
+      next.remove(id);
+    }
+  }
+
+  /**
+   * Find the documents that might contain the given substrings.
+   *
+   * @param substrings the substring to look for in each field
+   * @return the IDs of every document that might contain them, or null
+   *   if the index can't help (it isn't built yet, the substrings are
+   *   too short or not ASCII, or too many documents might match)
+   */
+  public List<ObjectId> candidates(Map<String, String> substrings) {
+    TrigramIndex index = current;
+    List<ObjectId> candidates = null;
+    if (index != null && substrings.values().stream().allMatch(TrigramIndex::canSearchFor)) {
+      candidates = index.candidates(substrings, maxCandidates);
+    }
+    (candidates == null ? scanned : narrowed).increment();
+    return candidates;
+  }
+
+  private Map<String, String> stringFields(BsonDocument document) {
+    Map<String, String> values = new HashMap<>();
+    for (String field : fields) {
+      BsonValue value = document.get(field);
+      if (value != null && value.isString()) {
+        values.put(field, value.asString().getValue());
+      }
+    }
+    return values;
+  }
+}
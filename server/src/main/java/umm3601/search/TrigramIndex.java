@@ -0,0 +1,288 @@
+package umm3601.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * An in-memory trigram index over some of the string fields of a
+ * collection's documents, for finding the documents whose fields
+ * contain a substring (ignoring case).
+ * <p>
+ * Each document gets a small integer number, and each trigram (three
+ * characters in a row, lower cased) of each field has a posting list:
+ * a `RoaringBitmap` of the numbers of the documents whose field has that
+ * trigram. Any document containing "wash" has both "was" and "ash", so
+ * intersecting those two posting lists gives every document that might
+ * contain "wash". That takes time proportional to the posting lists,
+ * not to the collection. Some of the candidates might not actually
+ * contain "wash" (e.g., "was ashen"), so they still need checking.
+ * <p>
+ * This is safe to use from many threads; lookups share a read lock, and
+ * changes take a write lock.
+ */
+final class TrigramIndex {
+
+  private static final int GRAM = 3;
+  private static final int CHAR_BITS = 16;
+  private static final int FIELD_SHIFT = GRAM * CHAR_BITS;
+  private static final int ASCII_LIMIT = 0x80;
+
+  private final List<String> fields;
+
+  // Posting lists, keyed by field number and trigram (see `key`).
+  private final Map<Long, RoaringBitmap> postings = new HashMap<>();
+  private final Map<ObjectId, Integer> numbers = new HashMap<>();
+  private final List<ObjectId> ids = new ArrayList<>();
+  // Each document's (lower cased) field values, so its postings can be
+  // found again when it changes or is deleted.
+  private final List<String[]> values = new ArrayList<>();
+  // Documents changed by a controller since this index started being
+  // built, which the build's scan mustn't overwrite with older values.
+  private final Set<ObjectId> touched = new HashSet<>();
+  private boolean building = true;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Construct an empty index.
+   *
+   * @param fields the fields to index
+   */
+  TrigramIndex(List<String> fields) {
+    this.fields = List.copyOf(fields);
+  }
+
+  /**
+   * @return the fields this index covers
+   */
+  List<String> fields() {
+    return fields;
+  }
+
+  /**
+   * Set some (or all) of a document's indexed field values, adding the
+   * document if it isn't already in the index.
+   *
+   * @param id the document's ID
+   * @param changes the new values of the fields that changed; fields
+   *   this index doesn't cover are ignored
+   */
+  void put(ObjectId id, Map<String, String> changes) {
+    lock.writeLock().lock();
+    try {
+      if (building) {
+        touched.add(id);
+      }
+      set(id, changes);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Add a document read while building the index, unless it has already
+   * been changed (by `put` or `remove`) since the build started, in
+   * which case what we have is newer than what was read.
+   *
+   * @param id the document's ID
+   * @param fieldValues the document's indexed field values
+   */
+  void load(ObjectId id, Map<String, String> fieldValues) {
+    lock.writeLock().lock();
+    try {
+      if (!touched.contains(id)) {
+        set(id, fieldValues);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a document from the index.
+   *
+   * @param id the document's ID
+   */
+  void remove(ObjectId id) {
+    lock.writeLock().lock();
+    try {
+      if (building) {
+        touched.add(id);
+      }
+      Integer number = numbers.remove(id);
+      if (number == null) {
+        return;
+      }
+      String[] old = values.get(number);
+      for (int field = 0; field < old.length; field++) {
+        unpost(field, old[field], number);
+      }
+      values.set(number, null);
+      ids.set(number, null);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Mark the end of the build: from now on there's no need to remember
+   * which documents were changed during it.
+   */
+  void built() {
+    lock.writeLock().lock();
+    try {
+      building = false;
+      touched.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find the documents that might contain all the given substrings.
+   *
+   * @param substrings the substring to look for in each field
+   * @param maxCandidates the most candidates worth returning
+   * @return the IDs of every document whose fields might contain the
+   *   substrings, or null if the index can't narrow things down: none
+   *   of the substrings are long enough to have a trigram, or more than
+   *   `maxCandidates` documents might match
+   */
+  List<ObjectId> candidates(Map<String, String> substrings, int maxCandidates) {
+    lock.readLock().lock();
+    try {
+      RoaringBitmap result = null;
+      for (Map.Entry<String, String> substring : substrings.entrySet()) {
+        int field = fields.indexOf(substring.getKey());
+        String value = normalize(substring.getValue());
+        if (field < 0 || value.length() < GRAM) {
+          continue;
+        }
+        List<RoaringBitmap> lists = new ArrayList<>();
+        for (long trigram : trigrams(value)) {
+          RoaringBitmap list = postings.get(key(field, trigram));
+          if (list == null) {
+            return List.of();
+          }
+          lists.add(list);
+        }
+        // Start with the shortest lists, which keeps the intersection small.
+        lists.sort((a, b) -> Long.compare(a.getLongCardinality(), b.getLongCardinality()));
+        for (RoaringBitmap list : lists) {
+          result = result == null ? list.clone() : RoaringBitmap.and(result, list);
+          if (result.isEmpty()) {
+            return List.of();
+          }
+        }
+      }
+      if (result == null || result.getLongCardinality() > maxCandidates) {
+        return null;
+      }
+      List<ObjectId> candidates = new ArrayList<>(result.getCardinality());
+      result.forEach((int number) -> candidates.add(ids.get(number)));
+      return candidates;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return how many documents are in the index
+   */
+  int size() {
+    lock.readLock().lock();
+    try {
+      return numbers.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param substring a substring someone's searching for
+   * @return whether this index can be trusted to find it: trigrams are
+   *   lower cased with Java's rules, which only agree with Mongo's case
+   *   insensitive regexes for ASCII
+   */
+  static boolean canSearchFor(String substring) {
+    return substring.chars().allMatch(c -> c < ASCII_LIMIT);
+  }
+
+  // Must hold the write lock.
+  private void set(ObjectId id, Map<String, String> changes) {
+    Integer number = numbers.get(id);
+    if (number == null) {
+      number = ids.size();
+      numbers.put(id, number);
+      ids.add(id);
+      values.add(new String[fields.size()]);
+    }
+    String[] current = values.get(number);
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      int field = fields.indexOf(change.getKey());
+      if (field < 0) {
+        continue;
+      }
+      String value = change.getValue() == null ? null : normalize(change.getValue());
+      unpost(field, current[field], number);
+      current[field] = value;
+      post(field, value, number);
+    }
+  }
+
+  private void post(int field, String value, int number) {
+    if (value == null) {
+      return;
+    }
+    for (long trigram : trigrams(value)) {
+      postings.computeIfAbsent(key(field, trigram), k -> new RoaringBitmap()).add(number);
+    }
+  }
+
+  private void unpost(int field, String value, int number) {
+    if (value == null) {
+      return;
+    }
+    for (long trigram : trigrams(value)) {
+      Long key = key(field, trigram);
+      RoaringBitmap list = postings.get(key);
+      if (list != null) {
+        list.remove(number);
+        if (list.isEmpty()) {
+          postings.remove(key);
+        }
+      }
+    }
+  }
+
+  private static String normalize(String value) {
+    return value.toLowerCase(Locale.ROOT);
+  }
+
+  // Each trigram, packed into a long, once each.
+  private static Set<Long> trigrams(String value) {
+    Set<Long> trigrams = new HashSet<>();
+    for (int i = 0; i + GRAM <= value.length(); i++) {
+      long trigram = 0;
+      for (int j = 0; j < GRAM; j++) {
+        trigram = (trigram << CHAR_BITS) | value.charAt(i + j);
+      }
+      trigrams.add(trigram);
+    }
+    return trigrams;
+  }
+
+  private static long key(int field, long trigram) {
+    return ((long) field << FIELD_SHIFT) | trigram;
+  }
+}
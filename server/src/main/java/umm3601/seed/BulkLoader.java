@@ -0,0 +1,190 @@
+package umm3601.seed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.bson.Document;
+
+/**
+ * Generates synthetic todos and users at whatever scale we ask for and
+ * loads them into Mongo with parallel, unordered `insertMany` batches.
+ * This is a replacement for `database/mongoseed.sh` when we need far
+ * more data than the seed files have, e.g., to test at production scale.
+ * <p>
+ * Options (all optional) are given as `--name=value`:
+ * <ul>
+ *   <li>`--todos` and `--users`: how many of each to generate (default 1,000,000 and 100,000)</li>
+ *   <li>`--batch`: documents per `insertMany` (default 1,000)</li>
+ *   <li>`--threads`: how many batches to generate and insert at once
+ *     (default the number of processors)</li>
+ *   <li>`--seed`: the random seed, so runs can be repeated (default 3601)</li>
+ *   <li>`--seed-dir`: where the seed files are (default `../database/seed`)</li>
+ *   <li>`--drop`: drop the collections before loading</li>
+ * </ul>
+ * The database comes from `MONGO_ADDR` and `MONGO_DB`, just like the server.
+ */
+public final class BulkLoader {
+
+  private static final long DEFAULT_TODOS = 1_000_000;
+  private static final long DEFAULT_USERS = 100_000;
+  private static final int DEFAULT_BATCH = 1_000;
+  private static final long DEFAULT_SEED = 3601;
+  private static final long PROGRESS_SECONDS = 5;
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final MongoDatabase database;
+  private final DataGenerator generator;
+  private final int batchSize;
+  private final int threads;
+  private final long seed;
+
+  private BulkLoader(MongoDatabase database, DataGenerator generator, int batchSize, int threads, long seed) {
+    this.database = database;
+    this.generator = generator;
+    this.batchSize = batchSize;
+    this.threads = threads;
+    this.seed = seed;
+  }
+
+  /**
+   * Something that makes the `index`th document of a collection.
+   */
+  private interface DocumentMaker {
+    Document make(SplittableRandom random, long index);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+    Map<String, String> options = parseOptions(args);
+
+    long todos = Long.parseLong(options.getOrDefault("todos", String.valueOf(DEFAULT_TODOS)));
+    long users = Long.parseLong(options.getOrDefault("users", String.valueOf(DEFAULT_USERS)));
+    int batchSize = Integer.parseInt(options.getOrDefault("batch", String.valueOf(DEFAULT_BATCH)));
+    int threads = Integer.parseInt(options.getOrDefault("threads",
+      String.valueOf(Runtime.getRuntime().availableProcessors())));
+    long seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(DEFAULT_SEED)));
+    File seedDir = new File(options.getOrDefault("seed-dir", "../database/seed"));
+
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    String databaseName = System.getenv().getOrDefault("MONGO_DB", "dev");
+
+    DataGenerator generator = new DataGenerator(SeedDistributions.read(seedDir));
+
+    // Let the driver keep one connection per loader thread.
+    MongoClientSettings settings = MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.hosts(List.of(new ServerAddress(mongoAddr))))
+      .applyToConnectionPoolSettings(builder -> builder.maxSize(Math.max(threads, 1)))
+      .build();
+    try (MongoClient mongoClient = MongoClients.create(settings)) {
+      MongoDatabase database = mongoClient.getDatabase(databaseName);
+      if (options.containsKey("drop")) {
+        System.out.println("Dropping users and todos in " + databaseName);
+        database.getCollection("users").drop();
+        database.getCollection("todos").drop();
+      }
+
+      if (users > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Can't generate more than " + Integer.MAX_VALUE + " users");
+      }
+      // Keep the generated users' names, so the todos can be owned by them.
+      String[] names = new String[(int) users];
+      BulkLoader loader = new BulkLoader(database, generator, batchSize, threads, seed);
+      loader.load("users", users, (random, index) -> {
+        Document user = generator.user(random, index);
+        names[(int) index] = user.getString("name");
+        return user;
+      });
+      List<String> owners = Arrays.asList(names);
+      loader.load("todos", todos, (random, index) -> generator.todo(random, owners));
+    }
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("Options look like --name=value, not " + arg);
+      }
+      String[] parts = arg.substring(2).split("=", 2);
+      options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+    }
+    return options;
+  }
+
+  /**
+   * Generate and insert `count` documents into a collection, a batch per
+   * task, and report how fast it went.
+   * <p>
+   * Each batch gets its own random generator, seeded from the loader's
+   * seed, the collection and the batch number, so the same options
+   * always produce the same data no matter how the batches get spread
+   * across threads, and no two batches (of either collection) draw the
+   * same values.
+   */
+  private void load(String collectionName, long count, DocumentMaker maker)
+      throws InterruptedException, ExecutionException {
+    MongoCollection<Document> collection = database.getCollection(collectionName);
+    InsertManyOptions unordered = new InsertManyOptions().ordered(false);
+    AtomicLong inserted = new AtomicLong();
+    long batches = (count + batchSize - 1) / batchSize;
+    // The collection's name goes in the top half of the seed, so its
+    // batches' seeds can't run into another collection's.
+    long collectionSeed = seed ^ ((long) collectionName.hashCode() << Integer.SIZE);
+
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+    long start = System.nanoTime();
+    progress.scheduleAtFixedRate(() -> report(collectionName, inserted.get(), count, start),
+      PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+    try {
+      List<Future<?>> results = new ArrayList<>();
+      for (long batch = 0; batch < batches; batch++) {
+        long first = batch * batchSize;
+        long last = Math.min(count, first + batchSize);
+        long batchSeed = collectionSeed + batch;
+        results.add(workers.submit(() -> {
+          SplittableRandom random = new SplittableRandom(batchSeed);
+          List<Document> documents = new ArrayList<>((int) (last - first));
+          for (long index = first; index < last; index++) {
+            documents.add(maker.make(random, index));
+          }
+          collection.insertMany(documents, unordered);
+          inserted.addAndGet(documents.size());
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    } finally {
+      progress.shutdownNow();
+      workers.shutdownNow();
+    }
+    report(collectionName, inserted.get(), count, start);
+  }
+
+  private static void report(String collectionName, long inserted, long count, long start) {
+    double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+    System.out.printf("%s: %,d of %,d documents in %.1f s (%,.0f documents/s)%n",
+      collectionName, inserted, count, seconds, inserted / Math.max(seconds, Double.MIN_VALUE));
+  }
+}
@@ -0,0 +1,93 @@
+package umm3601.seed;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.bson.Document;
+
+/**
+ * Generates synthetic todos and users, drawing their values from the
+ * distributions in the seed data. Every generated document passes the
+ * same checks `addNewTodo` and `addNewUser` apply to new documents.
+ */
+public class DataGenerator {
+
+  private final SeedDistributions distributions;
+
+  /**
+   * Construct a generator.
+   *
+   * @param distributions the distributions to draw values from
+   */
+  public DataGenerator(SeedDistributions distributions) {
+    this.distributions = distributions;
+  }
+
+  /**
+   * Generate a todo.
+   *
+   * @param random the source of randomness to use
+   * @return a new todo document (without an `_id`)
+   */
+  public Document todo(SplittableRandom random) {
+    return todo(random, List.of());
+  }
+
+  /**
+   * Generate a todo owned by one of the given users, so that looking up
+   * its owner (or deleting them) finds the todo.
+   *
+   * @param random the source of randomness to use
+   * @param owners the names of the users to pick the owner from; if
+   *   there aren't any, the owner is drawn from the seed todos' owners
+   * @return a new todo document (without an `_id`)
+   */
+  public Document todo(SplittableRandom random, List<String> owners) {
+    String owner = owners.isEmpty() ? distributions.owner(random) : owners.get(random.nextInt(owners.size()));
+    return new Document()
+      .append("owner", owner)
+      .append("status", distributions.status(random))
+      .append("body", distributions.body(random))
+      .append("category", distributions.category(random));
+  }
+
+  /**
+   * Generate a user. The sequence number is worked into the email
+   * address so that generated users all have distinct emails.
+   *
+   * @param random the source of randomness to use
+   * @param sequence this user's number among the generated users
+   * @return a new user document (without an `_id`)
+   */
+  public Document user(SplittableRandom random, long sequence) {
+    String first = distributions.firstName(random);
+    String last = distributions.lastName(random);
+    String company = distributions.company(random);
+    String email = (first + last + sequence).toLowerCase().replaceAll("[^a-z0-9]", "")
+      + "@" + company.toLowerCase().replaceAll("[^a-z0-9]", "") + ".com";
+    return new Document()
+      .append("name", first + " " + last)
+      .append("age", distributions.age(random))
+      .append("company", company)
+      .append("email", email)
+      .append("role", distributions.role(random))
+      .append("avatar", "https://gravatar.com/avatar/" + md5(email) + "?d=identicon");
+  }
+
+  @SuppressWarnings("lgtm[java/weak-cryptographic-algorithm]")
+  private static String md5(String str) {
+    try {
+      byte[] hash = MessageDigest.getInstance("MD5").digest(str.getBytes(StandardCharsets.UTF_8));
+      StringBuilder result = new StringBuilder();
+      for (byte b : hash) {
+        result.append(String.format("%02x", b));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package umm3601.seed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The distributions of values in the seed data (`database/seed`),
+ * used to generate synthetic todos and users that look like them.
+ * <p>
+ * Each distribution is just the list of values seen in the seed data,
+ * duplicates and all, so picking a uniformly random element picks
+ * values with the same frequencies they have in the seed data.
+ */
+public class SeedDistributions {
+
+  private final List<String> owners = new ArrayList<>();
+  private final List<String> categories = new ArrayList<>();
+  private final List<Boolean> statuses = new ArrayList<>();
+  private final List<String> bodyWords = new ArrayList<>();
+  private final List<Integer> bodyLengths = new ArrayList<>();
+
+  private final List<String> firstNames = new ArrayList<>();
+  private final List<String> lastNames = new ArrayList<>();
+  private final List<Integer> ages = new ArrayList<>();
+  private final List<String> companies = new ArrayList<>();
+  private final List<String> roles = new ArrayList<>();
+
+  /**
+   * Read the distributions from the seed files in a directory.
+   *
+   * @param seedDirectory the directory holding `todos.json` and `users.json`
+   * @return the distributions of values in those files
+   * @throws IOException if either file can't be read
+   */
+  public static SeedDistributions read(File seedDirectory) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    SeedDistributions distributions = new SeedDistributions();
+    for (JsonNode todo : mapper.readTree(new File(seedDirectory, "todos.json"))) {
+      distributions.addTodo(todo.get("owner").asText(), todo.get("status").asBoolean(),
+        todo.get("body").asText(), todo.get("category").asText());
+    }
+    for (JsonNode user : mapper.readTree(new File(seedDirectory, "users.json"))) {
+      distributions.addUser(user.get("name").asText(), user.get("age").asInt(),
+        user.get("company").asText(), user.get("role").asText());
+    }
+    return distributions;
+  }
+
+  /**
+   * Add a seed todo to the distributions.
+   *
+   * @param owner the todo's owner
+   * @param status the todo's status
+   * @param body the todo's body
+   * @param category the todo's category
+   */
+  public void addTodo(String owner, boolean status, String body, String category) {
+    owners.add(owner);
+    statuses.add(status);
+    categories.add(category);
+    List<String> words = Arrays.asList(body.toLowerCase().replaceAll("[^a-z ]", "").split(" +"));
+    bodyWords.addAll(words);
+    bodyLengths.add(words.size());
+  }
+
+  /**
+   * Add a seed user to the distributions.
+   *
+   * @param name the user's full name
+   * @param age the user's age
+   * @param company the user's company
+   * @param role the user's role
+   */
+  public void addUser(String name, int age, String company, String role) {
+    String[] parts = name.split(" ", 2);
+    firstNames.add(parts[0]);
+    lastNames.add(parts.length > 1 ? parts[1] : parts[0]);
+    ages.add(age);
+    companies.add(company);
+    roles.add(role);
+  }
+
+  private static <T> T pick(List<T> values, SplittableRandom random) {
+    if (values.isEmpty()) {
+      throw new IllegalStateException("The seed data doesn't have any values to draw from");
+    }
+    return values.get(random.nextInt(values.size()));
+  }
+
+  String owner(SplittableRandom random) {
+    return pick(owners, random);
+  }
+
+  String category(SplittableRandom random) {
+    return pick(categories, random);
+  }
+
+  boolean status(SplittableRandom random) {
+    return pick(statuses, random);
+  }
+
+  /**
+   * Make up a todo body with a length and words like the seed bodies.
+   */
+  String body(SplittableRandom random) {
+    int length = Math.max(1, pick(bodyLengths, random));
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      if (i > 0) {
+        body.append(' ');
+      }
+      body.append(pick(bodyWords, random));
+    }
+    body.setCharAt(0, Character.toUpperCase(body.charAt(0)));
+    return body.append('.').toString();
+  }
+
+  String firstName(SplittableRandom random) {
+    return pick(firstNames, random);
+  }
+
+  String lastName(SplittableRandom random) {
+    return pick(lastNames, random);
+  }
+
+  int age(SplittableRandom random) {
+    return pick(ages, random);
+  }
+
+  String company(SplittableRandom random) {
+    return pick(companies, random);
+  }
+
+  String role(SplittableRandom random) {
+    return pick(roles, random);
+  }
+}
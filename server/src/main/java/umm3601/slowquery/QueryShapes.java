@@ -0,0 +1,148 @@
+package umm3601.slowquery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/**
+ * Helpers for picking apart Mongo commands and explain plans.
+ * <p>
+ * The "shape" of a query is its filter with every value replaced by
+ * `"?"`, so `{"owner": {"$regex": "fry"}}` and `{"owner": {"$regex":
+ * "blanche"}}` have the same shape, and can be counted together.
+ */
+public final class QueryShapes {
+
+  private static final BsonString PLACEHOLDER = new BsonString("?");
+
+  private QueryShapes() {
+  }
+
+  /**
+   * @param value part of a query
+   * @return the same thing with every value replaced by `"?"`; field
+   *   names and operators are kept, as are lists of clauses (like the
+   *   ones in an `$and`), but lists of values (like an `$in`'s) become
+   *   a single `"?"`, so the shape doesn't depend on how long they are
+   */
+  static BsonValue normalize(BsonValue value) {
+    if (value.isDocument()) {
+      BsonDocument shape = new BsonDocument();
+      for (Map.Entry<String, BsonValue> field : value.asDocument().entrySet()) {
+        shape.append(field.getKey(), normalize(field.getValue()));
+      }
+      return shape;
+    }
+    if (value.isArray() && !value.asArray().isEmpty()
+        && value.asArray().stream().allMatch(BsonValue::isDocument)) {
+      BsonArray shape = new BsonArray();
+      for (BsonValue element : value.asArray()) {
+        shape.add(normalize(element));
+      }
+      return shape;
+    }
+    return PLACEHOLDER;
+  }
+
+  /**
+   * @param commandName the name of a command, e.g., "find"
+   * @param command the command
+   * @return the shape of what the command filters on, as JSON; for an
+   *   aggregation, that's the shape of its whole pipeline
+   */
+  public static String shapeOf(String commandName, BsonDocument command) {
+    BsonValue shape = normalize(filterOf(commandName, command));
+    return shape.isDocument() ? shape.asDocument().toJson() : new BsonDocument("pipeline", shape).toJson();
+  }
+
+  /**
+   * @param commandName the name of a command, e.g., "find"
+   * @param command the command
+   * @return what the command filters on: the filter of a `find` (and
+   *   similar commands), the first statement's filter of a `delete` or
+   *   `update`, or the whole pipeline of an `aggregate`; an empty
+   *   document if there's nothing to filter on
+   */
+  static BsonValue filterOf(String commandName, BsonDocument command) {
+    switch (commandName) {
+      case "find":
+        return command.get("filter", new BsonDocument());
+      case "count":
+      case "distinct":
+      case "findAndModify":
+        return command.get("query", new BsonDocument());
+      case "aggregate":
+        return command.get("pipeline", new BsonArray());
+      case "delete":
+      case "update":
+        String statements = commandName.equals("delete") ? "deletes" : "updates";
+        BsonArray array = command.getArray(statements, new BsonArray());
+        return array.isEmpty() ? new BsonDocument() : array.get(0).asDocument().get("q", new BsonDocument());
+      default:
+        return new BsonDocument();
+    }
+  }
+
+  /**
+   * @param commandName the name of a command, e.g., "find"
+   * @param command the command
+   * @return the command's sort (the first `$sort` stage of an
+   *   aggregation), or an empty document if it isn't sorted
+   */
+  static BsonDocument sortOf(String commandName, BsonDocument command) {
+    if (commandName.equals("aggregate")) {
+      for (BsonValue stage : command.getArray("pipeline", new BsonArray())) {
+        if (stage.isDocument() && stage.asDocument().containsKey("$sort")) {
+          return stage.asDocument().getDocument("$sort");
+        }
+      }
+      return new BsonDocument();
+    }
+    return command.getDocument("sort", new BsonDocument());
+  }
+
+  /**
+   * Summarize an explain plan by how the winning plan reads the
+   * collection: "COLLSCAN" if it scans the whole collection anywhere,
+   * otherwise "IXSCAN" if it uses an index, otherwise its first stage.
+   *
+   * @param explain the result of an `explain` command
+   * @return the summary, or "UNKNOWN" if the plan has no stages
+   */
+  static String planSummary(BsonDocument explain) {
+    List<String> stages = new ArrayList<>();
+    collectStages(explain, stages);
+    if (stages.contains("COLLSCAN")) {
+      return "COLLSCAN";
+    }
+    if (stages.contains("IXSCAN")) {
+      return "IXSCAN";
+    }
+    return stages.isEmpty() ? "UNKNOWN" : stages.get(0);
+  }
+
+  // Collect every stage in the plan, skipping the plans Mongo rejected.
+  private static void collectStages(BsonValue value, List<String> stages) {
+    if (value.isDocument()) {
+      for (Map.Entry<String, BsonValue> field : value.asDocument().entrySet()) {
+        if (field.getKey().equals("rejectedPlans")) {
+          continue;
+        }
+        if (field.getKey().equals("stage") && field.getValue().isString()) {
+          stages.add(field.getValue().asString().getValue());
+        } else {
+          collectStages(field.getValue(), stages);
+        }
+      }
+    } else if (value.isArray()) {
+      for (BsonValue element : value.asArray()) {
+        collectStages(element, stages);
+      }
+    }
+  }
+}
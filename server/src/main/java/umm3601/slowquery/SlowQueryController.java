@@ -0,0 +1,30 @@
+package umm3601.slowquery;
+
+import io.javalin.http.Context;
+
+/**
+ * Controller that exposes what a `SlowQueryRecorder` has recorded.
+ */
+public class SlowQueryController {
+
+  private final SlowQueryRecorder recorder;
+
+  /**
+   * Construct a controller for the given recorder.
+   *
+   * @param recorder the recorder whose slow operations we'll report
+   */
+  public SlowQueryController(SlowQueryRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Get a JSON object with the recent slow operations, and the totals
+   * for each query shape.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getSlowQueries(Context ctx) {
+    ctx.json(recorder.report());
+  }
+}
@@ -0,0 +1,377 @@
+package umm3601.slowquery;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the Mongo operations that take longer than a threshold.
+ * <p>
+ * This listens to the driver's command events, so it sees every query
+ * the controllers make without them having to do anything. Each slow
+ * operation is logged and kept (the most recent few hundred of them)
+ * along with its query shape (see `QueryShapes`) and sort, and counted
+ * against that shape and sort. Now and then (the first time a shape is
+ * slow, and every `explainEvery` times after that) a slow `find` or
+ * `aggregate` is also explained in the background, to see whether it
+ * scanned the whole collection (COLLSCAN) or used an index (IXSCAN).
+ */
+public class SlowQueryRecorder implements CommandListener {
+
+  public static final long DEFAULT_THRESHOLD_MS = 100;
+  public static final int DEFAULT_EXPLAIN_EVERY = 10;
+
+  private static final int MAX_RECENT = 200;
+  private static final int MAX_SHAPES = 1000;
+  private static final int MAX_QUEUED_EXPLAINS = 16;
+
+  // The commands that read or write existing documents, and so have
+  // a filter worth recording.
+  private static final Set<String> RECORDED_COMMANDS =
+    Set.of("find", "aggregate", "count", "distinct", "delete", "update", "findAndModify");
+  private static final Set<String> EXPLAINED_COMMANDS = Set.of("find", "aggregate");
+
+  // The parts of a command we keep until it finishes; anything that
+  // explain would reject (session IDs, `$db`, etc.) is left behind.
+  private static final Set<String> KEPT_FIELDS = Set.of("find", "aggregate", "count", "distinct", "delete",
+    "update", "findAndModify", "filter", "query", "sort", "projection", "limit", "skip", "hint", "pipeline",
+    "collation", "deletes", "updates", "key");
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryRecorder.class);
+
+  /**
+   * One slow operation. Its getters are what the admin endpoint reports.
+   */
+  public static final class Entry {
+    private final String time = Instant.now().toString();
+    private final String command;
+    private final String collection;
+    private final String shape;
+    private final String sort;
+    private final long durationMs;
+    private final boolean failed;
+    private volatile String plan;
+
+    private Entry(String command, String collection, String shape, String sort, long durationMs, boolean failed) {
+      this.command = command;
+      this.collection = collection;
+      this.shape = shape;
+      this.sort = sort;
+      this.durationMs = durationMs;
+      this.failed = failed;
+    }
+
+    public String getTime() {
+      return time;
+    }
+
+    public String getCommand() {
+      return command;
+    }
+
+    public String getCollection() {
+      return collection;
+    }
+
+    public String getShape() {
+      return shape;
+    }
+
+    public String getSort() {
+      return sort;
+    }
+
+    public long getDurationMs() {
+      return durationMs;
+    }
+
+    public boolean isFailed() {
+      return failed;
+    }
+
+    /**
+     * @return "COLLSCAN", "IXSCAN", etc., or null if this one wasn't explained
+     */
+    public String getPlan() {
+      return plan;
+    }
+  }
+
+  /**
+   * The totals for one query shape and sort.
+   */
+  public static final class ShapeStats {
+    private final String command;
+    private final String collection;
+    private final String shape;
+    private final String sort;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMs = new LongAdder();
+    private final LongAccumulator maxMs = new LongAccumulator(Math::max, 0);
+    private volatile String plan;
+
+    private ShapeStats(Entry first) {
+      this.command = first.command;
+      this.collection = first.collection;
+      this.shape = first.shape;
+      this.sort = first.sort;
+    }
+
+    public String getCommand() {
+      return command;
+    }
+
+    public String getCollection() {
+      return collection;
+    }
+
+    public String getShape() {
+      return shape;
+    }
+
+    public String getSort() {
+      return sort;
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getTotalMs() {
+      return totalMs.sum();
+    }
+
+    public long getMaxMs() {
+      return maxMs.get();
+    }
+
+    /**
+     * @return the most recent plan summary for this shape, if it's been explained
+     */
+    public String getPlan() {
+      return plan;
+    }
+  }
+
+  // A command that has started but not yet finished.
+  private static final class Started {
+    private final String databaseName;
+    private final String commandName;
+    private final BsonDocument command;
+
+    private Started(String databaseName, String commandName, BsonDocument command) {
+      this.databaseName = databaseName;
+      this.commandName = commandName;
+      this.command = command;
+    }
+  }
+
+  private final long thresholdMs;
+  private final int explainEvery;
+
+  private final Map<Integer, Started> started = new ConcurrentHashMap<>();
+  private final Deque<Entry> recent = new ArrayDeque<>();
+  private final Map<String, ShapeStats> shapes = new ConcurrentHashMap<>();
+  private final AtomicLong slowCount = new AtomicLong();
+
+  // Explains run one at a time, on a daemon thread, and are simply
+  // skipped if too many are already waiting.
+  private final ExecutorService explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+    new ArrayBlockingQueue<>(MAX_QUEUED_EXPLAINS), runnable -> {
+      Thread thread = new Thread(runnable, "slow-query-explain");
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.DiscardPolicy());
+
+  private volatile MongoClient client;
+
+  /**
+   * Construct a recorder.
+   *
+   * @param thresholdMs how long, in milliseconds, an operation has to
+   *   take to be recorded
+   * @param explainEvery explain a shape's first slow operation and then
+   *   every `explainEvery`th one after that; 0 never explains
+   */
+  public SlowQueryRecorder(long thresholdMs, int explainEvery) {
+    this.thresholdMs = thresholdMs;
+    this.explainEvery = explainEvery;
+  }
+
+  /**
+   * Give the recorder a client to run explains with. The recorder has
+   * to be registered with the client's settings before the client
+   * exists, so this is a separate step.
+   *
+   * @param mongoClient the client to explain slow operations with
+   */
+  public void explainWith(MongoClient mongoClient) {
+    this.client = mongoClient;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    if (!RECORDED_COMMANDS.contains(event.getCommandName())) {
+      return;
+    }
+    // The event's command is only good until this returns, so keep a
+    // copy of the parts we'll need if it turns out to be slow.
+    BsonDocument kept = new BsonDocument();
+    for (Map.Entry<String, BsonValue> field : event.getCommand().entrySet()) {
+      if (KEPT_FIELDS.contains(field.getKey())) {
+        kept.append(field.getKey(), field.getValue().clone());
+      }
+    }
+    started.put(event.getRequestId(), new Started(event.getDatabaseName(), event.getCommandName(), kept));
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    finished(event.getRequestId(), event.getElapsedTime(TimeUnit.MILLISECONDS), false);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    finished(event.getRequestId(), event.getElapsedTime(TimeUnit.MILLISECONDS), true);
+  }
+
+  private void finished(int requestId, long durationMs, boolean failed) {
+    Started command = started.remove(requestId);
+    if (command == null || durationMs < thresholdMs) {
+      return;
+    }
+    record(command, durationMs, failed);
+  }
+
+  private void record(Started command, long durationMs, boolean failed) {
+    // Commands name their collection as the value of the command name,
+    // e.g., `{"find": "todos", ...}`.
+    BsonValue collectionName = command.command.get(command.commandName);
+    String collection = collectionName != null && collectionName.isString() ? collectionName.asString().getValue() : "";
+    Entry entry = new Entry(command.commandName, collection,
+      QueryShapes.shapeOf(command.commandName, command.command),
+      QueryShapes.sortOf(command.commandName, command.command).toJson(),
+      durationMs, failed);
+
+    slowCount.incrementAndGet();
+    synchronized (recent) {
+      recent.addFirst(entry);
+      if (recent.size() > MAX_RECENT) {
+        recent.removeLast();
+      }
+    }
+
+    String key = entry.command + " " + entry.collection + " " + entry.shape + " " + entry.sort;
+    ShapeStats stats = shapes.get(key);
+    if (stats == null && shapes.size() < MAX_SHAPES) {
+      stats = shapes.computeIfAbsent(key, k -> new ShapeStats(entry));
+    }
+    long count = 1;
+    if (stats != null) {
+      stats.count.increment();
+      stats.totalMs.add(durationMs);
+      stats.maxMs.accumulate(durationMs);
+      count = stats.count.sum();
+    }
+
+    LOGGER.warn("Slow {} on {} took {} ms: filter {} sort {}",
+      entry.command, entry.collection, durationMs, entry.shape, entry.sort);
+
+    if (explainEvery > 0 && client != null && EXPLAINED_COMMANDS.contains(command.commandName)
+        && (count - 1) % explainEvery == 0) {
+      ShapeStats explainedStats = stats;
+      explainer.execute(() -> explain(command, entry, explainedStats));
+    }
+  }
+
+  private void explain(Started command, Entry entry, ShapeStats stats) {
+    try {
+      BsonDocument explainable = command.command.clone();
+      if (command.commandName.equals("aggregate")) {
+        explainable.append("cursor", new BsonDocument());
+      }
+      BsonDocument explain = client.getDatabase(command.databaseName).runCommand(
+        new BsonDocument("explain", explainable).append("verbosity", new BsonString("queryPlanner")),
+        BsonDocument.class);
+      String plan = QueryShapes.planSummary(explain);
+      entry.plan = plan;
+      if (stats != null) {
+        stats.plan = plan;
+      }
+      LOGGER.warn("Slow {} on {} with filter {} sort {} is a {}",
+        entry.command, entry.collection, entry.shape, entry.sort, plan);
+    } catch (RuntimeException e) {
+      LOGGER.warn("Couldn't explain slow {} on {}", entry.command, entry.collection, e);
+    }
+  }
+
+  /**
+   * @return how long an operation has to take to be recorded
+   */
+  public long getThresholdMs() {
+    return thresholdMs;
+  }
+
+  /**
+   * @return how many slow operations there have been
+   */
+  public long getSlowCount() {
+    return slowCount.get();
+  }
+
+  /**
+   * @return the most recent slow operations, most recent first
+   */
+  public List<Entry> recent() {
+    synchronized (recent) {
+      return new ArrayList<>(recent);
+    }
+  }
+
+  /**
+   * @return the totals for each query shape, the most often slow first
+   */
+  public List<ShapeStats> shapes() {
+    List<ShapeStats> result = new ArrayList<>(shapes.values());
+    result.sort(Comparator.comparingLong(ShapeStats::getCount).reversed());
+    return result;
+  }
+
+  /**
+   * @return everything the recorder knows, for the admin endpoint
+   */
+  public Map<String, Object> report() {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("thresholdMs", thresholdMs);
+    report.put("slowCount", getSlowCount());
+    report.put("shapes", shapes());
+    report.put("recent", recent());
+    return report;
+  }
+}
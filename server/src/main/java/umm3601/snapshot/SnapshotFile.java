@@ -0,0 +1,269 @@
+package umm3601.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+/**
+ * A snapshot of some collections, in a file that's memory-mapped to be
+ * read, so opening it costs nothing however big it is and lookups are
+ * served from the page cache.
+ * <p>
+ * Each collection's documents are stored one after another as raw BSON,
+ * in order of `_id`, followed by an index of their IDs and where each
+ * document starts. A lookup is a binary search of that index, straight
+ * out of the mapped file. After the collections comes a directory of
+ * where each one's index is, and then a fixed size trailer:
+ *
+ * <pre>
+ * [documents][index] ... [documents][index] [directory] [token, createdAt, directory offset, magic]
+ * </pre>
+ *
+ * Offsets are ints, so a snapshot can't be bigger than 2GB.
+ */
+final class SnapshotFile {
+
+  // "UMMSNAP1"
+  private static final long MAGIC = 0x554d4d534e415031L;
+  private static final int TRAILER_SIZE = 4 * Long.BYTES;
+  private static final int ID_SIZE = 12;
+  private static final int INDEX_ENTRY_SIZE = ID_SIZE + Integer.BYTES;
+
+  /**
+   * The documents of one collection in a snapshot.
+   */
+  static final class Section {
+    private final ByteBuffer buffer;
+    private final int indexOffset;
+    private final int size;
+
+    private Section(ByteBuffer buffer, int indexOffset, int size) {
+      this.buffer = buffer;
+      this.indexOffset = indexOffset;
+      this.size = size;
+    }
+
+    /**
+     * @return how many documents there are
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * @param id a document's ID
+     * @return its position in the section, or -1 if it isn't there
+     */
+    int positionOf(ObjectId id) {
+      byte[] wanted = id.toByteArray();
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int compared = compareIdAt(middle, wanted);
+        if (compared < 0) {
+          low = middle + 1;
+        } else if (compared > 0) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+
+    // Compares IDs the way Mongo sorts them: as unsigned bytes.
+    private int compareIdAt(int position, byte[] id) {
+      int entry = indexOffset + position * INDEX_ENTRY_SIZE;
+      for (int i = 0; i < ID_SIZE; i++) {
+        int compared = Integer.compare(Byte.toUnsignedInt(buffer.get(entry + i)), Byte.toUnsignedInt(id[i]));
+        if (compared != 0) {
+          return compared;
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * @param position a position in the section
+     * @return the document there; it's copied out of the file, so it
+     *   stays good after the snapshot is closed
+     */
+    RawBsonDocument document(int position) {
+      int offset = buffer.getInt(indexOffset + position * INDEX_ENTRY_SIZE + ID_SIZE);
+      // BSON documents start with their length, little endian.
+      int length = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(offset);
+      byte[] bytes = new byte[length];
+      buffer.duplicate().position(offset).get(bytes);
+      return new RawBsonDocument(bytes);
+    }
+  }
+
+  private final MappedByteBuffer buffer;
+  private final long token;
+  private final long createdAt;
+  private final Map<String, Section> sections = new HashMap<>();
+
+  private SnapshotFile(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    int limit = buffer.limit();
+    if (limit < TRAILER_SIZE || buffer.getLong(limit - Long.BYTES) != MAGIC) {
+      throw new IOException("Not a snapshot");
+    }
+    int trailer = limit - TRAILER_SIZE;
+    this.token = buffer.getLong(trailer);
+    this.createdAt = buffer.getLong(trailer + Long.BYTES);
+    ByteBuffer directory = buffer.duplicate().position((int) buffer.getLong(trailer + 2 * Long.BYTES));
+    int collections = directory.getInt();
+    for (int i = 0; i < collections; i++) {
+      byte[] name = new byte[directory.getShort()];
+      directory.get(name);
+      int indexOffset = directory.getInt();
+      int size = directory.getInt();
+      sections.put(new String(name, StandardCharsets.UTF_8), new Section(buffer, indexOffset, size));
+    }
+  }
+
+  /**
+   * Map a snapshot file.
+   *
+   * @param file the file
+   * @return the snapshot in it
+   * @throws IOException if it can't be read, or isn't a snapshot
+   */
+  static SnapshotFile open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // The mapping outlives the channel.
+      return new SnapshotFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (RuntimeException e) {
+      throw new IOException("Not a snapshot", e);
+    }
+  }
+
+  /**
+   * @return the token the snapshot was taken at (see `Snapshots`)
+   */
+  long token() {
+    return token;
+  }
+
+  /**
+   * @return when the snapshot was taken, in milliseconds since the epoch
+   */
+  long createdAt() {
+    return createdAt;
+  }
+
+  /**
+   * @return how big the snapshot is, in bytes
+   */
+  int bytes() {
+    return buffer.limit();
+  }
+
+  /**
+   * @param collection a collection's name
+   * @return its documents, or null if they aren't in the snapshot
+   */
+  Section section(String collection) {
+    return sections.get(collection);
+  }
+
+  /**
+   * Write a snapshot. It's written to a temporary file and then moved
+   * into place, so readers only ever see a whole snapshot.
+   *
+   * @param file where to write it
+   * @param token the token to record it as taken at
+   * @param collections the documents of each collection, in order of `_id`
+   * @throws IOException if it can't be written
+   */
+  static void write(Path file, long token, Map<String, Iterable<RawBsonDocument>> collections) throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (CountingOutput out = new CountingOutput(Files.newOutputStream(temporary))) {
+      List<String> names = new ArrayList<>();
+      List<int[]> directory = new ArrayList<>();
+      for (Map.Entry<String, Iterable<RawBsonDocument>> collection : collections.entrySet()) {
+        // Each document's ID and offset, for the index.
+        List<byte[]> ids = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        for (RawBsonDocument document : collection.getValue()) {
+          if (!document.isObjectId("_id")) {
+            continue;
+          }
+          ids.add(document.getObjectId("_id").getValue().toByteArray());
+          offsets.add(out.position());
+          out.write(bytesOf(document));
+        }
+        int indexOffset = out.position();
+        for (int i = 0; i < ids.size(); i++) {
+          out.write(ids.get(i));
+          out.writeInt(offsets.get(i));
+        }
+        names.add(collection.getKey());
+        directory.add(new int[] {indexOffset, ids.size()});
+      }
+      long directoryOffset = out.position();
+      out.writeInt(names.size());
+      for (int i = 0; i < names.size(); i++) {
+        byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeInt(directory.get(i)[0]);
+        out.writeInt(directory.get(i)[1]);
+      }
+      out.writeLong(token);
+      out.writeLong(System.currentTimeMillis());
+      out.writeLong(directoryOffset);
+      out.writeLong(MAGIC);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temporary);
+      throw e;
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param document a raw BSON document
+   * @return a copy of its bytes
+   */
+  static byte[] bytesOf(RawBsonDocument document) {
+    ByteBuffer buffer = document.getByteBuffer().asNIO();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  // Keeps track of how much has been written, and refuses to write past
+  // what an int offset can point at.
+  private static final class CountingOutput extends DataOutputStream {
+    private CountingOutput(OutputStream out) {
+      super(new BufferedOutputStream(out));
+    }
+
+    private int position() throws IOException {
+      // `written` is an int that sticks at Integer.MAX_VALUE.
+      if (written == Integer.MAX_VALUE) {
+        throw new IOException("The snapshot would be bigger than 2GB");
+      }
+      return written;
+    }
+  }
+}
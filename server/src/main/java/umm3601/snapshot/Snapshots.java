@@ -0,0 +1,359 @@
+package umm3601.snapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.metrics.MetricsRegistry;
+import umm3601.todos.TodoSync;
+
+/**
+ * Periodically snapshots collections to a file (see `SnapshotFile`), so
+ * that a restarted server can answer lookups by ID from the snapshot
+ * straight away, rather than every one of them going to Mongo while its
+ * caches warm up.
+ * <p>
+ * A snapshot is a little out of date by the time it's loaded, so it's
+ * brought up to date before it's used. That doesn't rewrite the
+ * snapshot; it just forgets the documents in it that have changed
+ * since, and lookups of those go to Mongo as usual. The todos catch up
+ * from `TodoSync`'s sequence numbers, which only reads what's changed,
+ * so that's done as the snapshot is loaded. Anything else (and the
+ * todos, if the snapshot is older than the tombstones we keep) is caught
+ * up by reading the whole collection and comparing it with the
+ * snapshot, in the background; lookups of that collection go to Mongo
+ * until it's done.
+ * <p>
+ * After that, the controllers `forget` documents as they change them,
+ * and the todos keep catching up every time a snapshot is taken. Other
+ * collections don't, so as with `KnownIds`, only use this when this
+ * server is the only thing changing them.
+ */
+public class Snapshots {
+
+  public static final long DEFAULT_SNAPSHOT_SECONDS = 300;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Snapshots.class);
+
+  // A collection that's snapshotted.
+  private static final class Source {
+    private final MongoCollection<RawBsonDocument> collection;
+    private final Bson fields;
+    private final TodoSync sync;
+    // Documents in the loaded snapshot that are out of date, by position
+    private volatile BitSet forgotten = new BitSet();
+    // Whether the loaded snapshot's copy has been brought up to date, so
+    // lookups can use it
+    private volatile boolean caughtUp;
+
+    private Source(MongoCollection<RawBsonDocument> collection, Bson fields, TodoSync sync) {
+      this.collection = collection;
+      this.fields = fields;
+      this.sync = sync;
+    }
+  }
+
+  private final Path file;
+  private final MongoDatabase database;
+  private final Map<String, Source> sources = new LinkedHashMap<>();
+
+  private volatile SnapshotFile loaded;
+  // How far the sequenced collections have caught up.
+  private volatile long syncedThrough;
+
+  private final LongAdder hits;
+  private final LongAdder forgets;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct the snapshots of a database's collections; say which with
+   * `collection`.
+   *
+   * @param file where to keep the snapshot
+   * @param database the database the collections are in
+   * @param metrics where to count lookups answered from the snapshot
+   */
+  public Snapshots(Path file, MongoDatabase database, MetricsRegistry metrics) {
+    this.file = file;
+    this.database = database.withReadPreference(ReadPreference.primary());
+    this.hits = metrics.counter("snapshot.hits");
+    this.forgets = metrics.counter("snapshot.forgotten");
+    metrics.gauge("snapshot.bytes", () -> loaded == null ? 0 : loaded.bytes());
+    metrics.gauge("snapshot.ageSeconds", () ->
+      loaded == null ? 0 : TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - loaded.createdAt()));
+  }
+
+  /**
+   * Snapshot a collection.
+   *
+   * @param name the collection's name
+   * @param fields the fields of its documents to keep, which should be
+   *   the same ones lookups of it respond with
+   * @param sync if it's the todos, the sequence numbers to catch up
+   *   with; otherwise null
+   * @return this, so calls can be chained
+   */
+  public Snapshots collection(String name, Bson fields, TodoSync sync) {
+    sources.put(name, new Source(database.getCollection(name, RawBsonDocument.class), fields, sync));
+    return this;
+  }
+
+  /**
+   * Map the snapshot, if there is one, and catch up the collections with
+   * sequence numbers, so lookups of them can use it. Mapping is quick
+   * however big the snapshot is, and catching up only reads what's
+   * changed since it was taken, so this is fine to call on startup. The
+   * other collections aren't used until `catchUp` has compared them.
+   */
+  public void load() {
+    SnapshotFile snapshot;
+    try {
+      snapshot = SnapshotFile.open(file);
+    } catch (NoSuchFileException e) {
+      LOGGER.info("There's no snapshot at {} yet", file);
+      return;
+    } catch (IOException e) {
+      LOGGER.warn("Couldn't load the snapshot at {}", file, e);
+      return;
+    }
+    for (Source source : sources.values()) {
+      source.forgotten = new BitSet();
+      source.caughtUp = false;
+    }
+    syncedThrough = snapshot.token();
+    // Nothing is looked up in it yet, but from here on the controllers
+    // forget what they change, so nothing written during the catch-up
+    // is missed.
+    loaded = snapshot;
+    try {
+      for (Map.Entry<String, Source> entry : sources.entrySet()) {
+        Source source = entry.getValue();
+        if (source.sync != null && syncedThrough > source.sync.prunedThrough()) {
+          catchUpSequenced(entry.getKey(), source);
+          source.caughtUp = true;
+        }
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Couldn't bring the snapshot up to date; not using it", e);
+      loaded = null;
+      return;
+    }
+    LOGGER.info("Loaded a {} byte snapshot taken at {}", snapshot.bytes(), snapshot.createdAt());
+  }
+
+  /**
+   * In the background, bring the snapshot up to date, then every
+   * `snapshotSeconds` write a new one.
+   *
+   * @param snapshotSeconds how often to snapshot
+   */
+  public void start(long snapshotSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "snapshots");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.execute(() -> {
+      try {
+        catchUp();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't bring the snapshot up to date; not using it", e);
+        loaded = null;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        catchUpSequenced();
+        write();
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Couldn't write a snapshot", e);
+      }
+    }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop snapshotting.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Look up a document in the snapshot.
+   *
+   * @param collection the collection's name
+   * @param id the document's ID
+   * @return the document, or null if it isn't in the snapshot (or has
+   *   changed since), in which case ask Mongo
+   */
+  public RawBsonDocument get(String collection, ObjectId id) {
+    SnapshotFile snapshot = loaded;
+    Source source = sources.get(collection);
+    SnapshotFile.Section section = snapshot == null || source == null ? null : snapshot.section(collection);
+    if (section == null) {
+      return null;
+    }
+    int position = source.caughtUp ? section.positionOf(id) : -1;
+    if (position < 0 || isForgotten(source, position)) {
+      return null;
+    }
+    hits.increment();
+    return section.document(position);
+  }
+
+  /**
+   * Stop answering lookups of a document from the snapshot; call this
+   * after changing (or deleting) it.
+   *
+   * @param collection the collection's name
+   * @param id the document's ID
+   */
+  public void forget(String collection, ObjectId id) {
+    SnapshotFile snapshot = loaded;
+    Source source = sources.get(collection);
+    SnapshotFile.Section section = snapshot == null || source == null ? null : snapshot.section(collection);
+    if (section == null) {
+      return;
+    }
+    int position = section.positionOf(id);
+    if (position >= 0) {
+      forget(source, position);
+    }
+  }
+
+  private static boolean isForgotten(Source source, int position) {
+    BitSet forgotten = source.forgotten;
+    synchronized (forgotten) {
+      return forgotten.get(position);
+    }
+  }
+
+  private void forget(Source source, int position) {
+    BitSet forgotten = source.forgotten;
+    synchronized (forgotten) {
+      forgotten.set(position);
+    }
+    forgets.increment();
+  }
+
+  /**
+   * Forget everything in the loaded snapshot that's changed since it was
+   * taken, in the collections `load` didn't catch up, and start using
+   * them.
+   */
+  public void catchUp() {
+    SnapshotFile snapshot = loaded;
+    if (snapshot == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      Source source = entry.getValue();
+      SnapshotFile.Section section = snapshot.section(entry.getKey());
+      if (section == null || source.caughtUp) {
+        continue;
+      }
+      catchUpByComparing(source, section);
+      source.caughtUp = true;
+    }
+    LOGGER.info("Brought the snapshot up to date in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  // Catch up the collections with sequence numbers, which only reads
+  // what's changed since last time.
+  private void catchUpSequenced() {
+    if (loaded == null) {
+      return;
+    }
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      if (entry.getValue().sync != null) {
+        catchUpSequenced(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void catchUpSequenced(String name, Source source) {
+    long since = syncedThrough;
+    long until = source.sync.stablePoint();
+    for (RawBsonDocument changed : source.collection.find(TodoSync.changedBetween(since, until))
+        .projection(Projections.include("_id"))) {
+      forget(name, changed.getObjectId("_id").getValue());
+    }
+    for (String deleted : source.sync.deletedBetween(since, until, Integer.MAX_VALUE)) {
+      if (ObjectId.isValid(deleted)) {
+        forget(name, new ObjectId(deleted));
+      }
+    }
+    syncedThrough = until;
+  }
+
+  // Read every document, and forget the ones that differ from the
+  // snapshot's copy, or that aren't there any more.
+  private void catchUpByComparing(Source source, SnapshotFile.Section section) {
+    BitSet current = new BitSet(section.size());
+    for (RawBsonDocument document : source.collection.find().projection(source.fields).sort(Sorts.ascending("_id"))) {
+      if (!document.isObjectId("_id")) {
+        continue;
+      }
+      int position = section.positionOf(document.getObjectId("_id").getValue());
+      if (position >= 0
+          && document.getByteBuffer().asNIO().equals(section.document(position).getByteBuffer().asNIO())) {
+        current.set(position);
+      }
+    }
+    for (int position = current.nextClearBit(0); position < section.size();
+        position = current.nextClearBit(position + 1)) {
+      forget(source, position);
+    }
+  }
+
+  /**
+   * Take a new snapshot. It's used by the next server to start, not
+   * this one, which carries on with the snapshot it loaded.
+   *
+   * @throws IOException if it can't be written
+   */
+  public void write() throws IOException {
+    // Changes made while the snapshot is being read are caught up on
+    // from here, so they can't be missed.
+    long token = 0;
+    Map<String, Iterable<RawBsonDocument>> collections = new LinkedHashMap<>();
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      Source source = entry.getValue();
+      if (source.sync != null) {
+        token = source.sync.stablePoint();
+      }
+      collections.put(entry.getKey(), source.collection.find()
+        .projection(source.fields)
+        .sort(Sorts.ascending("_id")));
+    }
+    long start = System.nanoTime();
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    SnapshotFile.write(file, token, collections);
+    LOGGER.info("Wrote a {} byte snapshot in {} ms", Files.size(file),
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+}
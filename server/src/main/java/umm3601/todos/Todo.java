@@ -1,5 +1,7 @@
 package umm3601.todos;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
 import org.mongojack.Id;
 import org.mongojack.ObjectId;
 
@@ -19,6 +21,9 @@ import org.mongojack.ObjectId;
 // check in CheckStyle so that we don't get a failed
 // build when Gradle runs CheckStyle.
 @SuppressWarnings({"VisibilityModifier"})
+// Todos in the database also have a `seq` (see `TodoSync`), which is
+// bookkeeping rather than part of the todo.
+@JsonIgnoreProperties({"seq"})
 public class Todo {
   // By default Java field names shouldn't start with underscores.
   // Here, though, we *have* to use the name `_id` to match the
@@ -2,26 +2,55 @@ package umm3601.todos;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Filters.regex;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.GoneResponse;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.cache.ResponseCache;
+import umm3601.columnar.ColumnQuery;
+import umm3601.columnar.ColumnStore;
+import umm3601.encoding.ContentNegotiation;
+import umm3601.encoding.Encoding;
+import umm3601.export.CursorExporter;
+import umm3601.mongo.Deadline;
+import umm3601.mongo.Deadlines;
+import umm3601.mongo.KnownIds;
+import umm3601.mongo.PatchFields;
+import umm3601.mongo.RequestedSort;
+import umm3601.mongo.SortableFields;
+import umm3601.search.SubstringSearch;
+import umm3601.snapshot.Snapshots;
 
 /**
  * Controller that manages requests for info about todos.
@@ -32,16 +61,231 @@ public class TodoController {
   private static final String STATUS_KEY  = "status";
   private static final String CATEGORY_KEY  = "category";
   private static final String BODY_KEY  = "body";
+  private static final String IDS_KEY = "ids";
+  private static final String COUNT_BY_KEY = "by";
+  private static final String COUNT_VALUE_KEY = "value";
+  private static final String SINCE_KEY = "since";
+
+  /**
+   * The most todos whose status one `setTodosStatus` request may change.
+   */
+  public static final int MAX_BULK_IDS = 1000;
+
+  /**
+   * The most changed todos, or deleted ones, one `syncTodos` response
+   * will send; a client further behind than that starts again.
+   */
+  public static final int MAX_SYNC_CHANGES = 10_000;
+
+  /**
+   * The fields of a `Todo`. Raw reads project down to just these so
+   * their JSON has the same fields Jackson would give a `Todo`. Users
+   * embed todos with these fields, too (see `UserController`).
+   */
+  public static final Bson TODO_FIELDS = Projections.include(OWNER_KEY, STATUS_KEY, BODY_KEY, CATEGORY_KEY);
+
+  /**
+   * The columns, in order, of a CSV export of todos.
+   */
+  private static final List<String> TODO_COLUMNS = List.of("_id", OWNER_KEY, STATUS_KEY, BODY_KEY, CATEGORY_KEY);
+
+  /**
+   * The fields that `getTodos` can sort by; each has a supporting index.
+   */
+  public static final List<String> SORTABLE_FIELDS = List.of(OWNER_KEY, STATUS_KEY, CATEGORY_KEY);
+
+  /**
+   * The fields that `getTodos` filters on by substring.
+   */
+  public static final List<String> SEARCHABLE_FIELDS = List.of(OWNER_KEY, BODY_KEY, CATEGORY_KEY);
+
+  /**
+   * The fields of a `Todo`, in order, as a `ColumnStore` keeps them.
+   */
+  public static final List<String> COLUMN_FIELDS = List.of(OWNER_KEY, STATUS_KEY, BODY_KEY, CATEGORY_KEY);
+
+  /**
+   * The fields `getTodos` filters on that have few enough distinct values
+   * for a `ColumnStore` to keep a bitmap of the todos with each.
+   */
+  public static final List<String> BITMAP_FIELDS = List.of(OWNER_KEY, STATUS_KEY, CATEGORY_KEY);
 
   private final JacksonMongoCollection<Todo> todosCollection;
+  // The collection used for `getTodos`; it may be routed to secondaries
+  // since those scans can tolerate slightly stale data.
+  private final JacksonMongoCollection<Todo> todosListCollection;
+
+  // The same collection, read as raw BSON so JSON responses can be
+  // transcoded straight from what Mongo sends us.
+  private final MongoCollection<RawBsonDocument> todosRawCollection;
+  private final MongoCollection<RawBsonDocument> todosRawListCollection;
+
+  private final SortableFields sortableFields;
+
+  // Per owner and per category todo counts, kept up to date as todos change
+  private final TodoCounts todoCounts;
+
+  // Sequence numbers and tombstones, so `syncTodos` can send just what's changed
+  private final TodoSync todoSync;
+
+  // If set, `getTodo` answers 404 without asking Mongo for IDs that
+  // certainly don't exist.
+  private volatile KnownIds knownIds;
+
+  // If set, narrows `getTodos`'s substring filters down to a list of
+  // candidate IDs before they get to Mongo.
+  private volatile SubstringSearch substringSearch;
+
+  // If set, cached responses read from the todos are dropped as they change.
+  private volatile ResponseCache responseCache;
+
+  // If set, `getTodo` answers from it when it can.
+  private volatile Snapshots snapshots;
+
+  // If set, `getTodos` answers from it, rather than Mongo, when it can.
+  private volatile ColumnStore columnStore;
+
+  // The fields `patchTodo` may change, checked just like `addNewTodo` checks them
+  private final PatchFields patchFields = new PatchFields()
+    .text(OWNER_KEY, owner -> owner.length() > 0, "Todos must have a non-empty owner")
+    .bool(STATUS_KEY)
+    .text(BODY_KEY, body -> body.length() > 0, "Todos must have a non-empty body")
+    .text(CATEGORY_KEY, category -> category.length() > 0, "Todos must have a non-empty category");
 
   /**
-   * Construct a controller for todos.
+   * Construct a controller for todos whose reads all go to the primary.
    *
    * @param database the database containing todos data
    */
   public TodoController(MongoDatabase database) {
-    todosCollection = JacksonMongoCollection.builder().build(database, "todos", Todo.class);
+    this(database, ReadPreference.primary());
+  }
+
+  /**
+   * Construct a controller for todos whose list endpoint reads using the
+   * given read preference. Single-todos lookups, which clients use to
+   * read back their own writes, and all writes always go to the primary.
+   *
+   * @param database the database containing todos data
+   * @param listReadPreference the read preference to use for `getTodos`
+   */
+  public TodoController(MongoDatabase database, ReadPreference listReadPreference) {
+    this(database, listReadPreference, false);
+  }
+
+  /**
+   * Construct a controller for todos with its own counts and sync
+   * bookkeeping.
+   *
+   * @param database the database containing todo data
+   * @param listReadPreference the read preference to use for `getTodos`
+   * @param allowAdHocSorts whether `getTodos` may sort on fields outside
+   *   `SORTABLE_FIELDS` when a request opts into an `allowDiskUse` sort
+   */
+  public TodoController(MongoDatabase database, ReadPreference listReadPreference, boolean allowAdHocSorts) {
+    this(database, listReadPreference, allowAdHocSorts, new TodoCounts(database), new TodoSync(database));
+  }
+
+  /**
+   * Construct a controller for todos.
+   *
+   * @param database the database containing todo data
+   * @param listReadPreference the read preference to use for `getTodos`
+   * @param allowAdHocSorts whether `getTodos` may sort on fields outside
+   *   `SORTABLE_FIELDS` when a request opts into an `allowDiskUse` sort
+   * @param todoCounts the per owner and per category todo counts
+   * @param todoSync the sync bookkeeping shared by everything in this
+   *   server that writes todos
+   */
+  public TodoController(MongoDatabase database, ReadPreference listReadPreference, boolean allowAdHocSorts,
+      TodoCounts todoCounts, TodoSync todoSync) {
+    todosCollection = JacksonMongoCollection.builder()
+      .build(database.withReadPreference(ReadPreference.primary()), "todos", Todo.class);
+    todosListCollection = JacksonMongoCollection.builder()
+      .build(database.withReadPreference(listReadPreference), "todos", Todo.class);
+    todosRawCollection = database.withReadPreference(ReadPreference.primary())
+      .getCollection("todos", RawBsonDocument.class);
+    todosRawListCollection = database.withReadPreference(listReadPreference)
+      .getCollection("todos", RawBsonDocument.class);
+
+    sortableFields = new SortableFields(OWNER_KEY, SORTABLE_FIELDS, allowAdHocSorts);
+    this.todoCounts = todoCounts;
+    this.todoSync = todoSync;
+  }
+
+  /**
+   * Create the indexes this controller's queries rely on. This talks to
+   * Mongo, so the server calls it in the background after starting up
+   * rather than holding up startup (or the constructor) on it.
+   */
+  public void ensureIndexes() {
+    sortableFields.ensureIndexes(todosCollection);
+    todoSync.ensureIndexes();
+  }
+
+  /**
+   * Check the IDs `getTodo` is asked for against a set of known IDs,
+   * and add new todos' IDs to it.
+   *
+   * @param ids the IDs of the todos that exist
+   */
+  public void rejectUnknownIds(KnownIds ids) {
+    this.knownIds = ids;
+  }
+
+  /**
+   * Narrow the substring filters of `getTodos` and `exportTodos` with
+   * an index, and keep that index up to date as todos change.
+   *
+   * @param search an index over `SEARCHABLE_FIELDS`
+   */
+  public void searchSubstringsWith(SubstringSearch search) {
+    this.substringSearch = search;
+  }
+
+  /**
+   * Drop cached responses read from the todos whenever this controller
+   * changes them.
+   *
+   * @param cache the cache holding responses read from the todos
+   */
+  public void invalidateOnWrite(ResponseCache cache) {
+    this.responseCache = cache;
+  }
+
+  /**
+   * Answer `getTodo` from a snapshot when it can.
+   *
+   * @param snapshot a snapshot of the todos
+   */
+  public void readFromSnapshot(Snapshots snapshot) {
+    this.snapshots = snapshot;
+  }
+
+  /**
+   * Answer `getTodos` from a copy of the todos in memory when it can,
+   * and keep that copy up to date as todos change.
+   *
+   * @param store a store of the todos' `COLUMN_FIELDS`
+   */
+  public void filterInMemoryWith(ColumnStore store) {
+    this.columnStore = store;
+  }
+
+  // Called after every write to the todos, with the IDs of the todos
+  // inserted, changed or deleted.
+  private void todosChanged(List<ObjectId> ids) {
+    if (responseCache != null) {
+      responseCache.invalidate("todos");
+    }
+    if (snapshots != null) {
+      for (ObjectId id : ids) {
+        snapshots.forget("todos", id);
+      }
+    }
+    if (columnStore != null) {
+      columnStore.refresh(ids);
+    }
   }
 
   /**
@@ -51,17 +295,38 @@ public class TodoController {
    */
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    Todo todos;
+    Bson byId;
 
     try {
-      todos = todosCollection.find(eq("_id", new ObjectId(id))).first();
+      byId = eq("_id", new ObjectId(id));
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todos id wasn't a legal Mongo Object ID.");
     }
+    if (knownIds != null && !knownIds.mightContain(new ObjectId(id))) {
+      throw new NotFoundResponse("The requested todos was not found");
+    }
+
+    // JSON responses skip decoding into a `Todo`, and are transcoded
+    // straight from the raw BSON instead.
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      RawBsonDocument snapshotted = snapshots == null ? null : snapshots.get("todos", new ObjectId(id));
+      if (snapshotted != null) {
+        ContentNegotiation.respondRaw(ctx, snapshotted);
+        return;
+      }
+      RawBsonDocument todos = Deadlines.of(ctx).apply(todosRawCollection.find(byId)).projection(TODO_FIELDS).first();
+      if (todos == null) {
+        throw new NotFoundResponse("The requested todos was not found");
+      }
+      ContentNegotiation.respondRaw(ctx, todos);
+      return;
+    }
+
+    Todo todos = Deadlines.of(ctx).apply(todosCollection.find(byId)).first();
     if (todos == null) {
       throw new NotFoundResponse("The requested todos was not found");
     } else {
-      ctx.json(todos);
+      ContentNegotiation.respond(ctx, todos);
     }
   }
 
@@ -72,7 +337,197 @@ public class TodoController {
    */
   public void deleteTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    todosCollection.deleteOne(eq("_id", new ObjectId(id)));
+    FindOneAndDeleteOptions options = Deadlines.of(ctx).apply(new FindOneAndDeleteOptions());
+    Todo deleted;
+    long seq = todoSync.begin();
+    try {
+      deleted = todosCollection.findOneAndDelete(eq("_id", new ObjectId(id)), options);
+      if (deleted != null) {
+        todoSync.deleted(List.of(new ObjectId(id)), seq);
+      }
+    } finally {
+      todoSync.end(seq);
+    }
+    if (deleted != null) {
+      todoCounts.removed(deleted.owner, deleted.category, deleted.status);
+      todosChanged(List.of(new ObjectId(id)));
+    }
+    if (substringSearch != null) {
+      substringSearch.remove(new ObjectId(id));
+    }
+  }
+
+  /**
+   * Change some of the fields of the todo specified by the `id`
+   * parameter in the request. The body is an object holding just the
+   * fields to change; only those are checked, and they're all changed
+   * with a single `$set`, so the todo keeps its ID.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void patchTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    Bson byId;
+
+    try {
+      byId = eq("_id", new ObjectId(id));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested todos id wasn't a legal Mongo Object ID.");
+    }
+
+    Map<String, Object> changes = patchFields.validate(ContentNegotiation.bodyValidator(ctx, JsonNode.class).get());
+
+    FindOneAndUpdateOptions options = Deadlines.of(ctx).apply(new FindOneAndUpdateOptions());
+    // This returns the todo as it was before the update, so we can tell
+    // which counts it's moving between.
+    Todo before;
+    long seq = todoSync.begin();
+    try {
+      before = todosCollection.findOneAndUpdate(byId,
+        Updates.combine(PatchFields.toUpdate(changes), Updates.set(TodoSync.SEQ_KEY, seq)), options);
+    } finally {
+      todoSync.end(seq);
+    }
+    if (before == null) {
+      throw new NotFoundResponse("The requested todos was not found");
+    }
+    todoCounts.changed(before, changes);
+    todosChanged(List.of(new ObjectId(id)));
+    if (substringSearch != null) {
+      substringSearch.put(new ObjectId(id), changes);
+    }
+    ctx.status(HttpCode.OK);
+    ContentNegotiation.respond(ctx, Map.of("id", id));
+  }
+
+  /**
+   * Change the status of a batch of todos at once. The body holds the
+   * `ids` of the todos, and the `status` to give them all; without a
+   * `status`, each todo's status is flipped instead. Either way it's a
+   * single `updateMany`.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void setTodosStatus(Context ctx) {
+    JsonNode body = ContentNegotiation.bodyValidator(ctx, JsonNode.class).get();
+
+    JsonNode idsNode = body.get(IDS_KEY);
+    if (idsNode == null || !idsNode.isArray() || idsNode.size() == 0 || idsNode.size() > MAX_BULK_IDS) {
+      throw new BadRequestResponse("Todos' statuses can be changed between 1 and " + MAX_BULK_IDS + " at a time");
+    }
+    List<ObjectId> ids = new ArrayList<>();
+    for (JsonNode idNode : idsNode) {
+      if (!idNode.isTextual() || !ObjectId.isValid(idNode.textValue())) {
+        throw new BadRequestResponse("The todo id " + idNode + " wasn't a legal Mongo Object ID.");
+      }
+      ids.add(new ObjectId(idNode.textValue()));
+    }
+
+    JsonNode statusNode = body.get(STATUS_KEY);
+    if (statusNode != null && !statusNode.isBoolean()) {
+      throw new BadRequestResponse("The status must be true or false");
+    }
+
+    Deadlines.of(ctx).check();
+    UpdateResult result;
+    long seq = todoSync.begin();
+    try {
+      if (statusNode == null) {
+        // Flipping each todo's own status takes an update pipeline.
+        result = todosRawCollection.updateMany(in("_id", ids), List.of(new Document("$set",
+          new Document(STATUS_KEY, new Document("$not", "$" + STATUS_KEY)).append(TodoSync.SEQ_KEY, seq))));
+      } else {
+        result = todosRawCollection.updateMany(in("_id", ids),
+          Updates.combine(Updates.set(STATUS_KEY, statusNode.booleanValue()), Updates.set(TodoSync.SEQ_KEY, seq)));
+      }
+    } finally {
+      todoSync.end(seq);
+    }
+    if (result.getModifiedCount() > 0) {
+      // We don't know which todos' statuses actually changed, so recount
+      // the owners and categories of all of them.
+      Set<String> owners = new HashSet<>();
+      Set<String> categories = new HashSet<>();
+      for (Document todo : todosRawCollection.find(in("_id", ids), Document.class)
+          .projection(Projections.include(OWNER_KEY, CATEGORY_KEY))) {
+        owners.add(todo.getString(OWNER_KEY));
+        categories.add(todo.getString(CATEGORY_KEY));
+      }
+      todoCounts.recount(owners, categories);
+      todosChanged(ids);
+    }
+    ctx.status(HttpCode.OK);
+    ContentNegotiation.respond(ctx, Map.of("matched", result.getMatchedCount(), "modified", result.getModifiedCount()));
+  }
+
+  /**
+   * Get how many todos, and how many open todos, each owner (or, with
+   * `by=category`, each category) has. With `value`, get just the counts
+   * for that one owner or category. These come from `TodoCounts` rather
+   * than counting todos, so they're cheap however many todos there are.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoCounts(Context ctx) {
+    String field = ctx.queryParamAsClass(COUNT_BY_KEY, String.class)
+      .check(TodoCounts.COUNTED_FIELDS::contains, "Todos can only be counted by " + TodoCounts.COUNTED_FIELDS)
+      .getOrDefault(OWNER_KEY);
+    String value = ctx.queryParam(COUNT_VALUE_KEY);
+    if (value == null) {
+      ContentNegotiation.respond(ctx, todoCounts.counts(field));
+    } else {
+      ContentNegotiation.respond(ctx, todoCounts.count(field, value));
+    }
+  }
+
+  /**
+   * Get the todos that have changed since a client last synced, so it
+   * doesn't have to download them all again. The response holds the
+   * `todos` inserted or changed since the `since` token, the IDs of the
+   * todos `deleted` since then, and the `token` to send next time.
+   * Without a `since` (or if the client is too far behind, when the
+   * response is `full`) it holds every todo, and the client should drop
+   * any it has that aren't there. A `since` older than the tombstones
+   * we still keep gets a 410 Gone, and the client should start again
+   * without one.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void syncTodos(Context ctx) {
+    long since = ctx.queryParamAsClass(SINCE_KEY, Long.class)
+      .check(token -> token >= 0, "The sync token must not be negative")
+      .getOrDefault(0L);
+    if (since > 0 && since <= todoSync.prunedThrough()) {
+      throw new GoneResponse("The sync token is too old; sync again without one");
+    }
+    Deadline deadline = Deadlines.of(ctx);
+    // Everything up to here has been written, so it's where the next sync
+    // picks up.
+    long until = todoSync.stablePoint();
+
+    List<Todo> changed = null;
+    List<String> deleted = List.of();
+    if (since > 0) {
+      changed = deadline.apply(todosCollection.find(TodoSync.changedBetween(since, until)))
+        .limit(MAX_SYNC_CHANGES + 1)
+        .into(new ArrayList<>());
+      deleted = todoSync.deletedBetween(since, until, MAX_SYNC_CHANGES + 1);
+      if (changed.size() > MAX_SYNC_CHANGES || deleted.size() > MAX_SYNC_CHANGES) {
+        changed = null;
+        deleted = List.of();
+      }
+    }
+    boolean full = changed == null;
+    if (full) {
+      changed = deadline.apply(todosCollection.find()).into(new ArrayList<>());
+    }
+
+    Map<String, Object> response = new LinkedHashMap<>();
+    response.put("token", until);
+    response.put("full", full);
+    response.put("todos", changed);
+    response.put("deleted", deleted);
+    ContentNegotiation.respond(ctx, response);
   }
 
   /**
@@ -81,8 +536,97 @@ public class TodoController {
    * @param ctx a Javalin HTTP context
    */
   public void getTodos(Context ctx) {
+    // Sort the results. Sorts on registered fields are backed by an
+    // index; ad-hoc sorts (if allowed) go through an aggregation that
+    // can spill to disk instead of failing on large results.
+    RequestedSort sort = sortableFields.resolve(ctx);
+    if (respondFromColumns(ctx, sort)) {
+      return;
+    }
+
+    Bson filter = filterFor(ctx);
+    Deadline deadline = Deadlines.of(ctx);
+
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      // JSON responses skip decoding into `Todo`s, and are transcoded
+      // straight from the raw BSON as the response is written.
+      if (sort.isIndexed()) {
+        ContentNegotiation.respondRaw(ctx, deadline.apply(todosRawListCollection.find(filter))
+          .projection(TODO_FIELDS)
+          .sort(sort.toBson()));
+      } else {
+        ContentNegotiation.respondRaw(ctx, deadline.apply(todosRawListCollection.aggregate(List.of(
+            Aggregates.match(filter), Aggregates.sort(sort.toBson()), Aggregates.project(TODO_FIELDS))))
+          .allowDiskUse(true));
+      }
+    } else if (sort.isIndexed()) {
+      ContentNegotiation.respond(ctx, deadline.apply(todosListCollection.find(filter))
+        .sort(sort.toBson())
+        .into(new ArrayList<>()));
+    } else {
+      ContentNegotiation.respond(ctx, deadline.apply(todosListCollection
+          .aggregate(List.of(Aggregates.match(filter), Aggregates.sort(sort.toBson()))))
+        .allowDiskUse(true)
+        .into(new ArrayList<>()));
+    }
+  }
+
+  /**
+   * Answer `getTodos` from the column store, with the same filters as
+   * `filterFor`, if there is one and it can.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param sort the sort the request asked for
+   * @return whether it answered
+   */
+  private boolean respondFromColumns(Context ctx, RequestedSort sort) {
+    ColumnStore store = columnStore;
+    if (store == null) {
+      return false;
+    }
+    ColumnQuery query = new ColumnQuery();
+    if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
+      query.equalTo(STATUS_KEY, ctx.queryParamAsClass(STATUS_KEY, Boolean.class).get());
+    }
+    for (String field : SEARCHABLE_FIELDS) {
+      if (ctx.queryParamMap().containsKey(field)) {
+        query.contains(field, ctx.queryParam(field));
+      }
+    }
+    List<Map<String, Object>> todos = store.find(query, sort.getField(), sort.isAscending());
+    if (todos == null) {
+      return false;
+    }
+    ContentNegotiation.respond(ctx, todos);
+    return true;
+  }
+
+  /**
+   * Stream every todo matching the same filters as `getTodos` as
+   * NDJSON or CSV (see `CursorExporter`), optionally gzipped. Unlike
+   * `getTodos`, this never holds more than a batch of todos in memory,
+   * and has no deadline, since exports of big collections take a while.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the client goes away part way through
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    CursorExporter.export(ctx, todosRawListCollection.find(filterFor(ctx)).projection(TODO_FIELDS),
+      "todos", TODO_COLUMNS);
+  }
+
+  /**
+   * Build the filter for the todos a request asks for, from the
+   * request's query parameters. This is shared by `getTodos` and
+   * `exportTodos` so that they always support the same filters.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the filter to use in a query
+   */
+  private Bson filterFor(Context ctx) {
 
     List<Bson> filters = new ArrayList<>(); // start with a blank document
+    Map<String, String> substrings = new HashMap<>();
 
     if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
       Boolean status = ctx.queryParamAsClass(STATUS_KEY, Boolean.class).get();
@@ -91,6 +635,7 @@ public class TodoController {
 
     if (ctx.queryParamMap().containsKey(OWNER_KEY)) {
       String targetOwner = ctx.queryParam(OWNER_KEY);
+      substrings.put(OWNER_KEY, targetOwner);
       Pattern pattern = Pattern.compile(Pattern.quote(targetOwner), Pattern.CASE_INSENSITIVE);
       Bson ownerRegex = regex(OWNER_KEY, pattern);
       filters.add(ownerRegex);
@@ -98,6 +643,7 @@ public class TodoController {
 
     if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
       String targetCategory = ctx.queryParam(CATEGORY_KEY);
+      substrings.put(CATEGORY_KEY, targetCategory);
       Pattern pattern = Pattern.compile(Pattern.quote(targetCategory), Pattern.CASE_INSENSITIVE);
       Bson categoryRegex = regex(CATEGORY_KEY, pattern);
       filters.add(categoryRegex);
@@ -105,20 +651,22 @@ public class TodoController {
 
     if (ctx.queryParamMap().containsKey(BODY_KEY)) {
       String targetBody = ctx.queryParam(BODY_KEY);
+      substrings.put(BODY_KEY, targetBody);
       Pattern pattern = Pattern.compile(Pattern.quote(targetBody), Pattern.CASE_INSENSITIVE);
       Bson bodyRegex = regex(BODY_KEY, pattern);
       filters.add(bodyRegex);
     }
 
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
+    // The regexes above have to look at every todo; if the index can
+    // narrow that down to a few candidates, Mongo only checks those.
+    if (substringSearch != null && !substrings.isEmpty()) {
+      List<ObjectId> candidates = substringSearch.candidates(substrings);
+      if (candidates != null) {
+        filters.add(in("_id", candidates));
+      }
+    }
 
-    ctx.json(todosCollection.find(filters.isEmpty() ? new Document() : and(filters))
-      .sort(sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-      .into(new ArrayList<>()));
+    return filters.isEmpty() ? new Document() : and(filters);
   }
 
   /**
@@ -127,7 +675,7 @@ public class TodoController {
    * @param ctx a Javalin HTTP context
    */
   public void addNewTodo(Context ctx) {
-    Todo newTodos = ctx.bodyValidator(Todo.class)
+    Todo newTodos = ContentNegotiation.bodyValidator(ctx, Todo.class)
       // Verify that the todos has a owner that is not blank
       .check(todo -> todo.owner != null && todo.owner.length() > 0, "Todos must have a non-empty owner")
       // Verify that the todos has a not error status
@@ -138,9 +686,33 @@ public class TodoController {
       .check(todo -> todo.category != null && todo.category.length() > 0, "Todos must have a non-empty category")
       .get();
 
-    todosCollection.insertOne(newTodos);
+    Deadlines.of(ctx).check();
+    long seq = todoSync.begin();
+    try {
+      // `Todo` has no `seq` field, so the todo is inserted as a document
+      // with one, in the field order Jackson would write.
+      ObjectId id = new ObjectId();
+      todosRawCollection.withDocumentClass(Document.class).insertOne(new Document("_id", id)
+        .append(OWNER_KEY, newTodos.owner)
+        .append(STATUS_KEY, newTodos.status)
+        .append(BODY_KEY, newTodos.body)
+        .append(CATEGORY_KEY, newTodos.category)
+        .append(TodoSync.SEQ_KEY, seq));
+      newTodos._id = id.toHexString();
+    } finally {
+      todoSync.end(seq);
+    }
+    todoCounts.added(newTodos.owner, newTodos.category, newTodos.status);
+    todosChanged(List.of(new ObjectId(newTodos._id)));
+    if (knownIds != null) {
+      knownIds.add(new ObjectId(newTodos._id));
+    }
+    if (substringSearch != null) {
+      substringSearch.put(new ObjectId(newTodos._id),
+        Map.of(OWNER_KEY, newTodos.owner, BODY_KEY, newTodos.body, CATEGORY_KEY, newTodos.category));
+    }
     ctx.status(HttpCode.OK);
-    ctx.json(Map.of("id", newTodos._id));
+    ContentNegotiation.respond(ctx, Map.of("id", newTodos._id));
   }
 }
 
@@ -0,0 +1,310 @@
+package umm3601.todos;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.regex;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How many todos (and how many open, i.e., incomplete, todos) each owner
+ * and each category has, kept in the `todoCounts` collection so they can
+ * be read with a single lookup by `_id` instead of counting todos.
+ * <p>
+ * The todo write paths update the counts as they go, with `$inc`, so
+ * the counts stay right across any number of servers. Some writes can't
+ * easily say exactly what they changed (bulk status changes, cascading
+ * deletes), so they recount just the owners and categories they touched
+ * instead. Anything else that writes todos (e.g., the seed loader), and
+ * the occasional race between a recount and a concurrent `$inc`, is
+ * fixed by recounting everything every so often (see `start`).
+ * <p>
+ * Each count is a document like `{_id: "owner:Fry", field: "owner",
+ * value: "Fry", total: 12, open: 3}`. Putting the field at the start of
+ * the `_id` lets listing every owner's counts use the `_id` index too.
+ */
+public class TodoCounts {
+
+  public static final String COLLECTION_NAME = "todoCounts";
+
+  /**
+   * The fields of a todo that are counted by.
+   */
+  public static final List<String> COUNTED_FIELDS = List.of("owner", "category");
+
+  public static final long DEFAULT_RECONCILE_SECONDS = 3600;
+
+  private static final String STATUS_KEY = "status";
+  private static final String FIELD_KEY = "field";
+  private static final String VALUE_KEY = "value";
+  private static final String TOTAL_KEY = "total";
+  private static final String OPEN_KEY = "open";
+  private static final String RECONCILED_KEY = "reconciledAt";
+
+  private static final int WRITE_BATCH_SIZE = 1000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoCounts.class);
+
+  private final MongoCollection<Document> todos;
+  private final MongoCollection<Document> counts;
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct the counts for the todos in a database.
+   *
+   * @param database the database holding the todos
+   */
+  public TodoCounts(MongoDatabase database) {
+    MongoDatabase primary = database.withReadPreference(ReadPreference.primary());
+    this.todos = primary.getCollection("todos");
+    this.counts = primary.getCollection(COLLECTION_NAME);
+  }
+
+  /**
+   * Recount everything now, and then every `reconcileSeconds` in the
+   * background.
+   *
+   * @param reconcileSeconds how often to recount everything
+   */
+  public void start(long reconcileSeconds) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "todo-counts");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        reconcile();
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't reconcile the todo counts", e);
+      }
+    }, 0, reconcileSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop recounting in the background.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Count a todo that's just been added.
+   *
+   * @param owner the todo's owner
+   * @param category the todo's category
+   * @param status whether the todo is complete
+   */
+  public void added(String owner, String category, boolean status) {
+    adjust(owner, category, status, 1);
+  }
+
+  /**
+   * Stop counting a todo that's just been deleted.
+   *
+   * @param owner the todo's owner
+   * @param category the todo's category
+   * @param status whether the todo was complete
+   */
+  public void removed(String owner, String category, boolean status) {
+    adjust(owner, category, status, -1);
+  }
+
+  /**
+   * Move a todo that's just been changed to the counts it now belongs to.
+   *
+   * @param before the todo before it was changed
+   * @param changes the fields that were changed, and their new values
+   */
+  public void changed(Todo before, Map<String, Object> changes) {
+    String owner = (String) changes.getOrDefault("owner", before.owner);
+    String category = (String) changes.getOrDefault("category", before.category);
+    boolean status = (Boolean) changes.getOrDefault(STATUS_KEY, before.status);
+    if (Objects.equals(owner, before.owner) && Objects.equals(category, before.category)
+        && status == before.status) {
+      return;
+    }
+    removed(before.owner, before.category, before.status);
+    added(owner, category, status);
+  }
+
+  private void adjust(String owner, String category, boolean status, int delta) {
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    Map<String, String> values = new HashMap<>();
+    values.put("owner", owner);
+    values.put("category", category);
+    for (String field : COUNTED_FIELDS) {
+      String value = values.get(field);
+      if (value == null) {
+        // Todos missing the field aren't counted (see `reconcile`).
+        continue;
+      }
+      writes.add(new UpdateOneModel<>(eq("_id", key(field, value)),
+        Updates.combine(
+          Updates.setOnInsert(FIELD_KEY, field),
+          Updates.setOnInsert(VALUE_KEY, value),
+          Updates.inc(TOTAL_KEY, delta),
+          Updates.inc(OPEN_KEY, status ? 0 : delta)),
+        new UpdateOptions().upsert(true)));
+    }
+    if (!writes.isEmpty()) {
+      counts.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+  }
+
+  /**
+   * Recount some owners' and categories' todos from scratch.
+   *
+   * @param owners the owners to recount
+   * @param categories the categories to recount
+   */
+  public void recount(Collection<String> owners, Collection<String> categories) {
+    Map<String, Collection<String>> fieldValues = Map.of("owner", owners, "category", categories);
+    for (String field : COUNTED_FIELDS) {
+      Set<String> values = new HashSet<>(fieldValues.get(field));
+      // Todos missing the field aren't counted.
+      values.remove(null);
+      if (values.isEmpty()) {
+        continue;
+      }
+      Set<String> missing = new HashSet<>(values);
+      List<WriteModel<Document>> writes = new ArrayList<>();
+      for (Document count : todos.aggregate(countPipeline(field, in(field, values)))) {
+        if (!(count.get("_id") instanceof String)) {
+          continue;
+        }
+        missing.remove(count.getString("_id"));
+        writes.add(replacement(field, count, null));
+      }
+      if (!writes.isEmpty()) {
+        counts.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+      }
+      // Values with no todos left don't need a count any more.
+      List<String> missingKeys = new ArrayList<>();
+      missing.forEach(value -> missingKeys.add(key(field, value)));
+      if (!missingKeys.isEmpty()) {
+        counts.deleteMany(in("_id", missingKeys));
+      }
+    }
+  }
+
+  /**
+   * Recount every owner's and category's todos from scratch, and drop
+   * the counts of owners and categories that no longer have any.
+   */
+  public void reconcile() {
+    Date started = new Date();
+    for (String field : COUNTED_FIELDS) {
+      List<WriteModel<Document>> writes = new ArrayList<>();
+      for (Document count : todos.aggregate(countPipeline(field, new Document())).allowDiskUse(true)) {
+        // Todos missing the field (or with a non-string one) aren't counted.
+        if (!(count.get("_id") instanceof String)) {
+          continue;
+        }
+        writes.add(replacement(field, count, started));
+        if (writes.size() == WRITE_BATCH_SIZE) {
+          counts.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+          writes.clear();
+        }
+      }
+      if (!writes.isEmpty()) {
+        counts.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+      }
+      // Everything this pass counted was stamped with `started`, so older
+      // stamps are for values that no longer have todos. Counts created by
+      // `$inc` since we started have no stamp, and are kept.
+      counts.deleteMany(and(regex("_id", "^" + field + ":"), lt(RECONCILED_KEY, started)));
+    }
+  }
+
+  /**
+   * @param field one of the `COUNTED_FIELDS`
+   * @param value the owner or category to get the counts of
+   * @return the counts for that owner or category; zeros if it has no todos
+   */
+  public Map<String, Object> count(String field, String value) {
+    Document count = counts.find(eq("_id", key(field, value))).first();
+    return report(value, count);
+  }
+
+  /**
+   * @param field one of the `COUNTED_FIELDS`
+   * @return the counts of every owner or every category, in order
+   */
+  public List<Map<String, Object>> counts(String field) {
+    List<Map<String, Object>> report = new ArrayList<>();
+    for (Document count : counts.find(regex("_id", "^" + field + ":")).sort(Sorts.ascending("_id"))) {
+      report.add(report(count.getString(VALUE_KEY), count));
+    }
+    return report;
+  }
+
+  private static Map<String, Object> report(String value, Document count) {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put(VALUE_KEY, value);
+    report.put(TOTAL_KEY, count == null ? 0 : count.get(TOTAL_KEY, Number.class).longValue());
+    report.put(OPEN_KEY, count == null ? 0 : count.get(OPEN_KEY, Number.class).longValue());
+    return report;
+  }
+
+  private static List<Bson> countPipeline(String field, Bson match) {
+    return List.of(
+      Aggregates.match(match),
+      Aggregates.group("$" + field,
+        Accumulators.sum(TOTAL_KEY, 1),
+        Accumulators.sum(OPEN_KEY, new Document("$cond", List.of("$" + STATUS_KEY, 0, 1)))));
+  }
+
+  private static ReplaceOneModel<Document> replacement(String field, Document count, Date reconciledAt) {
+    String value = count.getString("_id");
+    Document replacement = new Document("_id", key(field, value))
+      .append(FIELD_KEY, field)
+      .append(VALUE_KEY, value)
+      .append(TOTAL_KEY, count.get(TOTAL_KEY))
+      .append(OPEN_KEY, count.get(OPEN_KEY));
+    if (reconciledAt != null) {
+      replacement.append(RECONCILED_KEY, reconciledAt);
+    }
+    return new ReplaceOneModel<>(eq("_id", replacement.get("_id")), replacement, new ReplaceOptions().upsert(true));
+  }
+
+  private static String key(String field, String value) {
+    return field + ":" + value;
+  }
+}
@@ -0,0 +1,294 @@
+package umm3601.todos;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The bookkeeping behind delta sync of todos (see
+ * `TodoController.syncTodos`).
+ * <p>
+ * Every write to a todo stamps it with the next number from a sequence
+ * (the `todos` document in the `counters` collection) in its `seq`
+ * field, and every delete records a tombstone with its own `seq` in
+ * `todoTombstones`. A client that has seen everything up to some `seq`
+ * then only needs the todos and tombstones with a bigger one, which an
+ * index on `seq` finds without looking at anything else.
+ * <p>
+ * Numbers are handed out in order, but the writes they're for don't
+ * necessarily finish in order. So a sync only goes up to the number
+ * before the oldest write that's still in flight, and the next sync
+ * picks up from there. That needs to know about every write in flight,
+ * so the server shares one `TodoSync` between everything that writes
+ * todos. It can't see writes in flight in other processes, though; if
+ * several servers write todos, a sync can very occasionally miss a
+ * change that lands just as it runs.
+ * <p>
+ * Nothing here holds a lock while it talks to Mongo. Between Mongo
+ * handing out a number and `begin` recording it, nobody can tell it's in
+ * flight, so while any `begin` is waiting on Mongo, `stablePoint` just
+ * answers what it last worked out.
+ */
+public class TodoSync {
+
+  public static final String SEQ_KEY = "seq";
+  public static final String TOMBSTONES_COLLECTION_NAME = "todoTombstones";
+  public static final long DEFAULT_MAINTENANCE_SECONDS = 3600;
+  public static final long DEFAULT_TOMBSTONE_DAYS = 30;
+
+  private static final String COUNTERS_COLLECTION_NAME = "counters";
+  private static final String TODOS_COUNTER = "todos";
+  private static final String PRUNED_COUNTER = "todoTombstonesPruned";
+  private static final String DELETED_AT_KEY = "deletedAt";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoSync.class);
+
+  private final MongoCollection<Document> todos;
+  private final MongoCollection<Document> tombstones;
+  private final MongoCollection<Document> counters;
+
+  // Sequence numbers handed out to writes that haven't finished yet.
+  private final NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+  // How many `begin`s have asked Mongo for a number, and how many have
+  // got one and added it to `inFlight` (or failed). While these differ,
+  // some write may have a number nobody knows about yet.
+  private final AtomicLong allocationsStarted = new AtomicLong();
+  private final AtomicLong allocationsFinished = new AtomicLong();
+  // The last answer `stablePoint` worked out.
+  private final AtomicLong lastStable = new AtomicLong();
+
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Construct the sync bookkeeping for the todos in a database.
+   *
+   * @param database the database holding the todos
+   */
+  public TodoSync(MongoDatabase database) {
+    MongoDatabase primary = database.withReadPreference(ReadPreference.primary());
+    this.todos = primary.getCollection("todos");
+    this.tombstones = primary.getCollection(TOMBSTONES_COLLECTION_NAME);
+    this.counters = primary.getCollection(COUNTERS_COLLECTION_NAME);
+  }
+
+  /**
+   * Create the indexes that syncs use to find what's changed.
+   */
+  public void ensureIndexes() {
+    todos.createIndex(Indexes.ascending(SEQ_KEY));
+    tombstones.createIndex(Indexes.ascending(SEQ_KEY));
+  }
+
+  /**
+   * Every `maintenanceSeconds`, in the background, give a `seq` to any
+   * todos written without one (e.g., by the seed scripts), and forget
+   * tombstones older than `tombstoneRetention`.
+   *
+   * @param maintenanceSeconds how often to do maintenance
+   * @param tombstoneRetention how long to keep tombstones
+   */
+  public void start(long maintenanceSeconds, Duration tombstoneRetention) {
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "todo-sync");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        stampUnsequenced();
+        prune(tombstoneRetention);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Couldn't do todo sync maintenance", e);
+      }
+    }, 0, maintenanceSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop doing maintenance.
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the sequence number for a write that's about to happen. Every
+   * call must be matched by a call to `end` once the write is done (or
+   * has failed), or syncs will never get past it.
+   *
+   * @return the `seq` to give the documents the write changes
+   */
+  public long begin() {
+    allocationsStarted.incrementAndGet();
+    try {
+      long seq = counters.findOneAndUpdate(eq("_id", TODOS_COUNTER), Updates.inc(SEQ_KEY, 1L),
+        new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER))
+        .get(SEQ_KEY, Number.class).longValue();
+      inFlight.add(seq);
+      return seq;
+    } finally {
+      allocationsFinished.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param seq the sequence number of a write that's finished
+   */
+  public void end(long seq) {
+    inFlight.remove(seq);
+  }
+
+  /**
+   * Record that some todos have been deleted.
+   *
+   * @param ids the deleted todos' IDs
+   * @param seq the delete's sequence number (from `begin`)
+   */
+  public void deleted(Collection<?> ids, long seq) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    Date now = new Date();
+    List<ReplaceOneModel<Document>> deleted = new ArrayList<>();
+    for (Object id : ids) {
+      // Upserts, since a todo deleted twice at once gets two tombstones
+      // for the same ID; either will do.
+      deleted.add(new ReplaceOneModel<>(eq("_id", id),
+        new Document("_id", id).append(SEQ_KEY, seq).append(DELETED_AT_KEY, now),
+        new ReplaceOptions().upsert(true)));
+    }
+    tombstones.bulkWrite(deleted);
+  }
+
+  /**
+   * @return a sequence number such that every write numbered up to it
+   *   has finished; this is the highest such number unless a write was
+   *   being numbered just as it was asked for, in which case it's the
+   *   last one worked out
+   */
+  public long stablePoint() {
+    long started = allocationsStarted.get();
+    if (allocationsFinished.get() != started) {
+      return lastStable.get();
+    }
+    // Every number up to the counter was handed out by a `begin` that had
+    // started by now, unless another one starts while we read it.
+    Document counter = counters.find(eq("_id", TODOS_COUNTER)).first();
+    if (allocationsStarted.get() != started) {
+      return lastStable.get();
+    }
+    long stable = counter == null ? 0 : counter.get(SEQ_KEY, Number.class).longValue();
+    Long oldest = inFlight.ceiling(Long.MIN_VALUE);
+    if (oldest != null) {
+      stable = Math.min(stable, oldest - 1);
+    }
+    return lastStable.accumulateAndGet(stable, Math::max);
+  }
+
+  /**
+   * @return the highest sequence number whose tombstones may have been
+   *   forgotten; syncs from before this have to start again from scratch
+   */
+  public long prunedThrough() {
+    Document counter = counters.find(eq("_id", PRUNED_COUNTER)).first();
+    return counter == null ? 0 : counter.get(SEQ_KEY, Number.class).longValue();
+  }
+
+  /**
+   * @param since the sequence number a client has seen everything up to
+   * @param until the sequence number to go up to (see `stablePoint`)
+   * @return a filter for the todos, or tombstones, changed in between
+   */
+  public static Bson changedBetween(long since, long until) {
+    return and(gt(SEQ_KEY, since), lte(SEQ_KEY, until));
+  }
+
+  /**
+   * @param since the sequence number a client has seen everything up to
+   * @param until the sequence number to go up to (see `stablePoint`)
+   * @param limit the most tombstones to return
+   * @return the IDs of the todos deleted in between, as hex strings
+   */
+  public List<String> deletedBetween(long since, long until, int limit) {
+    List<String> ids = new ArrayList<>();
+    for (Document tombstone : tombstones.find(changedBetween(since, until))
+        .projection(Projections.include("_id"))
+        .sort(Sorts.ascending(SEQ_KEY))
+        .limit(limit)) {
+      Object id = tombstone.get("_id");
+      ids.add(id instanceof ObjectId ? ((ObjectId) id).toHexString() : String.valueOf(id));
+    }
+    return ids;
+  }
+
+  /**
+   * Give every todo that doesn't have a `seq` (because something other
+   * than this server wrote it) one, so syncs pick it up.
+   */
+  public void stampUnsequenced() {
+    long seq = begin();
+    try {
+      long stamped = todos.updateMany(exists(SEQ_KEY, false), Updates.set(SEQ_KEY, seq)).getModifiedCount();
+      if (stamped > 0) {
+        LOGGER.info("Gave {} todos without one a sync sequence number", stamped);
+      }
+    } finally {
+      end(seq);
+    }
+  }
+
+  /**
+   * Forget tombstones older than `retention`, remembering the highest
+   * sequence number forgotten so syncs from before it can be refused.
+   *
+   * @param retention how long to keep tombstones
+   */
+  public void prune(Duration retention) {
+    Bson old = lt(DELETED_AT_KEY, new Date(System.currentTimeMillis() - retention.toMillis()));
+    Document newest = tombstones.find(old).sort(Sorts.descending(SEQ_KEY)).limit(1).first();
+    if (newest == null) {
+      return;
+    }
+    long through = newest.get(SEQ_KEY, Number.class).longValue();
+    // Record how far we're pruning before pruning, so no sync can miss
+    // tombstones without being told to start again.
+    counters.updateOne(eq("_id", PRUNED_COUNTER), Updates.max(SEQ_KEY, through),
+      new UpdateOptions().upsert(true));
+    tombstones.deleteMany(lte(SEQ_KEY, through));
+  }
+}
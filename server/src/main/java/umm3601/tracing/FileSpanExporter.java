@@ -0,0 +1,70 @@
+package umm3601.tracing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+/**
+ * Appends finished spans to a file, one JSON object (see `SpanJson`)
+ * per line, so traces can be looked at locally without a collector.
+ */
+public class FileSpanExporter implements SpanExporter {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final Writer out;
+
+  /**
+   * Construct an exporter that appends to a file.
+   *
+   * @param file the file to append spans to
+   * @throws IOException if the file can't be opened
+   */
+  public FileSpanExporter(Path file) throws IOException {
+    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  @Override
+  public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+    try {
+      for (SpanData span : spans) {
+        out.write(mapper.writeValueAsString(SpanJson.toMap(span)));
+        out.write('\n');
+      }
+      out.flush();
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      return CompletableResultCode.ofFailure();
+    }
+  }
+
+  @Override
+  public synchronized CompletableResultCode flush() {
+    try {
+      out.flush();
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      return CompletableResultCode.ofFailure();
+    }
+  }
+
+  @Override
+  public synchronized CompletableResultCode shutdown() {
+    try {
+      out.close();
+      return CompletableResultCode.ofSuccess();
+    } catch (IOException e) {
+      return CompletableResultCode.ofFailure();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package umm3601.tracing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonValue;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+
+/**
+ * Puts a span around every Mongo command, using the driver's command
+ * events. The sync driver sends those events on the thread running the
+ * command, so each span is a child of whatever span (usually a
+ * request's) is current there.
+ */
+public class MongoTracing implements CommandListener {
+
+  private final Tracer tracer;
+  private final Map<Integer, Span> spans = new ConcurrentHashMap<>();
+
+  /**
+   * Construct Mongo tracing.
+   *
+   * @param openTelemetry the OpenTelemetry to trace with
+   */
+  public MongoTracing(OpenTelemetry openTelemetry) {
+    this.tracer = openTelemetry.getTracer(Tracing.INSTRUMENTATION_NAME);
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    // Commands name their collection as the value of the command name,
+    // e.g., `{"find": "todos", ...}`.
+    BsonValue collection = event.getCommand().get(event.getCommandName());
+    String collectionName = collection != null && collection.isString() ? collection.asString().getValue() : null;
+
+    Span span = tracer.spanBuilder("mongo " + event.getCommandName()
+        + (collectionName == null ? "" : " " + collectionName))
+      .setSpanKind(SpanKind.CLIENT)
+      .setAttribute("db.system", "mongodb")
+      .setAttribute("db.name", event.getDatabaseName())
+      .setAttribute("db.operation", event.getCommandName())
+      .setAttribute("net.peer.name", event.getConnectionDescription().getServerAddress().getHost())
+      .setAttribute("net.peer.port", (long) event.getConnectionDescription().getServerAddress().getPort())
+      .startSpan();
+    if (collectionName != null) {
+      span.setAttribute("db.mongodb.collection", collectionName);
+    }
+    spans.put(event.getRequestId(), span);
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    Span span = spans.remove(event.getRequestId());
+    if (span != null) {
+      span.end();
+    }
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    Span span = spans.remove(event.getRequestId());
+    if (span != null) {
+      span.recordException(event.getThrowable());
+      span.setStatus(StatusCode.ERROR);
+      span.end();
+    }
+  }
+}
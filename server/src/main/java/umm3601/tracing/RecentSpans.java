@@ -0,0 +1,69 @@
+package umm3601.tracing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+/**
+ * An in-process collector: keeps the most recent finished spans in
+ * memory, so they can be read back from `/api/admin/traces`.
+ */
+public class RecentSpans implements SpanExporter {
+
+  public static final int DEFAULT_CAPACITY = 1000;
+
+  private final int capacity;
+  private final Deque<SpanData> spans = new ArrayDeque<>();
+
+  /**
+   * Construct a collector that keeps the most recent `capacity` spans.
+   *
+   * @param capacity how many spans to keep
+   */
+  public RecentSpans(int capacity) {
+    this.capacity = capacity;
+  }
+
+  @Override
+  public synchronized CompletableResultCode export(Collection<SpanData> finished) {
+    for (SpanData span : finished) {
+      spans.addFirst(span);
+      if (spans.size() > capacity) {
+        spans.removeLast();
+      }
+    }
+    return CompletableResultCode.ofSuccess();
+  }
+
+  @Override
+  public CompletableResultCode flush() {
+    return CompletableResultCode.ofSuccess();
+  }
+
+  @Override
+  public synchronized CompletableResultCode shutdown() {
+    spans.clear();
+    return CompletableResultCode.ofSuccess();
+  }
+
+  /**
+   * @param traceId a trace ID, or null for every trace
+   * @return the kept spans of that trace (see `SpanJson`), most recently finished first
+   */
+  public synchronized List<Map<String, Object>> recent(String traceId) {
+    List<Map<String, Object>> result = new ArrayList<>();
+    for (SpanData span : spans) {
+      if (traceId == null || traceId.equals(span.getTraceId())) {
+        result.add(SpanJson.toMap(span));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,112 @@
+package umm3601.tracing;
+
+import io.javalin.http.Context;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+
+/**
+ * Puts a span around every request. The span starts in a `before`
+ * handler and is made current, so Mongo commands and serialization
+ * spans become its children. It ends once the response has been
+ * written (from Javalin's request logger), so streamed responses are
+ * included.
+ * <p>
+ * An incoming W3C `traceparent` header makes the span part of the
+ * caller's trace, and the response carries a `traceparent` of its own,
+ * so clients can find the trace of any request they make.
+ */
+public class RouteTracing {
+
+  private static final String SPAN_KEY = "tracing.span";
+  private static final String SCOPE_KEY = "tracing.scope";
+  private static final int SERVER_ERROR = 500;
+
+  private static final TextMapGetter<Context> HEADERS = new TextMapGetter<>() {
+    @Override
+    public Iterable<String> keys(Context ctx) {
+      return ctx.headerMap().keySet();
+    }
+
+    @Override
+    public String get(Context ctx, String key) {
+      return ctx == null ? null : ctx.header(key);
+    }
+  };
+
+  private final TextMapPropagator propagator;
+  private final Tracer tracer;
+
+  /**
+   * Construct route tracing.
+   *
+   * @param openTelemetry the OpenTelemetry to trace with
+   */
+  public RouteTracing(OpenTelemetry openTelemetry) {
+    this.propagator = openTelemetry.getPropagators().getTextMapPropagator();
+    this.tracer = openTelemetry.getTracer(Tracing.INSTRUMENTATION_NAME);
+  }
+
+  /**
+   * Start the request's span; use this as a `before` handler.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void start(Context ctx) {
+    // Start from the root, not whatever's current on this thread, so a
+    // request can only ever be part of the trace its headers give.
+    io.opentelemetry.context.Context parent = propagator.extract(io.opentelemetry.context.Context.root(), ctx, HEADERS);
+    Span span = tracer.spanBuilder(ctx.method() + " " + ctx.path())
+      .setParent(parent)
+      .setSpanKind(SpanKind.SERVER)
+      .setAttribute("http.method", ctx.method())
+      .setAttribute("http.target", ctx.path())
+      .startSpan();
+    Scope scope = span.makeCurrent();
+    ctx.attribute(SPAN_KEY, span);
+    ctx.attribute(SCOPE_KEY, scope);
+    propagator.inject(io.opentelemetry.context.Context.current(), ctx, (response, key, value) -> {
+      response.header(key, value);
+    });
+  }
+
+  /**
+   * End the request's span; call this from Javalin's request logger.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void finish(Context ctx) {
+    Span span = ctx.attribute(SPAN_KEY);
+    Scope scope = ctx.attribute(SCOPE_KEY);
+    if (span == null) {
+      return;
+    }
+    String route = route(ctx);
+    span.updateName(ctx.method() + " " + route);
+    span.setAttribute("http.route", route);
+    span.setAttribute("http.status_code", ctx.status());
+    if (ctx.status() >= SERVER_ERROR) {
+      span.setStatus(StatusCode.ERROR);
+    }
+    span.end();
+    if (scope != null) {
+      scope.close();
+    }
+  }
+
+  // The route's path pattern (e.g., `/api/users/{id}`) so that spans for
+  // the same route get the same name, or the actual path if no route matched.
+  private static String route(Context ctx) {
+    try {
+      String route = ctx.endpointHandlerPath();
+      return route == null || route.isEmpty() ? ctx.path() : route;
+    } catch (IllegalStateException e) {
+      return ctx.path();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package umm3601.tracing;
+
+import io.javalin.http.Context;
+
+/**
+ * Controller that exposes the spans kept by a `RecentSpans` collector.
+ */
+public class TraceController {
+
+  private final RecentSpans recentSpans;
+
+  /**
+   * Construct a controller for the given collector.
+   *
+   * @param recentSpans the collector whose spans we'll report
+   */
+  public TraceController(RecentSpans recentSpans) {
+    this.recentSpans = recentSpans;
+  }
+
+  /**
+   * Get a JSON array of the most recently finished spans, optionally
+   * just those of the trace given by the `traceId` query parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTraces(Context ctx) {
+    ctx.json(recentSpans.recent(ctx.queryParam("traceId")));
+  }
+}
@@ -0,0 +1,152 @@
+package umm3601.tracing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+/**
+ * Sets up OpenTelemetry tracing for the server, and has helpers for the
+ * spans that aren't tied to a route or a Mongo command.
+ * <p>
+ * Traces are only recorded if `TRACE_EXPORT` asks for them:
+ * <ul>
+ *   <li>`none` (the default): nothing is recorded, but incoming W3C
+ *     `traceparent` headers are still passed along</li>
+ *   <li>`file`: spans are written as NDJSON to `TRACE_FILE`
+ *     (default `traces.ndjson`), see `FileSpanExporter`</li>
+ *   <li>`memory`: the most recent spans are kept in memory and can be
+ *     read from `/api/admin/traces`, see `RecentSpans`</li>
+ * </ul>
+ */
+public final class Tracing {
+
+  public static final String INSTRUMENTATION_NAME = "umm3601";
+
+  private Tracing() {
+  }
+
+  /**
+   * Set up tracing and make it the global OpenTelemetry. This has to
+   * happen before anything asks for a tracer.
+   *
+   * @param export how to export spans: "none", "file" or "memory"
+   * @param file where to write spans when exporting to a file
+   * @param recentSpans where to keep spans when exporting to memory
+   * @return the OpenTelemetry to trace with
+   * @throws IOException if the trace file can't be opened
+   */
+  public static OpenTelemetry install(String export, Path file, RecentSpans recentSpans) throws IOException {
+    ContextPropagators propagators = ContextPropagators.create(W3CTraceContextPropagator.getInstance());
+    SpanProcessor processor;
+    switch (export) {
+      case "file":
+        processor = BatchSpanProcessor.builder(new FileSpanExporter(file)).build();
+        break;
+      case "memory":
+        // Spans are cheap to keep in memory, so there's no need to batch them.
+        processor = SimpleSpanProcessor.create(recentSpans);
+        break;
+      case "none":
+        OpenTelemetry propagating = OpenTelemetry.propagating(propagators);
+        GlobalOpenTelemetry.set(propagating);
+        return propagating;
+      default:
+        throw new IllegalArgumentException("TRACE_EXPORT must be none, file or memory, not " + export);
+    }
+    return OpenTelemetrySdk.builder()
+      .setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(processor).build())
+      .setPropagators(propagators)
+      .buildAndRegisterGlobal();
+  }
+
+  /**
+   * Flush any spans that haven't been exported yet, and stop exporting.
+   *
+   * @param openTelemetry what `install` returned
+   */
+  public static void shutdown(OpenTelemetry openTelemetry) {
+    if (openTelemetry instanceof OpenTelemetrySdk) {
+      ((OpenTelemetrySdk) openTelemetry).getSdkTracerProvider().shutdown();
+    }
+  }
+
+  /**
+   * @return the tracer for our own spans
+   */
+  public static Tracer tracer() {
+    return GlobalOpenTelemetry.getTracer(INSTRUMENTATION_NAME);
+  }
+
+  /**
+   * Start a span that lasts until a stream is read to the end or closed.
+   * This is how we time responses that are transcoded as they're sent.
+   *
+   * @param name the span's name
+   * @param stream the stream
+   * @return a stream that reads from `stream` and ends the span when done
+   */
+  public static InputStream traced(String name, InputStream stream) {
+    return new TracedInputStream(tracer().spanBuilder(name).startSpan(), stream);
+  }
+
+  private static final class TracedInputStream extends InputStream {
+    private final Span span;
+    private final InputStream stream;
+    private boolean ended;
+
+    TracedInputStream(Span span, InputStream stream) {
+      this.span = span;
+      this.stream = stream;
+    }
+
+    private int ended(int count) {
+      if (count == -1) {
+        end();
+      }
+      return count;
+    }
+
+    private void end() {
+      if (!ended) {
+        ended = true;
+        span.end();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return ended(stream.read());
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      return ended(stream.read(buffer, offset, length));
+    }
+
+    @Override
+    public void reset() throws IOException {
+      stream.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        stream.close();
+      } finally {
+        end();
+      }
+    }
+  }
+}
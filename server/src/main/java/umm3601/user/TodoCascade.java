@@ -0,0 +1,221 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import umm3601.todos.TodoCounts;
+import umm3601.todos.TodoSync;
+
+/**
+ * Deletes the todos of deleted users in the background.
+ * <p>
+ * A user can own any number of todos, so rather than one `deleteMany`
+ * that could run for a long time (and hold up everything else writing
+ * to the collection), the todos are deleted a batch at a time: find the
+ * IDs of the next batch through the index on `owner`, then delete just
+ * those. Cascades run one at a time on a single background thread, so
+ * a burst of user deletions can't swamp Mongo with deletes.
+ * <p>
+ * Each cascade is a `Job` whose progress can be looked up by its ID
+ * while it runs, and for a while after it finishes.
+ */
+public class TodoCascade {
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  // How many jobs (most recent first) we remember the status of.
+  private static final int MAX_REMEMBERED_JOBS = 1000;
+
+  /**
+   * Where a cascade is up to.
+   */
+  public enum State {
+    PENDING, RUNNING, DONE, FAILED
+  }
+
+  /**
+   * The status of one cascade. Its getters are what `/api/users/deletions`
+   * reports to clients.
+   */
+  public static final class Job {
+    private final String id = new ObjectId().toHexString();
+    private final String owner;
+    private volatile State state = State.PENDING;
+    private volatile long deleted;
+    private volatile String error;
+
+    private Job(String owner) {
+      this.owner = owner;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getOwner() {
+      return owner;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    public long getDeleted() {
+      return deleted;
+    }
+
+    public String getError() {
+      return error;
+    }
+  }
+
+  private final MongoCollection<Document> todos;
+  private final TodoCounts counts;
+  private final TodoSync sync;
+  private final ExecutorService executor;
+  private final int batchSize;
+
+  // Told the IDs of each batch of todos once they're deleted
+  private final List<Consumer<List<Object>>> batchListeners = new CopyOnWriteArrayList<>();
+
+  // Jobs by ID, oldest first, so the oldest is forgotten first.
+  private final Map<String, Job> jobs = new LinkedHashMap<>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+      return size() > MAX_REMEMBERED_JOBS;
+    }
+  };
+
+  /**
+   * Construct a cascade that runs on its own background thread.
+   *
+   * @param todos the todos collection
+   * @param counts the todo counts to bring up to date after each cascade
+   * @param sync where to record tombstones for the deleted todos
+   */
+  public TodoCascade(MongoCollection<Document> todos, TodoCounts counts, TodoSync sync) {
+    this(todos, counts, sync, Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "todo-cascade");
+      thread.setDaemon(true);
+      return thread;
+    }), DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Construct a cascade.
+   *
+   * @param todos the todos collection
+   * @param counts the todo counts to bring up to date after each cascade
+   * @param sync where to record tombstones for the deleted todos
+   * @param executor what to run cascades on
+   * @param batchSize how many todos to delete at a time
+   */
+  public TodoCascade(MongoCollection<Document> todos, TodoCounts counts, TodoSync sync,
+      ExecutorService executor, int batchSize) {
+    this.todos = todos;
+    this.counts = counts;
+    this.sync = sync;
+    this.executor = executor;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param listener something to tell the IDs of each batch of todos,
+   *   once they've been deleted
+   */
+  public void afterEachBatch(Consumer<List<Object>> listener) {
+    batchListeners.add(listener);
+  }
+
+  /**
+   * Start deleting all the todos owned by someone.
+   *
+   * @param owner the name of the owner whose todos should be deleted
+   * @return the job doing the deleting
+   */
+  public Job start(String owner) {
+    Job job = new Job(owner);
+    synchronized (jobs) {
+      jobs.put(job.id, job);
+    }
+    executor.execute(() -> run(job));
+    return job;
+  }
+
+  /**
+   * @param id a job's ID
+   * @return that job, or null if there isn't one (or it's been forgotten)
+   */
+  public Job get(String id) {
+    synchronized (jobs) {
+      return jobs.get(id);
+    }
+  }
+
+  /**
+   * @return all the remembered jobs, most recent first
+   */
+  public List<Job> recent() {
+    List<Job> recent;
+    synchronized (jobs) {
+      recent = new ArrayList<>(jobs.values());
+    }
+    Collections.reverse(recent);
+    return recent;
+  }
+
+  private void run(Job job) {
+    job.state = State.RUNNING;
+    try {
+      Set<String> categories = new HashSet<>();
+      while (true) {
+        List<Object> ids = new ArrayList<>();
+        for (Document todo : todos.find(eq("owner", job.owner))
+            .projection(Projections.include("_id", "category"))
+            .limit(batchSize)) {
+          ids.add(todo.get("_id"));
+          categories.add(todo.getString("category"));
+        }
+        if (ids.isEmpty()) {
+          break;
+        }
+        // The whole batch shares one sequence number, so syncs get its
+        // tombstones all together.
+        long seq = sync.begin();
+        try {
+          job.deleted += todos.deleteMany(in("_id", ids)).getDeletedCount();
+          sync.deleted(ids, seq);
+        } finally {
+          sync.end(seq);
+        }
+        for (Consumer<List<Object>> listener : batchListeners) {
+          listener.accept(ids);
+        }
+      }
+      // The owner should have no todos left now, and their categories fewer.
+      counts.recount(Set.of(job.owner), categories);
+      job.state = State.DONE;
+    } catch (RuntimeException e) {
+      job.error = e.toString();
+      job.state = State.FAILED;
+    }
+  }
+}
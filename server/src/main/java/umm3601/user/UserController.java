@@ -4,48 +4,300 @@ import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Filters.regex;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Variable;
+import com.mongodb.client.result.UpdateResult;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
 
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
+import umm3601.cache.ResponseCache;
+import umm3601.columnar.ColumnQuery;
+import umm3601.columnar.ColumnStore;
+import umm3601.encoding.ContentNegotiation;
+import umm3601.encoding.Encoding;
+import umm3601.export.CursorExporter;
+import umm3601.mongo.Deadline;
+import umm3601.mongo.Deadlines;
+import umm3601.mongo.KnownIds;
+import umm3601.mongo.PatchFields;
+import umm3601.mongo.RequestedSort;
+import umm3601.mongo.SortableFields;
+import umm3601.snapshot.Snapshots;
+import umm3601.todos.TodoController;
+import umm3601.todos.TodoCounts;
+import umm3601.todos.TodoSync;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController {
 
+  private static final String NAME_KEY = "name";
   private static final String AGE_KEY = "age";
   private static final String COMPANY_KEY = "company";
   private static final String ROLE_KEY = "role";
+  private static final String EMAIL_KEY = "email";
+  private static final String AVATAR_KEY = "avatar";
+
+  private static final String TODOS_KEY = "todos";
+  private static final String WITH_KEY = "with";
+  private static final String TODO_LIMIT_KEY = "todolimit";
+  private static final String CASCADE_KEY = "cascade";
+
+  /**
+   * How many todos to embed in each user when a request doesn't give a
+   * `todolimit`, and the most it's allowed to ask for.
+   */
+  public static final int DEFAULT_TODO_LIMIT = 20;
+  public static final int MAX_TODO_LIMIT = 100;
 
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  /**
+   * The fields of a `User`. Raw reads project down to just these so
+   * their JSON has the same fields Jackson would give a `User`.
+   */
+  public static final Bson USER_FIELDS =
+    Projections.include(NAME_KEY, AGE_KEY, COMPANY_KEY, EMAIL_KEY, AVATAR_KEY, ROLE_KEY);
+
+  /**
+   * The fields of a `UserWithTodos`.
+   */
+  private static final Bson USER_WITH_TODOS_FIELDS =
+    Projections.include(NAME_KEY, AGE_KEY, COMPANY_KEY, EMAIL_KEY, AVATAR_KEY, ROLE_KEY, TODOS_KEY);
+
+  /**
+   * The columns, in order, of a CSV export of users.
+   */
+  private static final List<String> USER_COLUMNS =
+    List.of("_id", NAME_KEY, AGE_KEY, COMPANY_KEY, EMAIL_KEY, AVATAR_KEY, ROLE_KEY);
+
+  /**
+   * The fields that `getUsers` can sort by; each has a supporting index.
+   */
+  public static final List<String> SORTABLE_FIELDS = List.of(NAME_KEY, AGE_KEY, COMPANY_KEY, ROLE_KEY);
+
+  /**
+   * The fields of a `User`, in order, as a `ColumnStore` keeps them.
+   */
+  public static final List<String> COLUMN_FIELDS =
+    List.of(NAME_KEY, AGE_KEY, COMPANY_KEY, EMAIL_KEY, AVATAR_KEY, ROLE_KEY);
+
+  /**
+   * The fields `getUsers` filters on, which have few enough distinct
+   * values for a `ColumnStore` to keep a bitmap of the users with each.
+   */
+  public static final List<String> BITMAP_FIELDS = List.of(AGE_KEY, COMPANY_KEY, ROLE_KEY);
+
   private final JacksonMongoCollection<User> userCollection;
+  // The collection used for `getUsers`; it may be routed to secondaries
+  // since those scans can tolerate slightly stale data.
+  private final JacksonMongoCollection<User> userListCollection;
+
+  // The same collection, read as raw BSON so JSON responses can be
+  // transcoded straight from what Mongo sends us.
+  private final MongoCollection<RawBsonDocument> userRawCollection;
+  private final MongoCollection<RawBsonDocument> userRawListCollection;
+
+  private final SortableFields sortableFields;
+
+  // If set, `getUser` and `getUserTodos` answer 404 without asking
+  // Mongo for IDs that certainly don't exist.
+  private volatile KnownIds knownIds;
+
+  // If set, cached responses read from the users (or the todos embedded
+  // in them) are dropped as they change.
+  private volatile ResponseCache responseCache;
+
+  // If set, `getUser` answers from it when it can.
+  private volatile Snapshots snapshots;
+
+  // If set, `getUsers` answers from it, rather than Mongo, when it can.
+  private volatile ColumnStore columnStore;
+
+  // The fields `patchUser` may change, checked just like `addNewUser`
+  // checks them. The avatar isn't here, since it follows the email.
+  private final PatchFields patchFields = new PatchFields()
+    .text(NAME_KEY, name -> name.length() > 0, "User must have a non-empty user name")
+    .integer(AGE_KEY, age -> age > 0, "User's age must be greater than zero")
+    .text(COMPANY_KEY, company -> company.length() > 0, "User must have a non-empty company name")
+    .text(EMAIL_KEY, email -> email.matches(EMAIL_REGEX), "User must have a legal email")
+    .text(ROLE_KEY, role -> role.matches("^(admin|editor|viewer)$"), "User must have a legal user role");
+
+  // Deletes the todos of users deleted with `cascade=true`
+  private final TodoCascade todoCascade;
 
   /**
-   * Construct a controller for users.
+   * Construct a controller for users whose reads all go to the primary.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
-    userCollection = JacksonMongoCollection.builder().build(database, "users", User.class);
+    this(database, ReadPreference.primary());
+  }
+
+  /**
+   * Construct a controller for users whose list endpoint reads using the
+   * given read preference. Single-user lookups, which clients use to
+   * read back their own writes, and all writes always go to the primary.
+   *
+   * @param database the database containing user data
+   * @param listReadPreference the read preference to use for `getUsers`
+   */
+  public UserController(MongoDatabase database, ReadPreference listReadPreference) {
+    this(database, listReadPreference, false);
+  }
+
+  /**
+   * Construct a controller for users whose cascading deletes have their
+   * own todo counts and sync bookkeeping.
+   *
+   * @param database the database containing user data
+   * @param listReadPreference the read preference to use for `getUsers`
+   * @param allowAdHocSorts whether `getUsers` may sort on fields outside
+   *   `SORTABLE_FIELDS` when a request opts into an `allowDiskUse` sort
+   */
+  public UserController(MongoDatabase database, ReadPreference listReadPreference, boolean allowAdHocSorts) {
+    this(database, listReadPreference, allowAdHocSorts, new TodoCounts(database), new TodoSync(database));
+  }
+
+  /**
+   * Construct a controller for users.
+   *
+   * @param database the database containing user data
+   * @param listReadPreference the read preference to use for `getUsers`
+   * @param allowAdHocSorts whether `getUsers` may sort on fields outside
+   *   `SORTABLE_FIELDS` when a request opts into an `allowDiskUse` sort
+   * @param todoCounts the per owner and per category todo counts, which
+   *   cascading deletes recount
+   * @param todoSync the todo sync bookkeeping shared by everything in
+   *   this server that writes todos, which cascading deletes record
+   *   their deletes in
+   */
+  public UserController(MongoDatabase database, ReadPreference listReadPreference, boolean allowAdHocSorts,
+      TodoCounts todoCounts, TodoSync todoSync) {
+    userCollection = JacksonMongoCollection.builder()
+      .build(database.withReadPreference(ReadPreference.primary()), "users", User.class);
+    userListCollection = JacksonMongoCollection.builder()
+      .build(database.withReadPreference(listReadPreference), "users", User.class);
+    userRawCollection = database.withReadPreference(ReadPreference.primary())
+      .getCollection("users", RawBsonDocument.class);
+    userRawListCollection = database.withReadPreference(listReadPreference)
+      .getCollection("users", RawBsonDocument.class);
+
+    sortableFields = new SortableFields(NAME_KEY, SORTABLE_FIELDS, allowAdHocSorts);
+    todoCascade = new TodoCascade(database.withReadPreference(ReadPreference.primary()).getCollection("todos"),
+      todoCounts, todoSync);
+  }
+
+  /**
+   * Create the indexes this controller's queries rely on. This talks to
+   * Mongo, so the server calls it in the background after starting up
+   * rather than holding up startup (or the constructor) on it.
+   */
+  public void ensureIndexes() {
+    sortableFields.ensureIndexes(userCollection);
+  }
+
+  /**
+   * Check the IDs `getUser` and `getUserTodos` are asked for against a
+   * set of known IDs, and add new users' IDs to it.
+   *
+   * @param ids the IDs of the users that exist
+   */
+  public void rejectUnknownIds(KnownIds ids) {
+    this.knownIds = ids;
+  }
+
+  /**
+   * Drop cached responses read from the users whenever this controller
+   * changes them, and those read from the todos as cascading deletes
+   * delete todos.
+   *
+   * @param cache the cache holding responses read from the users and todos
+   */
+  public void invalidateOnWrite(ResponseCache cache) {
+    this.responseCache = cache;
+    todoCascade.afterEachBatch(ids -> cache.invalidate("todos"));
+  }
+
+  /**
+   * Answer `getUser` from a snapshot when it can, and forget the todos
+   * in it as they're deleted by cascades.
+   *
+   * @param snapshot a snapshot of the users and todos
+   */
+  public void readFromSnapshot(Snapshots snapshot) {
+    this.snapshots = snapshot;
+    todoCascade.afterEachBatch(ids -> {
+      for (Object id : ids) {
+        if (id instanceof ObjectId) {
+          snapshot.forget("todos", (ObjectId) id);
+        }
+      }
+    });
+  }
+
+  /**
+   * Answer `getUsers` from a copy of the users in memory when it can,
+   * and keep that copy up to date as users change. Cascading deletes
+   * remove the todos they delete from the todos' copy.
+   *
+   * @param users a store of the users' `COLUMN_FIELDS`
+   * @param todos a store of the todos, or null if there isn't one
+   */
+  public void filterInMemoryWith(ColumnStore users, ColumnStore todos) {
+    this.columnStore = users;
+    if (todos != null) {
+      todoCascade.afterEachBatch(ids -> {
+        List<ObjectId> deleted = new ArrayList<>();
+        for (Object id : ids) {
+          if (id instanceof ObjectId) {
+            deleted.add((ObjectId) id);
+          }
+        }
+        todos.remove(deleted);
+      });
+    }
+  }
+
+  // Called after every write to the users, with the ID of the user
+  // inserted, changed or deleted.
+  private void usersChanged(ObjectId id) {
+    if (responseCache != null) {
+      responseCache.invalidate("users");
+    }
+    if (snapshots != null) {
+      snapshots.forget("users", id);
+    }
+    if (columnStore != null) {
+      columnStore.refresh(List.of(id));
+    }
   }
 
   /**
@@ -55,28 +307,175 @@ public class UserController {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
-    User user;
+    Bson byId;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      byId = eq("_id", new ObjectId(id));
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
+    if (knownIds != null && !knownIds.mightContain(new ObjectId(id))) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+
+    // JSON responses skip decoding into a `User`, and are transcoded
+    // straight from the raw BSON instead.
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      RawBsonDocument snapshotted = snapshots == null ? null : snapshots.get("users", new ObjectId(id));
+      if (snapshotted != null) {
+        ContentNegotiation.respondRaw(ctx, snapshotted);
+        return;
+      }
+      RawBsonDocument user = Deadlines.of(ctx).apply(userRawCollection.find(byId)).projection(USER_FIELDS).first();
+      if (user == null) {
+        throw new NotFoundResponse("The requested user was not found");
+      }
+      ContentNegotiation.respondRaw(ctx, user);
+      return;
+    }
+
+    User user = Deadlines.of(ctx).apply(userCollection.find(byId)).first();
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
     } else {
-      ctx.json(user);
+      ContentNegotiation.respond(ctx, user);
+    }
+  }
+
+  /**
+   * Get the user specified by the `id` parameter in the request along
+   * with their todos (up to `todolimit` of them), in a single
+   * aggregation, so clients don't need a second request (and an
+   * imprecise owner regex) to get them.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getUserTodos(Context ctx) {
+    String id = ctx.pathParam("id");
+    Bson byId;
+
+    try {
+      byId = eq("_id", new ObjectId(id));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+    if (knownIds != null && !knownIds.mightContain(new ObjectId(id))) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+
+    List<Bson> pipeline = List.of(
+      Aggregates.match(byId),
+      todosLookup(todoLimit(ctx)),
+      Aggregates.project(USER_WITH_TODOS_FIELDS));
+
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      RawBsonDocument user = Deadlines.of(ctx).apply(userRawCollection.aggregate(pipeline)).first();
+      if (user == null) {
+        throw new NotFoundResponse("The requested user was not found");
+      }
+      ContentNegotiation.respondRaw(ctx, user);
+      return;
+    }
+
+    UserWithTodos user = Deadlines.of(ctx).apply(userCollection.aggregate(pipeline, UserWithTodos.class)).first();
+    if (user == null) {
+      throw new NotFoundResponse("The requested user was not found");
+    } else {
+      ContentNegotiation.respond(ctx, user);
     }
   }
 
   /**
    * Delete the user specified by the `id` parameter in the request.
+   * <p>
+   * With `cascade=true`, the user's todos are deleted too. That happens
+   * in batches in the background (see `TodoCascade`), so the response is
+   * a 202 (Accepted) whose body, and `Location`, give the status of the
+   * cascade rather than waiting for it to finish.
    *
    * @param ctx a Javalin HTTP context
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    boolean cascade = ctx.queryParamAsClass(CASCADE_KEY, Boolean.class).getOrDefault(false);
+    if (!cascade) {
+      // The sync driver can't put `maxTimeMS` on `deleteOne`, so the best
+      // we can do is not start it once the deadline has passed.
+      Deadlines.of(ctx).check();
+      userCollection.deleteOne(eq("_id", new ObjectId(id)));
+      usersChanged(new ObjectId(id));
+      return;
+    }
+
+    // We need the user's name to find their todos, so get it as we
+    // delete them.
+    User deleted = userCollection.findOneAndDelete(eq("_id", new ObjectId(id)),
+      Deadlines.of(ctx).apply(new FindOneAndDeleteOptions()));
+    if (deleted == null) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+    usersChanged(new ObjectId(id));
+    TodoCascade.Job job = todoCascade.start(deleted.name);
+    ctx.status(HttpCode.ACCEPTED);
+    ctx.header(Header.LOCATION, "/api/users/deletions/" + job.getId());
+    ContentNegotiation.respond(ctx, job);
+  }
+
+  /**
+   * Change some of the fields of the user specified by the `id`
+   * parameter in the request. The body is an object holding just the
+   * fields to change; only those are checked, and they're all changed
+   * with a single `$set`, so the user keeps their ID. Changing the email
+   * changes the avatar to match.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void patchUser(Context ctx) {
+    String id = ctx.pathParam("id");
+    Bson byId;
+
+    try {
+      byId = eq("_id", new ObjectId(id));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+
+    Map<String, Object> changes = patchFields.validate(ContentNegotiation.bodyValidator(ctx, JsonNode.class).get());
+    if (changes.containsKey(EMAIL_KEY)) {
+      changes.put(AVATAR_KEY, avatarFor((String) changes.get(EMAIL_KEY)));
+    }
+
+    Deadlines.of(ctx).check();
+    UpdateResult result = userCollection.updateOne(byId, PatchFields.toUpdate(changes));
+    if (result.getMatchedCount() == 0) {
+      throw new NotFoundResponse("The requested user was not found");
+    }
+    usersChanged(new ObjectId(id));
+    ctx.status(HttpCode.OK);
+    ContentNegotiation.respond(ctx, Map.of("id", id));
+  }
+
+  /**
+   * Get the status of the cascading delete specified by the `id`
+   * parameter in the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getDeletion(Context ctx) {
+    TodoCascade.Job job = todoCascade.get(ctx.pathParam("id"));
+    if (job == null) {
+      throw new NotFoundResponse("The requested deletion was not found");
+    }
+    ContentNegotiation.respond(ctx, job);
+  }
+
+  /**
+   * Get the status of all the recent cascading deletes, most recent first.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getDeletions(Context ctx) {
+    ContentNegotiation.respond(ctx, todoCascade.recent());
   }
 
   /**
@@ -85,6 +484,157 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
+    Bson filter = filterFor(ctx);
+
+    // Sort the results. Sorts on registered fields are backed by an
+    // index; ad-hoc sorts (if allowed) go through an aggregation that
+    // can spill to disk instead of failing on large results.
+    RequestedSort sort = sortableFields.resolve(ctx);
+    Deadline deadline = Deadlines.of(ctx);
+
+    if (ctx.queryParamMap().containsKey(WITH_KEY)) {
+      if (!TODOS_KEY.equals(ctx.queryParam(WITH_KEY))) {
+        throw new BadRequestResponse("The only thing users can be listed with is their todos");
+      }
+      getUsersWithTodos(ctx, filter, sort, deadline);
+      return;
+    }
+    if (respondFromColumns(ctx, sort)) {
+      return;
+    }
+
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      // JSON responses skip decoding into `User`s, and are transcoded
+      // straight from the raw BSON as the response is written.
+      if (sort.isIndexed()) {
+        ContentNegotiation.respondRaw(ctx, deadline.apply(userRawListCollection.find(filter))
+          .projection(USER_FIELDS)
+          .sort(sort.toBson()));
+      } else {
+        ContentNegotiation.respondRaw(ctx, deadline.apply(userRawListCollection.aggregate(List.of(
+            Aggregates.match(filter), Aggregates.sort(sort.toBson()), Aggregates.project(USER_FIELDS))))
+          .allowDiskUse(true));
+      }
+    } else if (sort.isIndexed()) {
+      ContentNegotiation.respond(ctx, deadline.apply(userListCollection.find(filter))
+        .sort(sort.toBson())
+        .into(new ArrayList<>()));
+    } else {
+      ContentNegotiation.respond(ctx, deadline.apply(userListCollection
+          .aggregate(List.of(Aggregates.match(filter), Aggregates.sort(sort.toBson()))))
+        .allowDiskUse(true)
+        .into(new ArrayList<>()));
+    }
+  }
+
+  /**
+   * Answer `getUsers` from the column store, with the same filters as
+   * `filterFor`, if there is one and it can.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param sort the sort the request asked for
+   * @return whether it answered
+   */
+  private boolean respondFromColumns(Context ctx, RequestedSort sort) {
+    ColumnStore store = columnStore;
+    if (store == null) {
+      return false;
+    }
+    ColumnQuery query = new ColumnQuery();
+    if (ctx.queryParamMap().containsKey(AGE_KEY)) {
+      query.equalTo(AGE_KEY, ctx.queryParamAsClass(AGE_KEY, Integer.class).get());
+    }
+    if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
+      query.contains(COMPANY_KEY, ctx.queryParam(COMPANY_KEY));
+    }
+    if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
+      query.equalTo(ROLE_KEY, ctx.queryParam(ROLE_KEY));
+    }
+    List<Map<String, Object>> users = store.find(query, sort.getField(), sort.isAscending());
+    if (users == null) {
+      return false;
+    }
+    ContentNegotiation.respond(ctx, users);
+    return true;
+  }
+
+  /**
+   * Respond to `getUsers` with each user's todos embedded in it. This is
+   * an aggregation whether or not the sort is indexed; an ad-hoc sort
+   * just also lets it spill to disk.
+   */
+  private void getUsersWithTodos(Context ctx, Bson filter, RequestedSort sort, Deadline deadline) {
+    List<Bson> pipeline = List.of(
+      Aggregates.match(filter),
+      Aggregates.sort(sort.toBson()),
+      todosLookup(todoLimit(ctx)),
+      Aggregates.project(USER_WITH_TODOS_FIELDS));
+
+    if (ContentNegotiation.responseEncoding(ctx) == Encoding.JSON) {
+      ContentNegotiation.respondRaw(ctx, deadline.apply(userRawListCollection.aggregate(pipeline))
+        .allowDiskUse(!sort.isIndexed()));
+    } else {
+      ContentNegotiation.respond(ctx, deadline.apply(userListCollection.aggregate(pipeline, UserWithTodos.class))
+        .allowDiskUse(!sort.isIndexed())
+        .into(new ArrayList<>()));
+    }
+  }
+
+  /**
+   * Build the `$lookup` stage that embeds up to `limit` of each user's
+   * todos in a `todos` array. Todos belong to the user whose name is
+   * exactly their owner, which (unlike the `owner` filter on
+   * `getTodos`) can be answered from the index on the todos' owner.
+   * Limiting inside the lookup's pipeline means a user with a huge
+   * number of todos never has them all pulled into one document.
+   *
+   * @param limit the most todos to embed in each user
+   * @return the lookup stage
+   */
+  private static Bson todosLookup(int limit) {
+    return Aggregates.lookup("todos",
+      List.of(new Variable<>("ownerName", "$" + NAME_KEY)),
+      List.of(
+        Aggregates.match(Filters.expr(new Document("$eq", List.of("$owner", "$$ownerName")))),
+        Aggregates.limit(limit),
+        Aggregates.project(TodoController.TODO_FIELDS)),
+      TODOS_KEY);
+  }
+
+  /**
+   * @param ctx a Javalin HTTP context
+   * @return how many todos the request wants embedded in each user
+   */
+  private static int todoLimit(Context ctx) {
+    return ctx.queryParamAsClass(TODO_LIMIT_KEY, Integer.class)
+      .check(limit -> limit > 0 && limit <= MAX_TODO_LIMIT,
+        "The todo limit must be between 1 and " + MAX_TODO_LIMIT)
+      .getOrDefault(DEFAULT_TODO_LIMIT);
+  }
+
+  /**
+   * Stream every user matching the same filters as `getUsers` as
+   * NDJSON or CSV (see `CursorExporter`), optionally gzipped. Unlike
+   * `getUsers`, this never holds more than a batch of users in memory,
+   * and has no deadline, since exports of big collections take a while.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the client goes away part way through
+   */
+  public void exportUsers(Context ctx) throws IOException {
+    CursorExporter.export(ctx, userRawListCollection.find(filterFor(ctx)).projection(USER_FIELDS),
+      "users", USER_COLUMNS);
+  }
+
+  /**
+   * Build the filter for the users a request asks for, from the
+   * request's query parameters. This is shared by `getUsers` and
+   * `exportUsers` so that they always support the same filters.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the filter to use in a query
+   */
+  private Bson filterFor(Context ctx) {
 
     List<Bson> filters = new ArrayList<>(); // start with a blank document
 
@@ -101,15 +651,7 @@ public class UserController {
       filters.add(eq(ROLE_KEY, ctx.queryParam(ROLE_KEY)));
     }
 
-    // Sort the results. Use the `sortby` query param (default "name")
-    // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-
-    ctx.json(userCollection.find(filters.isEmpty() ? new Document() : and(filters))
-      .sort(sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy))
-      .into(new ArrayList<>()));
+    return filters.isEmpty() ? new Document() : and(filters);
   }
 
   /**
@@ -118,7 +660,7 @@ public class UserController {
    * @param ctx a Javalin HTTP context
    */
   public void addNewUser(Context ctx) {
-    User newUser = ctx.bodyValidator(User.class)
+    User newUser = ContentNegotiation.bodyValidator(ctx, User.class)
        // Verify that the user has a name that is not blank
       .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
        // Verify that the provided email is a valid email
@@ -132,17 +674,30 @@ public class UserController {
       .get();
 
     // Generate user avatar (you won't need this part for todos)
+    newUser.avatar = avatarFor(newUser.email);
+
+    Deadlines.of(ctx).check();
+    userCollection.insertOne(newUser);
+    usersChanged(new ObjectId(newUser._id));
+    if (knownIds != null) {
+      knownIds.add(new ObjectId(newUser._id));
+    }
+    ctx.status(HttpCode.OK);
+    ContentNegotiation.respond(ctx, Map.of("id", newUser._id));
+  }
+
+  /**
+   * @param email a user's email
+   * @return the URL of the avatar for a user with that email
+   */
+  private String avatarFor(String email) {
     try {
       // generate unique md5 code for identicon
-      newUser.avatar = "https://gravatar.com/avatar/" + md5(newUser.email) + "?d=identicon";
+      return "https://gravatar.com/avatar/" + md5(email) + "?d=identicon";
     } catch (NoSuchAlgorithmException ignored) {
       // set to mystery person if we can't use the md5() algorithm
-      newUser.avatar = "https://gravatar.com/avatar/?d=mp";
+      return "https://gravatar.com/avatar/?d=mp";
     }
-
-    userCollection.insertOne(newUser);
-    ctx.status(HttpCode.OK);
-    ctx.json(Map.of("id", newUser._id));
   }
 
   /**
@@ -0,0 +1,14 @@
+package umm3601.user;
+
+import java.util.List;
+
+import umm3601.todos.Todo;
+
+/**
+ * A user along with (some of) the todos they own, as returned by
+ * `/api/users/{id}/todos` and `/api/users?with=todos`.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class UserWithTodos extends User {
+  public List<Todo> todos;
+}
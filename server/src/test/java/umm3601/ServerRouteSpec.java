@@ -0,0 +1,148 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks every route of an already running server over HTTP.
+ * <p>
+ * Unlike the controller specs, these don't call our code directly, so
+ * they work just as well against the GraalVM native executable as they
+ * do against the JVM server. They're skipped unless the `server.url`
+ * system property says where the server is; the `nativeRouteTest`
+ * Gradle task builds and starts the native executable and then runs
+ * them against it.
+ */
+// The tests here include a ton of "magic numbers" (HTTP status codes).
+@SuppressWarnings({ "MagicNumber" })
+public class ServerRouteSpec {
+
+  private static String serverUrl;
+  private static HttpClient client;
+  private static ObjectMapper mapper = new ObjectMapper();
+
+  @BeforeAll
+  public static void setupAll() {
+    serverUrl = System.getProperty("server.url");
+    assumeTrue(serverUrl != null, "server.url isn't set, so there's no running server to test");
+    client = HttpClient.newHttpClient();
+  }
+
+  private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(serverUrl + path));
+    if (body == null) {
+      request.method(method, HttpRequest.BodyPublishers.noBody());
+    } else {
+      request.header("Content-Type", "application/json");
+      request.method(method, HttpRequest.BodyPublishers.ofString(body));
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  private JsonNode json(HttpResponse<String> response) throws IOException {
+    return mapper.readTree(response.body());
+  }
+
+  @Test
+  public void canListUsers() throws IOException, InterruptedException {
+    HttpResponse<String> response = send("GET", "/api/users?role=viewer&sortby=age", null);
+    assertEquals(200, response.statusCode());
+    assertTrue(json(response).isArray());
+  }
+
+  @Test
+  public void canListUsersWithTodos() throws IOException, InterruptedException {
+    HttpResponse<String> response = send("GET", "/api/users?with=todos&todolimit=5", null);
+    assertEquals(200, response.statusCode());
+    assertTrue(json(response).isArray());
+  }
+
+  @Test
+  public void canAddGetAndDeleteUser() throws IOException, InterruptedException {
+    String newUser = "{"
+      + "\"name\": \"Native User\","
+      + "\"age\": 25,"
+      + "\"company\": \"testers\","
+      + "\"email\": \"native@example.com\","
+      + "\"role\": \"viewer\""
+      + "}";
+    HttpResponse<String> added = send("POST", "/api/users", newUser);
+    assertEquals(200, added.statusCode());
+    String id = json(added).get("id").asText();
+
+    HttpResponse<String> fetched = send("GET", "/api/users/" + id, null);
+    assertEquals(200, fetched.statusCode());
+    assertEquals(id, json(fetched).get("_id").asText());
+    assertEquals("Native User", json(fetched).get("name").asText());
+
+    assertEquals(200, send("DELETE", "/api/users/" + id, null).statusCode());
+    assertEquals(404, send("GET", "/api/users/" + id, null).statusCode());
+  }
+
+  @Test
+  public void rejectsBadUsers() throws IOException, InterruptedException {
+    assertEquals(400, send("GET", "/api/users/not-an-id", null).statusCode());
+    String unnamedUser = "{"
+      + "\"name\": \"\","
+      + "\"age\": 25,"
+      + "\"company\": \"testers\","
+      + "\"email\": \"native@example.com\","
+      + "\"role\": \"viewer\""
+      + "}";
+    assertEquals(400, send("POST", "/api/users", unnamedUser).statusCode());
+  }
+
+  @Test
+  public void canListTodos() throws IOException, InterruptedException {
+    HttpResponse<String> response = send("GET", "/api/todos?status=true&owner=a&sortby=category", null);
+    assertEquals(200, response.statusCode());
+    assertTrue(json(response).isArray());
+  }
+
+  @Test
+  public void canAddGetAndDeleteTodo() throws IOException, InterruptedException {
+    String newTodo = "{"
+      + "\"owner\": \"Native\","
+      + "\"status\": true,"
+      + "\"body\": \"Check the native executable\","
+      + "\"category\": \"testing\""
+      + "}";
+    HttpResponse<String> added = send("POST", "/api/todos", newTodo);
+    assertEquals(200, added.statusCode());
+    String id = json(added).get("id").asText();
+
+    HttpResponse<String> fetched = send("GET", "/api/todos/" + id, null);
+    assertEquals(200, fetched.statusCode());
+    assertEquals(id, json(fetched).get("_id").asText());
+    assertEquals("Native", json(fetched).get("owner").asText());
+
+    assertEquals(200, send("DELETE", "/api/todos/" + id, null).statusCode());
+    assertEquals(404, send("GET", "/api/todos/" + id, null).statusCode());
+  }
+
+  @Test
+  public void rejectsBadTodos() throws IOException, InterruptedException {
+    assertEquals(400, send("GET", "/api/todos/not-an-id", null).statusCode());
+    assertEquals(400, send("GET", "/api/todos?sortby=nonsense", null).statusCode());
+  }
+
+  @Test
+  public void canGetMetrics() throws IOException, InterruptedException {
+    HttpResponse<String> response = send("GET", "/api/admin/metrics", null);
+    assertEquals(200, response.statusCode());
+    assertTrue(json(response).has("limiter.limit"));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601.accesslog;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * Tests that the access log writes a line of JSON per request, and drops
+ * (and counts) lines when it can't keep up.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AccessLogSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private MetricsRegistry metrics;
+  private StringWriter out;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    metrics = new MetricsRegistry();
+    out = new StringWriter();
+  }
+
+  private Context mockContext() {
+    mockReq.setMethod("GET");
+    mockReq.setRequestURI("/api/todos");
+    return ContextUtil.init(
+        mockReq, mockRes,
+        "api/todos",
+        Map.of(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+  }
+
+  @Test
+  public void writesALineOfJsonPerRequest() throws InterruptedException, IOException {
+    AccessLog log = new AccessLog(out, 16, metrics);
+    log.start();
+
+    Context ctx = mockContext();
+    AccessLog.countResults(ctx, 3);
+    ctx.status(200);
+    log.record(ctx, 12.5f);
+    log.record(mockContext(), 1f);
+    log.stop();
+
+    String[] lines = out.toString().split("\n");
+    assertEquals(2, lines.length);
+    JsonNode first = new ObjectMapper().readTree(lines[0]);
+    assertEquals("GET", first.get("method").asText());
+    assertEquals("/api/todos", first.get("path").asText());
+    assertEquals(200, first.get("status").asInt());
+    assertEquals(12.5, first.get("latencyMs").asDouble());
+    assertEquals(3, first.get("resultCount").asLong());
+    assertTrue(first.has("time"));
+    // The second request didn't send a list of results.
+    assertEquals(-1, new ObjectMapper().readTree(lines[1]).get("resultCount").asLong());
+
+    assertEquals(2L, metrics.snapshot().get("accessLog.written"));
+    assertEquals(0L, metrics.snapshot().get("accessLog.dropped"));
+  }
+
+  @Test
+  public void dropsAndCountsLinesWhenFull() throws InterruptedException {
+    // Not started, so nothing drains the buffer until we stop it.
+    AccessLog log = new AccessLog(out, 4, metrics);
+    for (int i = 0; i < 10; i++) {
+      log.record(mockContext(), 1f);
+    }
+    assertEquals(6L, metrics.snapshot().get("accessLog.dropped"));
+    assertEquals(4, metrics.snapshot().get("accessLog.queued"));
+
+    log.start();
+    log.stop();
+    assertEquals(4, out.toString().split("\n").length);
+  }
+}
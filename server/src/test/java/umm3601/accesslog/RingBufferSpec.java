@@ -0,0 +1,116 @@
+package umm3601.accesslog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the lock-free ring buffer behind the access log.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RingBufferSpec {
+
+  @Test
+  public void itemsComeOutInOrder() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(8);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    assertEquals(5, buffer.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, buffer.poll());
+    }
+    assertNull(buffer.poll());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void refusesItemsWhenFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(i));
+    }
+    assertFalse(buffer.offer(4));
+
+    // Taking one out makes room for one more.
+    assertEquals(0, buffer.poll());
+    assertTrue(buffer.offer(4));
+    assertFalse(buffer.offer(5));
+  }
+
+  @Test
+  public void wrapsAroundManyTimes() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(buffer.offer(i));
+      assertTrue(buffer.offer(-i));
+      assertEquals(i, buffer.poll());
+      assertEquals(-i, buffer.poll());
+    }
+  }
+
+  @Test
+  public void capacityMustBeAPowerOfTwo() {
+    assertThrows(IllegalArgumentException.class, () -> new RingBuffer<Integer>(6));
+    assertThrows(IllegalArgumentException.class, () -> new RingBuffer<Integer>(0));
+  }
+
+  @Test
+  public void manyProducersLoseNothing() throws InterruptedException {
+    int producers = 4;
+    int perProducer = 10_000;
+    RingBuffer<Integer> buffer = new RingBuffer<>(64);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int p = 0; p < producers; p++) {
+      int first = p * perProducer;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = first; i < first + perProducer; i++) {
+          // Spin until there's room, so that nothing is dropped.
+          while (!buffer.offer(i)) {
+            Thread.onSpinWait();
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+    Set<Integer> seen = new HashSet<>();
+    int[] lastFromProducer = new int[producers];
+    Arrays.fill(lastFromProducer, -1);
+    while (seen.size() < producers * perProducer) {
+      Integer item = buffer.poll();
+      if (item == null) {
+        Thread.onSpinWait();
+        continue;
+      }
+      assertTrue(seen.add(item), "Got " + item + " twice");
+      // Each producer's items come out in the order it put them in.
+      int producer = item / perProducer;
+      assertTrue(item > lastFromProducer[producer]);
+      lastFromProducer[producer] = item;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(buffer.poll());
+  }
+}
@@ -0,0 +1,203 @@
+package umm3601.cache;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import umm3601.metrics.MetricsRegistry;
+
+/**
+ * Tests that the response cache serves repeated queries from memory,
+ * and forgets them when what they were read from changes.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ResponseCacheSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private MetricsRegistry metrics;
+  private AtomicInteger calls;
+  private String body;
+  private Handler handler;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    metrics = new MetricsRegistry();
+    calls = new AtomicInteger();
+    body = "[{\"owner\":\"Blanche\"}]";
+    handler = ctx -> {
+      calls.incrementAndGet();
+      ctx.contentType("application/json");
+      ctx.result(body);
+    };
+  }
+
+  private Context request(Handler cached, String queryString) throws Exception {
+    return request(cached, "/api/todos", queryString);
+  }
+
+  private Context request(Handler cached, String path, String queryString) throws Exception {
+    mockRes.resetAll();
+    mockReq.setRequestURI(path);
+    mockReq.setQueryString(queryString);
+    Context ctx = ContextUtil.init(
+        mockReq, mockRes,
+        path,
+        Map.of(),
+        HandlerType.GET,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+    cached.handle(ctx);
+    return ctx;
+  }
+
+  @Test
+  public void servesRepeatedQueriesFromTheCache() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES, 60, metrics);
+    Handler cached = cache.wrap(handler, "todos");
+
+    assertEquals(body, request(cached, "status=false&owner=Blanche").resultString());
+    // The same parameters in a different order are the same query.
+    Context ctx = request(cached, "owner=Blanche&status=false");
+    assertEquals(body, ctx.resultString());
+    assertEquals("HIT", ctx.res.getHeader("X-Cache"));
+    assertEquals(1, calls.get());
+
+    request(cached, "owner=Blanche");
+    assertEquals(2, calls.get());
+    assertEquals(1L, metrics.snapshot().get("responseCache.hits"));
+    assertEquals(2L, metrics.snapshot().get("responseCache.misses"));
+    assertEquals(1.0 / 3, cache.hitRate(), 1e-9);
+  }
+
+  @Test
+  public void forgetsResponsesWhenTheirCollectionsChange() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES, 60, metrics);
+    Handler todos = cache.wrap(handler, "todos");
+    Handler users = cache.wrap(handler, "users", "todos");
+
+    request(todos, "status=true");
+    request(users, "/api/users", "role=admin");
+    assertEquals(2, cache.size());
+
+    cache.invalidate("users");
+    assertEquals(1, cache.size());
+    cache.invalidate("todos");
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+
+    body = "[]";
+    assertEquals("[]", request(todos, "status=true").resultString());
+  }
+
+  @Test
+  public void doesNotCacheResponsesReadDuringAChange() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES, 60, metrics);
+    Handler cached = cache.wrap(ctx -> {
+      handler.handle(ctx);
+      cache.invalidate("todos");
+    }, "todos");
+
+    request(cached, "status=true");
+    request(cached, "status=true");
+    assertEquals(2, calls.get());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void doesNotCacheErrors() throws Exception {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES, 60, metrics);
+    Handler cached = cache.wrap(ctx -> {
+      handler.handle(ctx);
+      ctx.status(400);
+    }, "todos");
+
+    request(cached, "status=maybe");
+    request(cached, "status=maybe");
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void staysWithinItsMemoryBound() throws Exception {
+    ResponseCache cache = new ResponseCache(body.length() * 8 * 3, 60, metrics);
+    Handler cached = cache.wrap(handler, "todos");
+
+    for (int i = 0; i < 30; i++) {
+      request(cached, "owner=" + i);
+    }
+    assertEquals(24, cache.size());
+    assertEquals(6L, metrics.snapshot().get("responseCache.evictions"));
+
+    // The least recently used are the ones forgotten.
+    request(cached, "owner=29");
+    request(cached, "owner=0");
+    assertEquals(31, calls.get());
+  }
+
+  @Test
+  public void sendsGzippedCopiesToClientsThatAcceptThem() throws Exception {
+    body = "[" + "{\"owner\":\"Blanche\",\"body\":\"In sunt ex non tempor cillum commodo amet\"},".repeat(100) + "{}]";
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES, 60, metrics);
+    Handler cached = cache.wrap(handler, "todos");
+
+    request(cached, "status=true");
+    Context ctx = request(cached, "status=true");
+    assertNull(ctx.res.getHeader("Content-Encoding"));
+    assertEquals(body, ctx.resultString());
+
+    mockReq.addHeader("Accept-Encoding", "gzip, deflate");
+    ctx = request(cached, "status=true");
+    assertEquals("gzip", ctx.res.getHeader("Content-Encoding"));
+    assertArrayEquals(body.getBytes(StandardCharsets.UTF_8), gunzip(ctx.resultStream().readAllBytes()));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void streamsResponsesTooBigToCacheWithoutBufferingThem() throws Exception {
+    body = "[" + "{\"owner\":\"Blanche\"},".repeat(100) + "{}]";
+    ByteArrayInputStream stream = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    handler = ctx -> {
+      calls.incrementAndGet();
+      ctx.contentType("application/json");
+      ctx.result(stream);
+    };
+    ResponseCache cache = new ResponseCache(800, 60, metrics);
+    Handler cached = cache.wrap(handler, "todos");
+
+    Context ctx = request(cached, "status=true");
+    // Only one more byte than it could cache has been read so far.
+    assertEquals(body.length() - 101, stream.available());
+    assertEquals(body, new String(ctx.resultStream().readAllBytes(), StandardCharsets.UTF_8));
+    assertEquals(0, cache.size());
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package umm3601.columnar;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the column table filters and sorts like Mongo would, and
+ * keeps up as documents change.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class ColumnTableSpec {
+
+  private ColumnTable table;
+  private ObjectId laundry;
+  private ObjectId dishes;
+  private ObjectId homework;
+
+  @BeforeEach
+  public void setupEach() {
+    table = new ColumnTable(List.of("owner", "status", "body", "category"), List.of("owner", "status", "category"));
+    laundry = new ObjectId();
+    dishes = new ObjectId();
+    homework = new ObjectId();
+    table.load(laundry, Map.of("owner", "Fry", "status", false, "body", "Wash the laundry", "category", "chores"));
+    table.load(dishes, Map.of("owner", "Blanche", "status", true, "body", "Wash the dishes", "category", "chores"));
+    table.load(homework, Map.of("owner", "Fry", "status", false, "body", "Finish the essay", "category", "homework"));
+    table.built();
+  }
+
+  private List<ObjectId> find(ColumnQuery query, String sortField, boolean ascending) {
+    List<ObjectId> ids = new ArrayList<>();
+    for (Map<String, Object> document : table.find(query, sortField, ascending)) {
+      ids.add(new ObjectId((String) document.get("_id")));
+    }
+    return ids;
+  }
+
+  @Test
+  public void intersectsFilters() {
+    assertEquals(List.of(laundry, homework), find(new ColumnQuery().equalTo("status", false), "owner", true));
+    assertEquals(List.of(laundry), find(new ColumnQuery()
+      .equalTo("status", false)
+      .contains("owner", "FR")
+      .contains("category", "chore"), "owner", true));
+    // The body isn't indexed, so it's checked row by row.
+    assertEquals(List.of(dishes), find(new ColumnQuery().contains("body", "dish"), "owner", true));
+    assertEquals(List.of(), find(new ColumnQuery().equalTo("status", "false"), "owner", true));
+  }
+
+  @Test
+  public void sortsLikeMongo() {
+    assertEquals(List.of(dishes, laundry, homework), find(new ColumnQuery(), "owner", true));
+    assertEquals(List.of(homework, laundry, dishes), find(new ColumnQuery(), "category", false));
+    assertEquals(List.of(homework, dishes, laundry), find(new ColumnQuery(), "body", true));
+  }
+
+  @Test
+  public void materializesOnlyTheFieldsItKeeps() {
+    Map<String, Object> document = table.find(new ColumnQuery().contains("body", "essay"), "owner", true).get(0);
+    assertEquals(Map.of("_id", homework.toHexString(), "owner", "Fry", "status", false, "body", "Finish the essay",
+      "category", "homework"), document);
+    assertEquals(List.of("_id", "owner", "status", "body", "category"), List.copyOf(document.keySet()));
+  }
+
+  @Test
+  public void keepsUpWithChanges() {
+    table.put(dishes, Map.of("owner", "Blanche", "status", false, "body", "Wash the dishes", "category", "chores"));
+    assertEquals(List.of(dishes, laundry, homework), find(new ColumnQuery().equalTo("status", false), "owner", true));
+
+    table.remove(laundry);
+    assertEquals(List.of(dishes, homework), find(new ColumnQuery().equalTo("status", false), "owner", true));
+    assertEquals(2, table.size());
+  }
+
+  @Test
+  public void doesNotLetABuildOverwriteNewerChanges() {
+    ColumnTable rebuilt = new ColumnTable(List.of("owner"), List.of("owner"));
+    rebuilt.put(laundry, Map.of("owner", "Leela"));
+    rebuilt.remove(dishes);
+    rebuilt.load(laundry, Map.of("owner", "Fry"));
+    rebuilt.load(dishes, Map.of("owner", "Blanche"));
+    rebuilt.built();
+    assertEquals(1, rebuilt.size());
+    assertEquals("Leela", rebuilt.find(new ColumnQuery(), "owner", true).get(0).get("owner"));
+  }
+
+  @Test
+  public void comparesNumbersByValue() {
+    ColumnTable users = new ColumnTable(List.of("name", "age"), List.of("age"));
+    users.load(new ObjectId(), Map.of("name", "Chris", "age", 25));
+    users.load(new ObjectId(), Map.of("name", "Pat", "age", 37.0));
+    users.load(new ObjectId(), Map.of("name", "Jamie", "age", 37L));
+    assertEquals(2, users.find(new ColumnQuery().equalTo("age", 37), "name", true).size());
+  }
+
+  @Test
+  public void cannotAnswerForFieldsItDoesNotKeep() {
+    assertNull(table.find(new ColumnQuery(), "email", true));
+    assertNull(table.find(new ColumnQuery().equalTo("email", "fry@example.com"), "owner", true));
+  }
+}
@@ -0,0 +1,44 @@
+package umm3601.export;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how BSON values are written as CSV fields.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class CursorExporterSpec {
+
+  @Test
+  public void writesSimpleValuesAsIs() {
+    assertEquals("Fry", CursorExporter.csvField(new BsonString("Fry")));
+    assertEquals("true", CursorExporter.csvField(BsonBoolean.TRUE));
+    assertEquals("25", CursorExporter.csvField(new BsonInt32(25)));
+  }
+
+  @Test
+  public void writesObjectIdsAsHex() {
+    ObjectId id = new ObjectId();
+    assertEquals(id.toHexString(), CursorExporter.csvField(new BsonObjectId(id)));
+  }
+
+  @Test
+  public void writesMissingValuesAsEmpty() {
+    assertEquals("", CursorExporter.csvField(null));
+    assertEquals("", CursorExporter.csvField(BsonNull.VALUE));
+  }
+
+  @Test
+  public void quotesValuesThatNeedIt() {
+    assertEquals("\"a, b\"", CursorExporter.csvField(new BsonString("a, b")));
+    assertEquals("\"say \"\"hi\"\"\"", CursorExporter.csvField(new BsonString("say \"hi\"")));
+    assertEquals("\"two\nlines\"", CursorExporter.csvField(new BsonString("two\nlines")));
+  }
+}
@@ -0,0 +1,115 @@
+package umm3601.health;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+
+/**
+ * Tests that readiness follows Mongo's pings and the saturation checks.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class HealthControllerSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private AtomicBoolean mongoUp;
+  private AtomicInteger queued;
+  private MongoPinger pinger;
+  private HealthController healthController;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    mongoUp = new AtomicBoolean(true);
+    queued = new AtomicInteger();
+    pinger = new MongoPinger(() -> {
+      if (!mongoUp.get()) {
+        throw new IllegalStateException("Mongo is down");
+      }
+    }, MongoPinger.DEFAULT_INTERVAL_MS);
+    healthController = new HealthController(pinger).saturation("queue", queued::get, 10);
+  }
+
+  private Context mockContext(String path) {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        path,
+        Map.of(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+  }
+
+  @Test
+  public void isAlwaysLive() {
+    Context ctx = mockContext("health/live");
+    healthController.getLive(ctx);
+    assertEquals(200, ctx.status());
+  }
+
+  @Test
+  public void isReadyOnceMongoAnswers() {
+    // Nothing has pinged Mongo yet.
+    Context ctx = mockContext("health/ready");
+    healthController.getReady(ctx);
+    assertEquals(503, ctx.status());
+
+    pinger.pingNow();
+    ctx = mockContext("health/ready");
+    healthController.getReady(ctx);
+    assertEquals(200, ctx.status());
+    assertTrue(pinger.getLastLatencyMs() >= 0);
+  }
+
+  @Test
+  public void reportsPingErrors() {
+    mongoUp.set(false);
+    pinger.pingNow();
+    Map<String, Object> report = healthController.readiness();
+    assertFalse((boolean) report.get("ready"));
+    assertNotNull(pinger.getLastError());
+
+    mongoUp.set(true);
+    pinger.pingNow();
+    assertTrue((boolean) healthController.readiness().get("ready"));
+    assertEquals(null, pinger.getLastError());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void isNotReadyOnceSaturated() {
+    pinger.pingNow();
+    queued.set(9);
+    assertTrue((boolean) healthController.readiness().get("ready"));
+
+    queued.set(10);
+    Map<String, Object> report = healthController.readiness();
+    assertFalse((boolean) report.get("ready"));
+    Map<String, Object> check = (Map<String, Object>) ((Map<String, Object>) report.get("saturation")).get("queue");
+    assertEquals(false, check.get("ok"));
+    assertEquals(10.0, check.get("value"));
+    assertEquals(10.0, check.get("threshold"));
+  }
+}
@@ -0,0 +1,57 @@
+package umm3601.health;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the pool monitor adds up connections across pools, and
+ * reports the usage of the busiest one.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class MongoPoolMonitorSpec {
+
+  private static ServerId server(int port) {
+    return new ServerId(new ClusterId(), new ServerAddress("localhost", port));
+  }
+
+  @Test
+  public void tracksUsageAcrossPools() {
+    MongoPoolMonitor monitor = new MongoPoolMonitor();
+    ServerId first = server(27017);
+    ServerId second = server(27018);
+    ConnectionPoolSettings settings = ConnectionPoolSettings.builder().maxSize(10).build();
+    monitor.connectionPoolOpened(new ConnectionPoolOpenedEvent(first, settings));
+    monitor.connectionPoolOpened(new ConnectionPoolOpenedEvent(second, settings));
+    assertEquals(20, monitor.getMaxSize());
+    assertEquals(0.0, monitor.getUsage());
+
+    ConnectionId connection = new ConnectionId(first);
+    for (int i = 0; i < 5; i++) {
+      monitor.connectionCheckedOut(new ConnectionCheckedOutEvent(connection));
+    }
+    monitor.connectionCheckedIn(new ConnectionCheckedInEvent(connection));
+    assertEquals(4, monitor.getCheckedOut());
+    // An idle pool doesn't water down a busy one.
+    assertEquals(0.4, monitor.getUsage());
+
+    monitor.connectionCheckedOut(new ConnectionCheckedOutEvent(new ConnectionId(second)));
+    assertEquals(5, monitor.getCheckedOut());
+    assertEquals(0.4, monitor.getUsage());
+
+    monitor.connectionPoolClosed(new ConnectionPoolClosedEvent(first));
+    assertEquals(10, monitor.getMaxSize());
+    assertEquals(1, monitor.getCheckedOut());
+    assertEquals(0.1, monitor.getUsage());
+  }
+}
@@ -0,0 +1,120 @@
+package umm3601.jfr;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import umm3601.accesslog.AccessLog;
+
+/**
+ * Tests that requests and Mongo commands show up in flight recordings.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class FlightRecorderEventsSpec {
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private Recording recording;
+  private Path file;
+
+  @BeforeEach
+  public void setupEach() throws IOException {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    recording = new Recording();
+    recording.enable(RequestEvent.class);
+    recording.enable(MongoCommandEvent.class);
+    recording.start();
+    file = Files.createTempFile("spec-", ".jfr");
+  }
+
+  @AfterEach
+  public void teardownEach() throws IOException {
+    recording.close();
+    Files.deleteIfExists(file);
+  }
+
+  private List<RecordedEvent> recorded() throws IOException {
+    recording.stop();
+    recording.dump(file);
+    return RecordingFile.readAllEvents(file);
+  }
+
+  @Test
+  public void recordsRequests() throws IOException {
+    mockReq.setMethod("GET");
+    mockReq.setRequestURI("/api/todos");
+    mockReq.setQueryString("status=complete&category=homework");
+    Context ctx = ContextUtil.init(
+        mockReq, mockRes,
+        "api/todos",
+        Map.of(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+
+    RequestEvent.begin(ctx);
+    AccessLog.countResults(ctx, 7);
+    ctx.status(200);
+    RequestEvent.end(ctx);
+
+    List<RecordedEvent> events = recorded();
+    assertEquals(1, events.size());
+    RecordedEvent event = events.get(0);
+    assertEquals("umm3601.Request", event.getEventType().getName());
+    assertEquals("GET", event.getString("method"));
+    assertEquals("category,status", event.getString("filterShape"));
+    assertEquals(200, event.getInt("status"));
+    assertEquals(7, event.getLong("resultCount"));
+  }
+
+  @Test
+  public void recordsMongoCommands() throws IOException {
+    MongoEvents listener = new MongoEvents();
+    ConnectionDescription connection =
+      new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+    BsonDocument find = BsonDocument.parse("{find: 'todos', filter: {owner: 'Fry', status: true}}");
+    listener.commandStarted(new CommandStartedEvent(1, connection, "test", "find", find));
+    listener.commandSucceeded(new CommandSucceededEvent(1, connection, "find", new BsonDocument(), 1000));
+
+    List<RecordedEvent> events = recorded();
+    assertEquals(1, events.size());
+    RecordedEvent event = events.get(0);
+    assertEquals("find", event.getString("command"));
+    assertEquals("test", event.getString("database"));
+    assertEquals("todos", event.getString("collection"));
+    assertEquals(BsonDocument.parse("{owner: '?', status: '?'}").toJson(), event.getString("filterShape"));
+    assertFalse(event.getBoolean("failed"));
+  }
+}
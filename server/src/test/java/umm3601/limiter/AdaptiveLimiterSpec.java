@@ -0,0 +1,174 @@
+package umm3601.limiter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.MongoExecutionTimeoutException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import umm3601.metrics.MetricsRegistry;
+import umm3601.mongo.Deadlines;
+
+/**
+ * Tests the AIMD behavior of the AdaptiveLimiter.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class AdaptiveLimiterSpec {
+
+  private MetricsRegistry metrics;
+  private AdaptiveLimiter limiter;
+
+  @BeforeEach
+  public void setUpEach() {
+    metrics = new MetricsRegistry();
+    limiter = new AdaptiveLimiter(metrics, "test", 4, 1, 10);
+  }
+
+  @Test
+  public void rejectsRequestsPastTheLimit() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+    assertFalse(limiter.tryAcquire());
+    assertEquals(4, limiter.getInFlight());
+    assertEquals(1L, metrics.snapshot().get("test.rejected"));
+  }
+
+  @Test
+  public void releasingFreesAPermit() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+    limiter.release(1_000_000, false);
+    assertTrue(limiter.tryAcquire());
+  }
+
+  @Test
+  public void backsOffWhenLatencyClimbs() {
+    assertTrue(limiter.tryAcquire());
+    limiter.release(1_000_000, false);
+    assertEquals(4, limiter.getLimit());
+
+    // Ten times the no-load latency should be treated as overload
+    for (int i = 0; i < 10; i++) {
+      assertTrue(limiter.tryAcquire());
+      limiter.release(10_000_000, false);
+    }
+    assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void backsOffOnTimeouts() {
+    assertTrue(limiter.tryAcquire());
+    limiter.release(1_000_000, true);
+    assertEquals(3, limiter.getLimit());
+    assertEquals(1L, metrics.snapshot().get("test.timedOut"));
+  }
+
+  @Test
+  public void growsWhileBusyAndFast() {
+    for (int round = 0; round < 50; round++) {
+      for (int i = 0; i < limiter.getLimit(); i++) {
+        assertTrue(limiter.tryAcquire());
+      }
+      while (limiter.getInFlight() > 0) {
+        limiter.release(1_000_000, false);
+      }
+    }
+    assertTrue(limiter.getLimit() > 4);
+    assertTrue(limiter.getLimit() <= 10);
+  }
+
+  @Test
+  public void forgetsALuckySampleOnceItLeavesTheWindow() {
+    assertTrue(limiter.tryAcquire());
+    limiter.release(1_000, false);
+    for (int i = 0; i < 200; i++) {
+      assertTrue(limiter.tryAcquire());
+      limiter.release(10_000_000, false);
+    }
+    // 10ms is normal by now, so the limit has been growing again.
+    assertTrue(limiter.getLimit() > 1);
+  }
+
+  @Test
+  public void onlySamplesRequestsThatReachMongo() throws Exception {
+    assertTrue(limiter.tryAcquire());
+    limiter.release(1_000_000, false);
+
+    // Slow, but it never asked Mongo anything
+    limiter.wrap(ctx -> Thread.sleep(20)).handle(context());
+    assertEquals(4, limiter.getLimit());
+
+    // Slow, but the client's fault
+    Handler badRequest = limiter.wrap(ctx -> {
+      new MongoCommandCounter().commandStarted(null);
+      Thread.sleep(20);
+      throw new BadRequestResponse("No");
+    });
+    assertThrows(BadRequestResponse.class, () -> badRequest.handle(context()));
+    assertEquals(4, limiter.getLimit());
+
+    limiter.wrap(ctx -> {
+      new MongoCommandCounter().commandStarted(null);
+      Thread.sleep(20);
+    }).handle(context());
+    assertEquals(3, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void doesNotBackOffWhenAClientsOwnShortDeadlineRunsOut() throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.addHeader(Deadlines.TIMEOUT_HEADER, "1");
+    Context ctx = context(request);
+    new Deadlines(metrics, 10_000, 60_000).start(ctx);
+    // Raised to the least a client may ask for
+    assertTrue(Deadlines.of(ctx).remainingMillis() > 50);
+
+    Handler timingOut = limiter.wrap(c -> {
+      new MongoCommandCounter().commandStarted(null);
+      throw new MongoExecutionTimeoutException(50, "operation exceeded time limit");
+    });
+    assertThrows(MongoExecutionTimeoutException.class, () -> timingOut.handle(ctx));
+    assertEquals(4, limiter.getLimit());
+    assertEquals(0L, metrics.snapshot().get("test.timedOut"));
+
+    Context ordinary = context();
+    new Deadlines(metrics, 10_000, 60_000).start(ordinary);
+    assertThrows(MongoExecutionTimeoutException.class, () -> timingOut.handle(ordinary));
+    assertEquals(3, limiter.getLimit());
+  }
+
+  private static Context context() {
+    return context(new MockHttpServletRequest());
+  }
+
+  private static Context context(MockHttpServletRequest request) {
+    return ContextUtil.init(
+        request, new MockHttpServletResponse(),
+        "/api/todos",
+        Map.of(),
+        HandlerType.GET,
+        Map.of(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize));
+  }
+
+  @Test
+  public void rejectsInconsistentLimits() {
+    assertThrows(IllegalArgumentException.class, () -> new AdaptiveLimiter(metrics, "bad", 20, 1, 10));
+  }
+}
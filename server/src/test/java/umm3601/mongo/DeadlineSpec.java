@@ -0,0 +1,63 @@
+package umm3601.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the logic of request deadlines.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class DeadlineSpec {
+
+  @Test
+  public void unboundedDeadlineNeverExpires() {
+    assertFalse(Deadline.NONE.isBounded());
+    assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+    assertDoesNotThrow(Deadline.NONE::check);
+  }
+
+  @Test
+  public void futureDeadlineHasTimeLeft() {
+    Deadline deadline = Deadline.after(60_000);
+    assertTrue(deadline.isBounded());
+    assertTrue(deadline.remainingMillis() > 0);
+    assertTrue(deadline.remainingMillis() <= 60_000);
+    assertDoesNotThrow(deadline::check);
+  }
+
+  @Test
+  public void remembersWhetherTheClientShortenedIt() {
+    assertTrue(Deadline.after(100, true).isShortenedByClient());
+    assertFalse(Deadline.after(100).isShortenedByClient());
+    assertFalse(Deadline.NONE.isShortenedByClient());
+  }
+
+  @Test
+  public void limitsSingleDocumentWrites() {
+    Deadline deadline = Deadline.after(60_000);
+    long deleteMillis = deadline.apply(new FindOneAndDeleteOptions()).getMaxTime(TimeUnit.MILLISECONDS);
+    assertTrue(deleteMillis > 0 && deleteMillis <= 60_000);
+    long updateMillis = deadline.apply(new FindOneAndUpdateOptions()).getMaxTime(TimeUnit.MILLISECONDS);
+    assertTrue(updateMillis > 0 && updateMillis <= 60_000);
+
+    assertEquals(0, Deadline.NONE.apply(new FindOneAndDeleteOptions()).getMaxTime(TimeUnit.MILLISECONDS));
+    assertThrows(DeadlineExceededException.class, () -> Deadline.after(-1).apply(new FindOneAndUpdateOptions()));
+  }
+
+  @Test
+  public void passedDeadlineFailsCheck() {
+    Deadline deadline = Deadline.after(-1);
+    assertTrue(deadline.remainingMillis() <= 0);
+    assertThrows(DeadlineExceededException.class, deadline::check);
+  }
+}
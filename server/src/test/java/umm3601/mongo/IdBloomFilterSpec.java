@@ -0,0 +1,56 @@
+package umm3601.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the ID filter never forgets an ID, and that its false
+ * positive rate is about what it was sized for.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class IdBloomFilterSpec {
+
+  @Test
+  public void hasNoFalseNegatives() {
+    IdBloomFilter filter = new IdBloomFilter(10_000, 0.01);
+    List<ObjectId> ids = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      ObjectId id = new ObjectId();
+      ids.add(id);
+      filter.put(id);
+    }
+    for (ObjectId id : ids) {
+      assertTrue(filter.mightContain(id));
+    }
+  }
+
+  @Test
+  public void hasAboutTheRequestedFalsePositiveRate() {
+    IdBloomFilter filter = new IdBloomFilter(10_000, 0.01);
+    for (int i = 0; i < 10_000; i++) {
+      filter.put(new ObjectId());
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 100_000; i++) {
+      if (filter.mightContain(new ObjectId())) {
+        falsePositives++;
+      }
+    }
+    // About 1,000 are expected; allow plenty of slack.
+    assertTrue(falsePositives < 2_000, "Too many false positives: " + falsePositives);
+  }
+
+  @Test
+  public void sizesItselfForCapacity() {
+    IdBloomFilter filter = new IdBloomFilter(1_000, 0.01);
+    // About 9.6 bits and 7 hashes per ID for a 1% false positive rate.
+    assertTrue(filter.bitCount() >= 9_585 && filter.bitCount() < 9_585 + 64);
+    assertEquals(7, filter.hashCount());
+  }
+}
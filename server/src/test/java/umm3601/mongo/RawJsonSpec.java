@@ -0,0 +1,170 @@
+package umm3601.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that raw BSON is transcoded into the same JSON Jackson
+ * would produce for our POJOs.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class RawJsonSpec {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private static RawBsonDocument raw(Document document) {
+    return new RawBsonDocument(document, new DocumentCodec());
+  }
+
+  @Test
+  public void writesObjectIdsAsPlainStrings() throws IOException {
+    ObjectId id = new ObjectId();
+    RawBsonDocument document = raw(new Document("_id", id)
+      .append("owner", "Fry")
+      .append("status", true)
+      .append("age", 25));
+
+    JsonNode json = mapper.readTree(RawJson.toBytes(document));
+
+    assertTrue(json.get("_id").isTextual());
+    assertEquals(id.toHexString(), json.get("_id").asText());
+    assertEquals("Fry", json.get("owner").asText());
+    assertTrue(json.get("status").asBoolean());
+    assertEquals(25, json.get("age").asInt());
+  }
+
+  @Test
+  public void streamsCursorAsJsonArray() throws IOException {
+    List<RawBsonDocument> documents = List.of(
+      raw(new Document("owner", "Fry")),
+      raw(new Document("owner", "Blanche")),
+      raw(new Document("owner", "Dawn")));
+    ListCursor cursor = new ListCursor(documents.iterator());
+
+    String json;
+    try (InputStream stream = RawJson.arrayStream(cursor)) {
+      json = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    JsonNode array = mapper.readTree(json);
+    assertEquals(3, array.size());
+    assertEquals("Blanche", array.get(1).get("owner").asText());
+    assertTrue(cursor.closed);
+  }
+
+  @Test
+  public void streamsEmptyCursorAsEmptyArray() throws IOException {
+    ListCursor cursor = new ListCursor(List.<RawBsonDocument>of().iterator());
+
+    try (InputStream stream = RawJson.arrayStream(cursor)) {
+      assertEquals("[]", new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+    }
+    assertTrue(cursor.closed);
+  }
+
+  @Test
+  public void noDocumentsAreReadBeforeTheStreamIs() {
+    ListCursor cursor = new ListCursor(List.of(raw(new Document("owner", "Fry"))).iterator());
+    RawJson.arrayStream(cursor);
+    assertFalse(cursor.closed);
+    assertEquals(0, cursor.read);
+  }
+
+  @Test
+  public void leavesTheArrayOpenIfTheCursorFails() {
+    MongoException failure = new MongoException("getMore failed");
+    Iterator<RawBsonDocument> failing = new Iterator<>() {
+      private boolean returnedOne;
+
+      @Override
+      public boolean hasNext() {
+        if (returnedOne) {
+          throw failure;
+        }
+        return true;
+      }
+
+      @Override
+      public RawBsonDocument next() {
+        returnedOne = true;
+        return raw(new Document("owner", "Fry"));
+      }
+    };
+    ListCursor cursor = new ListCursor(failing);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    IOException thrown = assertThrows(IOException.class, () -> RawJson.arrayStream(cursor).transferTo(written));
+    assertSame(failure, thrown.getCause());
+    String json = written.toString(StandardCharsets.UTF_8);
+    assertTrue(json.startsWith("[{"));
+    assertFalse(json.endsWith("]"));
+    assertTrue(cursor.closed);
+  }
+
+  /**
+   * A cursor over an in-memory list, so we can test without Mongo.
+   */
+  private static class ListCursor implements MongoCursor<RawBsonDocument> {
+    private final Iterator<RawBsonDocument> documents;
+    private boolean closed;
+    private int read;
+
+    ListCursor(Iterator<RawBsonDocument> documents) {
+      this.documents = documents;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return documents.hasNext();
+    }
+
+    @Override
+    public RawBsonDocument next() {
+      read++;
+      return documents.next();
+    }
+
+    @Override
+    public RawBsonDocument tryNext() {
+      return hasNext() ? next() : null;
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+      return null;
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package umm3601.search;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the trigram index finds every document that contains a
+ * substring, and keeps up as documents change.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TrigramIndexSpec {
+
+  private TrigramIndex index;
+  private ObjectId laundry;
+  private ObjectId dishes;
+  private ObjectId homework;
+
+  @BeforeEach
+  public void setupEach() {
+    index = new TrigramIndex(List.of("owner", "body", "category"));
+    laundry = new ObjectId();
+    dishes = new ObjectId();
+    homework = new ObjectId();
+    index.load(laundry, Map.of("owner", "Fry", "body", "Wash the laundry", "category", "chores"));
+    index.load(dishes, Map.of("owner", "Blanche", "body", "Wash the dishes", "category", "chores"));
+    index.load(homework, Map.of("owner", "Fry", "body", "Finish the essay", "category", "homework"));
+    index.built();
+  }
+
+  @Test
+  public void findsSubstringsIgnoringCase() {
+    assertEquals(Set.of(laundry, dishes), Set.copyOf(index.candidates(Map.of("body", "WASH"), 100)));
+    assertEquals(List.of(dishes), index.candidates(Map.of("body", "dish"), 100));
+    assertEquals(List.of(), index.candidates(Map.of("body", "vacuum"), 100));
+  }
+
+  @Test
+  public void intersectsFields() {
+    assertEquals(List.of(laundry), index.candidates(Map.of("owner", "fry", "category", "chore"), 100));
+  }
+
+  @Test
+  public void cantNarrowShortOrCommonSubstrings() {
+    // "is" has no trigrams, so everything might contain it.
+    assertNull(index.candidates(Map.of("body", "is"), 100));
+    // Two documents contain "wash", which is more than we asked for.
+    assertNull(index.candidates(Map.of("body", "wash"), 1));
+  }
+
+  @Test
+  public void keepsUpWithChanges() {
+    index.put(laundry, Map.of("body", "Fold the laundry"));
+    assertEquals(List.of(dishes), index.candidates(Map.of("body", "wash"), 100));
+    assertEquals(List.of(laundry), index.candidates(Map.of("body", "fold"), 100));
+    // The fields that didn't change are still indexed.
+    assertEquals(Set.of(laundry, homework), Set.copyOf(index.candidates(Map.of("owner", "fry"), 100)));
+
+    index.remove(homework);
+    assertEquals(List.of(laundry), index.candidates(Map.of("owner", "fry"), 100));
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void buildsDontOverwriteNewerChanges() {
+    TrigramIndex rebuilt = new TrigramIndex(List.of("body"));
+    // The todo changes while the build is scanning...
+    rebuilt.put(laundry, Map.of("body", "Fold the laundry"));
+    // ... and then the scan gets to its old version.
+    rebuilt.load(laundry, Map.of("body", "Wash the laundry"));
+    rebuilt.built();
+    assertEquals(List.of(laundry), rebuilt.candidates(Map.of("body", "fold"), 100));
+    assertEquals(List.of(), rebuilt.candidates(Map.of("body", "wash"), 100));
+  }
+
+  @Test
+  public void onlySearchesForAscii() {
+    assertTrue(TrigramIndex.canSearchFor("laundry"));
+    assertFalse(TrigramIndex.canSearchFor("cr\u00e8me"));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601.seed;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import umm3601.user.UserController;
+
+/**
+ * Checks that generated documents pass the same checks the controllers
+ * apply to new todos and users, and that generation is repeatable.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class DataGeneratorSpec {
+
+  private static final List<String> OWNERS = List.of("Blanche", "Fry", "Barry");
+  private static final List<String> CATEGORIES = List.of("software design", "video games", "homework");
+  private static final List<String> ROLES = List.of("admin", "editor", "viewer");
+
+  private DataGenerator generator;
+
+  @BeforeEach
+  public void setupEach() {
+    SeedDistributions distributions = new SeedDistributions();
+    distributions.addTodo("Blanche", false, "In sunt ex non tempor cillum commodo amet.", "software design");
+    distributions.addTodo("Fry", true, "Ipsum esse est ullamco magna tempor anim laborum.", "video games");
+    distributions.addTodo("Barry", false, "Aute et aliquip ex in irure occaecat.", "homework");
+    distributions.addUser("Chris Smith", 25, "UMM", "admin");
+    distributions.addUser("Pat O'Brien", 37, "IBM", "editor");
+    distributions.addUser("Jamie Lee", 37, "Frogs, Inc.", "viewer");
+    generator = new DataGenerator(distributions);
+  }
+
+  @Test
+  public void generatedTodosAreValid() {
+    SplittableRandom random = new SplittableRandom(3601);
+    for (int i = 0; i < 100; i++) {
+      Document todo = generator.todo(random);
+      assertTrue(OWNERS.contains(todo.getString("owner")));
+      assertTrue(CATEGORIES.contains(todo.getString("category")));
+      assertTrue(todo.getString("body").length() > 0);
+      assertTrue(todo.get("status") instanceof Boolean);
+    }
+  }
+
+  @Test
+  public void generatedUsersAreValid() {
+    SplittableRandom random = new SplittableRandom(3601);
+    Set<String> emails = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      Document user = generator.user(random, i);
+      assertTrue(user.getString("name").length() > 0);
+      assertTrue(user.getInteger("age") > 0);
+      assertTrue(user.getString("company").length() > 0);
+      assertTrue(ROLES.contains(user.getString("role")));
+      assertTrue(user.getString("email").matches(UserController.EMAIL_REGEX), user.getString("email"));
+      assertTrue(user.getString("avatar").startsWith("https://gravatar.com/avatar/"));
+      emails.add(user.getString("email"));
+    }
+    assertEquals(100, emails.size());
+  }
+
+  @Test
+  public void generatedTodosCanBeOwnedByGeneratedUsers() {
+    SplittableRandom random = new SplittableRandom(3601);
+    List<String> names = List.of("Chris Lee", "Jamie Smith");
+    for (int i = 0; i < 100; i++) {
+      assertTrue(names.contains(generator.todo(random, names).getString("owner")));
+    }
+  }
+
+  @Test
+  public void sameSeedGivesSameDocuments() {
+    SplittableRandom first = new SplittableRandom(42);
+    SplittableRandom second = new SplittableRandom(42);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(generator.todo(first), generator.todo(second));
+      assertEquals(generator.user(first, i), generator.user(second, i));
+    }
+  }
+
+  @Test
+  public void differentSeedsGiveDifferentDocuments() {
+    SplittableRandom first = new SplittableRandom(1);
+    SplittableRandom second = new SplittableRandom(2);
+    StringBuilder firstTodos = new StringBuilder();
+    StringBuilder secondTodos = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      firstTodos.append(generator.todo(first).toJson());
+      secondTodos.append(generator.todo(second).toJson());
+    }
+    assertNotEquals(firstTodos.toString(), secondTodos.toString());
+  }
+}
@@ -0,0 +1,89 @@
+package umm3601.slowquery;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests how `QueryShapes` picks apart commands and explain plans.
+ */
+public class QueryShapesSpec {
+
+  @Test
+  public void findsWithDifferentValuesHaveTheSameShape() {
+    BsonDocument fry = BsonDocument.parse(
+      "{find: 'todos', filter: {owner: {$regex: 'fry', $options: 'i'}, status: true}}");
+    BsonDocument blanche = BsonDocument.parse(
+      "{find: 'todos', filter: {owner: {$regex: 'blanche', $options: 'i'}, status: false}}");
+
+    assertEquals(QueryShapes.shapeOf("find", fry), QueryShapes.shapeOf("find", blanche));
+    assertEquals(BsonDocument.parse("{owner: {$regex: '?', $options: '?'}, status: '?'}").toJson(),
+      QueryShapes.shapeOf("find", fry));
+  }
+
+  @Test
+  public void listsOfValuesBecomeOnePlaceholder() {
+    BsonDocument few = BsonDocument.parse("{find: 'todos', filter: {category: {$in: ['a', 'b']}}}");
+    BsonDocument many = BsonDocument.parse("{find: 'todos', filter: {category: {$in: ['a', 'b', 'c', 'd']}}}");
+
+    assertEquals(QueryShapes.shapeOf("find", few), QueryShapes.shapeOf("find", many));
+  }
+
+  @Test
+  public void clausesAreKept() {
+    BsonDocument and = BsonDocument.parse("{find: 'users', filter: {$and: [{age: 37}, {role: 'viewer'}]}}");
+
+    assertEquals(BsonDocument.parse("{$and: [{age: '?'}, {role: '?'}]}").toJson(),
+      QueryShapes.shapeOf("find", and));
+  }
+
+  @Test
+  public void aggregationsAreShapedByTheirPipeline() {
+    BsonDocument aggregate = BsonDocument.parse(
+      "{aggregate: 'users', pipeline: [{$match: {age: 25}}, {$sort: {avatar: 1}}], cursor: {}}");
+
+    assertEquals(BsonDocument.parse("{pipeline: [{$match: {age: '?'}}, {$sort: {avatar: '?'}}]}").toJson(),
+      QueryShapes.shapeOf("aggregate", aggregate));
+    assertEquals(BsonDocument.parse("{avatar: 1}"), QueryShapes.sortOf("aggregate", aggregate));
+  }
+
+  @Test
+  public void deletesAreShapedByTheirFirstFilter() {
+    BsonDocument delete = BsonDocument.parse("{delete: 'todos', deletes: [{q: {owner: 'Sam'}, limit: 0}]}");
+
+    assertEquals(BsonDocument.parse("{owner: '?'}").toJson(), QueryShapes.shapeOf("delete", delete));
+  }
+
+  @Test
+  public void unsortedQueriesHaveAnEmptySort() {
+    BsonDocument find = BsonDocument.parse("{find: 'todos', filter: {}}");
+
+    assertEquals(new BsonDocument(), QueryShapes.sortOf("find", find));
+  }
+
+  @Test
+  public void summarizesCollectionScans() {
+    BsonDocument explain = BsonDocument.parse("{queryPlanner: {winningPlan: {stage: 'SORT', inputStage: "
+      + "{stage: 'COLLSCAN'}}, rejectedPlans: []}}");
+
+    assertEquals("COLLSCAN", QueryShapes.planSummary(explain));
+  }
+
+  @Test
+  public void summarizesIndexScans() {
+    BsonDocument explain = BsonDocument.parse("{queryPlanner: {winningPlan: {stage: 'FETCH', inputStage: "
+      + "{stage: 'IXSCAN', keyPattern: {owner: 1}}}, rejectedPlans: [{stage: 'COLLSCAN'}]}}");
+
+    // The rejected collection scan doesn't count.
+    assertEquals("IXSCAN", QueryShapes.planSummary(explain));
+  }
+
+  @Test
+  public void summarizesAggregationPlans() {
+    BsonDocument explain = BsonDocument.parse("{stages: [{$cursor: {queryPlanner: {winningPlan: "
+      + "{stage: 'COLLSCAN'}}}}, {$sort: {sortKey: {avatar: 1}}}]}");
+
+    assertEquals("COLLSCAN", QueryShapes.planSummary(explain));
+  }
+}
@@ -0,0 +1,71 @@
+package umm3601.snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that snapshots read back what was written to them.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class SnapshotFileSpec {
+
+  private static RawBsonDocument todo(ObjectId id, int i) {
+    return new RawBsonDocument(new Document("_id", id).append("owner", "Owner " + i).append("status", i % 2 == 0),
+      new DocumentCodec());
+  }
+
+  @Test
+  public void findsEveryDocumentById(@TempDir Path directory) throws IOException {
+    List<ObjectId> ids = new ArrayList<>();
+    List<RawBsonDocument> todos = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      ObjectId id = new ObjectId();
+      ids.add(id);
+      todos.add(todo(id, i));
+    }
+    Map<String, Iterable<RawBsonDocument>> collections = new LinkedHashMap<>();
+    collections.put("todos", todos);
+    collections.put("users", List.of());
+    Path file = directory.resolve("snapshot");
+    SnapshotFile.write(file, 42, collections);
+
+    SnapshotFile snapshot = SnapshotFile.open(file);
+    assertEquals(42, snapshot.token());
+    assertEquals(Files.size(file), snapshot.bytes());
+    SnapshotFile.Section section = snapshot.section("todos");
+    assertEquals(1000, section.size());
+    for (int i = 0; i < ids.size(); i++) {
+      int position = section.positionOf(ids.get(i));
+      assertEquals(i, position);
+      assertEquals("Owner " + i, section.document(position).getString("owner").getValue());
+    }
+    assertEquals(-1, section.positionOf(new ObjectId()));
+    assertEquals(0, snapshot.section("users").size());
+    assertNull(snapshot.section("other"));
+    assertFalse(Files.exists(directory.resolve("snapshot.tmp")));
+  }
+
+  @Test
+  public void rejectsFilesThatAreNotSnapshots(@TempDir Path directory) throws IOException {
+    Path file = directory.resolve("snapshot");
+    Files.writeString(file, "Not a snapshot at all, but long enough to have a trailer");
+    assertThrows(IOException.class, () -> SnapshotFile.open(file));
+  }
+}
@@ -4,20 +4,26 @@ import static com.mongodb.client.model.Filters.eq;
 import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
 import static java.util.Map.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -30,6 +36,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import io.javalin.core.JavalinConfig;
 import io.javalin.core.validation.ValidationException;
@@ -40,6 +47,12 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.columnar.ColumnStore;
+import umm3601.encoding.Encoding;
+import umm3601.metrics.MetricsRegistry;
+import umm3601.mongo.KnownIds;
+import umm3601.search.SubstringSearch;
+import umm3601.snapshot.Snapshots;
 
 /**
 * Tests the logic of the TodoController
@@ -179,6 +192,23 @@ public class TodoControllerSpec {
        javalinJackson.fromJsonString(result, Todo[].class).length);
   }
 
+  @Test
+  public void canGetAllTodosFromSecondaries() throws IOException {
+    // On a standalone server (or a replica set with no secondaries)
+    // `secondaryPreferred` falls back to the primary, so this works
+    // locally; against a replica set it exercises the secondary path.
+    TodoController secondaryController = new TodoController(db,
+      ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS));
+    Context ctx = mockContext("api/todos");
+    secondaryController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+
+    String result = ctx.resultString();
+    assertEquals(db.getCollection("todos").countDocuments(),
+       javalinJackson.fromJsonString(result, Todo[].class).length);
+  }
+
   @Test
   public void canGetTodosWithStatusTrue() throws IOException {
 
@@ -242,6 +272,97 @@ public class TodoControllerSpec {
     }
   }
 
+  @Test
+  public void canGetTodosSortedByOwnerDescending() throws IOException {
+
+    mockReq.setQueryString("sortby=owner&sortorder=desc");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+
+    assertEquals(4, resultTodos.length);
+    assertEquals("TestTwo", resultTodos[0].owner);
+    assertEquals("TestFour", resultTodos[3].owner);
+  }
+
+  @Test
+  public void respondsAppropriatelyToUnsortableField() throws IOException {
+
+    mockReq.setQueryString("sortby=body");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canSortByAdHocFieldWhenAllowedAndOptedIn() throws IOException {
+    TodoController adHocController = new TodoController(db, ReadPreference.primary(), true);
+
+    mockReq.setQueryString("sortby=body&allowdiskuse=true");
+    Context ctx = mockContext("api/todos");
+    adHocController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+
+    assertEquals(4, resultTodos.length);
+    assertEquals("This is the test four", resultTodos[0].body);
+    assertEquals("This is the test two", resultTodos[3].body);
+  }
+
+  @Test
+  public void adHocSortsRequireOptingIn() throws IOException {
+    TodoController adHocController = new TodoController(db, ReadPreference.primary(), true);
+
+    mockReq.setQueryString("sortby=body");
+    Context ctx = mockContext("api/todos");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      adHocController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canGetTodosAsCbor() throws IOException {
+
+    mockReq.addHeader("Accept", "application/json;q=0.5, application/cbor");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals(Encoding.CBOR.getContentType(), ctx.res.getContentType());
+
+    Todo[] resultTodos = Encoding.CBOR.getMapper().readValue(ctx.resultStream().readAllBytes(), Todo[].class);
+    assertEquals(4, resultTodos.length);
+  }
+
+  @Test
+  public void canAddTodoFromSmile() throws IOException {
+
+    Todo newTodo = new Todo();
+    newTodo.owner = "TestSmile";
+    newTodo.status = true;
+    newTodo.body = "This is test smile";
+    newTodo.category = "test smile";
+
+    mockReq.setBodyContent(Encoding.SMILE.getMapper().writeValueAsBytes(newTodo));
+    mockReq.setContentType(Encoding.SMILE.getContentType());
+    mockReq.setMethod("POST");
+    Context ctx = mockContext("api/todos");
+
+    todoController.addNewTodo(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    String id = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("id").asText();
+    Document addedTodo = db.getCollection("todos").find(eq("_id", new ObjectId(id))).first();
+    assertNotNull(addedTodo);
+    assertEquals("TestSmile", addedTodo.getString("owner"));
+  }
+
   @Test
   public void canGetTodoWithSpecifiedId() throws IOException {
 
@@ -277,6 +398,297 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void keepsTodoCountsUpToDate() throws IOException {
+    db.getCollection(TodoCounts.COLLECTION_NAME).drop();
+    TodoCounts counts = new TodoCounts(db);
+    counts.reconcile();
+    assertEquals(Map.of("value", "TestFour", "total", 1L, "open", 1L), counts.count("owner", "TestFour"));
+    assertEquals(4, counts.counts("category").size());
+
+    // Completing TestFour's todo leaves it no open todos.
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    todoController.patchTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    assertEquals(0L, counts.count("owner", "TestFour").get("open"));
+
+    // Adding one gives TestOne a second todo, and an open one.
+    mockReq.setBodyContent("{\"owner\": \"TestOne\", \"status\": false, \"body\": \"More\", \"category\": \"more\"}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+    assertEquals(Map.of("value", "TestOne", "total", 2L, "open", 1L), counts.count("owner", "TestOne"));
+
+    // Deleting TestFour's todo leaves it nothing.
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    assertEquals(0L, counts.count("owner", "TestFour").get("total"));
+
+    // Flipping everyone's statuses recounts them.
+    List<String> ids = new ArrayList<>();
+    db.getCollection("todos").find().forEach(todo -> ids.add(todo.getObjectId("_id").toHexString()));
+    mockReq.setBodyContent(javalinJackson.toJsonString(Map.of("ids", ids)));
+    todoController.setTodosStatus(mockContext("api/todos/status"));
+    assertEquals(1L, counts.count("owner", "TestOne").get("open"));
+    assertEquals(0L, counts.count("owner", "TestThree").get("open"));
+
+    // And the endpoint reads the same counts.
+    mockReq.setQueryString("by=category&value=more");
+    Context ctx = mockContext("api/todos/counts");
+    todoController.getTodoCounts(ctx);
+    assertEquals(0, javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class).get("open").asInt());
+  }
+
+  @Test
+  public void countsSkipTodosMissingAField() throws IOException {
+    db.getCollection(TodoCounts.COLLECTION_NAME).drop();
+    TodoCounts counts = new TodoCounts(db);
+    // Written by something other than this server, without a category
+    ObjectId uncategorized = new ObjectId();
+    db.getCollection("todos").insertOne(new Document("_id", uncategorized)
+      .append("owner", "TestFive").append("status", false).append("body", "No category"));
+    counts.reconcile();
+    assertEquals(1L, counts.count("owner", "TestFive").get("total"));
+
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", uncategorized.toHexString())));
+    assertEquals(0L, counts.count("owner", "TestFive").get("total"));
+    assertEquals(4, counts.counts("category").size());
+  }
+
+  @Test
+  public void syncSendsOnlyWhatChanged() throws IOException {
+    db.getCollection(TodoSync.TOMBSTONES_COLLECTION_NAME).drop();
+
+    // Without a token, everything.
+    Context ctx = mockContext("api/todos/sync");
+    todoController.syncTodos(ctx);
+    ObjectNode sync = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertTrue(sync.get("full").asBoolean());
+    assertEquals(4, sync.get("todos").size());
+    long token = sync.get("token").asLong();
+
+    // Then just the todos changed or added since.
+    mockReq.setBodyContent("{\"body\": \"Changed\"}");
+    mockReq.setMethod("PATCH");
+    todoController.patchTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    mockReq.setBodyContent("{\"owner\": \"TestFive\", \"status\": false, \"body\": \"New\", \"category\": \"new\"}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+
+    mockReq.setQueryString("since=" + token);
+    ctx = mockContext("api/todos/sync");
+    todoController.syncTodos(ctx);
+    sync = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertFalse(sync.get("full").asBoolean());
+    List<String> owners = new ArrayList<>();
+    sync.get("todos").forEach(todo -> owners.add(todo.get("owner").asText()));
+    owners.sort(null);
+    assertEquals(List.of("TestFive", "TestFour"), owners);
+    assertEquals(0, sync.get("deleted").size());
+    token = sync.get("token").asLong();
+
+    // And a tombstone for a deleted one.
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    mockReq.setQueryString("since=" + token);
+    ctx = mockContext("api/todos/sync");
+    todoController.syncTodos(ctx);
+    sync = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(0, sync.get("todos").size());
+    assertEquals(testFourId.toHexString(), sync.get("deleted").get(0).asText());
+
+    // Nothing's changed since then.
+    mockReq.setQueryString("since=" + sync.get("token").asLong());
+    ctx = mockContext("api/todos/sync");
+    todoController.syncTodos(ctx);
+    sync = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(0, sync.get("todos").size());
+    assertEquals(0, sync.get("deleted").size());
+  }
+
+  @Test
+  public void answersLookupsFromASnapshot(@TempDir Path directory) throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    Snapshots snapshots = new Snapshots(directory.resolve("snapshot"), db, metrics)
+      .collection("todos", TodoController.TODO_FIELDS, new TodoSync(db));
+    snapshots.write();
+
+    // A change the snapshot doesn't have yet.
+    mockReq.setBodyContent("{\"body\": \"Changed\"}");
+    mockReq.setMethod("PATCH");
+    new TodoController(db).patchTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+
+    // Loading catches the todos up, without waiting for `catchUp`.
+    snapshots.load();
+    todoController.readFromSnapshot(snapshots);
+
+    String testOneId = db.getCollection("todos").find(eq("owner", "TestOne")).first().getObjectId("_id").toHexString();
+    Context ctx = mockContext("api/todos", Map.of("id", testOneId));
+    todoController.getTodo(ctx);
+    assertEquals("TestOne", javalinJackson.fromJsonString(ctx.resultString(), Todo.class).owner);
+    assertEquals(1L, metrics.snapshot().get("snapshot.hits"));
+
+    // The changed todo comes from Mongo.
+    ctx = mockContext("api/todos", Map.of("id", testFourId.toHexString()));
+    todoController.getTodo(ctx);
+    assertEquals("Changed", javalinJackson.fromJsonString(ctx.resultString(), Todo.class).body);
+    assertEquals(1L, metrics.snapshot().get("snapshot.hits"));
+
+    // As do todos changed from now on.
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", testOneId)));
+    Context deletedCtx = mockContext("api/todos", Map.of("id", testOneId));
+    assertThrows(NotFoundResponse.class, () -> todoController.getTodo(deletedCtx));
+  }
+
+  @Test
+  public void substringSearchNarrowsFiltersAndKeepsUp() throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    SubstringSearch search = new SubstringSearch(db.getCollection("todos"), TodoController.SEARCHABLE_FIELDS,
+      SubstringSearch.DEFAULT_MAX_CANDIDATES, metrics);
+    search.rebuild();
+    todoController.searchSubstringsWith(search);
+
+    mockReq.setQueryString("body=TEST TH");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("TestThree", resultTodos[0].owner);
+    assertEquals(1L, metrics.snapshot().get("substringIndex.todos.narrowed"));
+
+    // Changing a todo's body changes what it's found by.
+    mockReq.setBodyContent("{\"body\": \"Something else entirely\"}");
+    mockReq.setMethod("PATCH");
+    todoController.patchTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    assertEquals(List.of(testFourId), search.candidates(Map.of("body", "else")));
+    assertEquals(List.of(), search.candidates(Map.of("body", "test four")));
+
+    // Deleted todos are forgotten.
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    assertEquals(List.of(), search.candidates(Map.of("body", "else")));
+  }
+
+  @Test
+  public void columnStoreAnswersFiltersAndKeepsUp() throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    ColumnStore store = new ColumnStore(db.getCollection("todos"), TodoController.COLUMN_FIELDS,
+      TodoController.BITMAP_FIELDS, metrics);
+    store.rebuild();
+    todoController.filterInMemoryWith(store);
+
+    mockReq.setQueryString("status=false&owner=TEST");
+    Context ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    Todo[] resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(2, resultTodos.length);
+    assertEquals("TestFour", resultTodos[0].owner);
+    assertEquals(testFourId.toHexString(), resultTodos[0]._id);
+    assertEquals("This is the test four", resultTodos[0].body);
+    assertEquals("TestThree", resultTodos[1].owner);
+    assertEquals(1L, metrics.snapshot().get("columnStore.todos.answered"));
+
+    // Flipping a status moves the todo out of the results.
+    mockReq.setBodyContent(javalinJackson.toJsonString(Map.of("ids", List.of(testFourId.toHexString()))));
+    mockReq.setMethod("PATCH");
+    todoController.setTodosStatus(mockContext("api/todos/status"));
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(1, resultTodos.length);
+    assertEquals("TestThree", resultTodos[0].owner);
+
+    // New todos are found, and deleted ones aren't.
+    mockReq.setBodyContent("{\"owner\": \"TestFive\", \"status\": true, \"body\": \"Five\", \"category\": \"five\"}");
+    mockReq.setMethod("POST");
+    todoController.addNewTodo(mockContext("api/todos"));
+    todoController.deleteTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    mockReq.setQueryString("status=true&sortby=owner&sortorder=desc");
+    ctx = mockContext("api/todos");
+    todoController.getTodos(ctx);
+    resultTodos = javalinJackson.fromJsonString(ctx.resultString(), Todo[].class);
+    assertEquals(3, resultTodos.length);
+    assertEquals("TestTwo", resultTodos[0].owner);
+    assertEquals("TestOne", resultTodos[1].owner);
+    assertEquals("TestFive", resultTodos[2].owner);
+  }
+
+  @Test
+  public void knownIdsAnswerMissingIdsWithoutMongo() throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    KnownIds knownIds = new KnownIds(db.getCollection("todos"), KnownIds.DEFAULT_FALSE_POSITIVE_RATE, metrics);
+    knownIds.rebuild();
+    todoController.rejectUnknownIds(knownIds);
+
+    // An existing todo is still found.
+    todoController.getTodo(mockContext("api/todos", Map.of("id", testFourId.toHexString())));
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+
+    // A missing one is rejected by the filter (a false positive here is
+    // possible, but very unlikely with only four IDs in the filter).
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(mockContext("api/todos", Map.of("id", new ObjectId().toHexString())));
+    });
+    assertEquals(1L, metrics.snapshot().get("idFilter.todos.rejected"));
+
+    // A new todo's ID goes in the filter as it's added.
+    mockReq.setBodyContent("{\"owner\": \"TestFive\", \"status\": true, \"body\": \"Five\", \"category\": \"five\"}");
+    mockReq.setMethod("POST");
+    Context addCtx = mockContext("api/todos");
+    todoController.addNewTodo(addCtx);
+    String id = javalinJackson.fromJsonString(addCtx.resultString(), ObjectNode.class).get("id").asText();
+    assertTrue(knownIds.mightContain(new ObjectId(id)));
+  }
+
+  @Test
+  public void canExportTodosAsNdjson() throws IOException {
+
+    mockReq.setQueryString("status=true");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    String[] lines = mockRes.getOutputStreamContent().split("\n");
+    assertEquals(2, lines.length);
+    for (String line : lines) {
+      Todo todo = javalinJackson.fromJsonString(line, Todo.class);
+      assertEquals(true, todo.status);
+    }
+  }
+
+  @Test
+  public void canExportTodosAsCsv() throws IOException {
+
+    mockReq.setQueryString("format=csv");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    String[] lines = mockRes.getOutputStreamContent().split("\r\n");
+    assertEquals(5, lines.length);
+    assertEquals("_id,owner,status,body,category", lines[0]);
+  }
+
+  @Test
+  public void gzipsExportsForClientsThatAcceptIt() throws IOException {
+
+    mockReq.addHeader("Accept-Encoding", "gzip, deflate");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertEquals("gzip", mockRes.getHeader("Content-Encoding"));
+  }
+
+  @Test
+  public void doesNotGzipExportsWhenAskedNotTo() throws IOException {
+
+    mockReq.setQueryString("gzip=false");
+    mockReq.addHeader("Accept-Encoding", "gzip, deflate");
+    Context ctx = mockContext("api/todos/export");
+    todoController.exportTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    assertNull(mockRes.getHeader("Content-Encoding"));
+    assertEquals(4, mockRes.getOutputStreamContent().split("\n").length);
+  }
+
   @Test
   public void canAddTodo() throws IOException {
 
@@ -479,6 +891,124 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void canPatchTodo() throws IOException {
+    mockReq.setBodyContent("{\"status\": true, \"category\": \"patched\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", testFourId.toHexString()));
+
+    todoController.patchTodo(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Document patched = db.getCollection("todos").find(eq("_id", testFourId)).first();
+    assertNotNull(patched);
+    // The changed fields change, and nothing else does.
+    assertEquals(true, patched.getBoolean("status"));
+    assertEquals("patched", patched.getString("category"));
+    assertEquals("TestFour", patched.getString("owner"));
+    assertEquals("This is the test four", patched.getString("body"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingTodoWithEmptyOwner() throws IOException {
+    mockReq.setBodyContent("{\"owner\": \"\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", testFourId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.patchTodo(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingTodoWithUnknownField() throws IOException {
+    mockReq.setBodyContent("{\"_id\": \"58af3a600343927e48e87335\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", testFourId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.patchTodo(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingTodoWithWrongType() throws IOException {
+    mockReq.setBodyContent("{\"status\": \"done\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", testFourId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.patchTodo(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingNonexistentTodo() throws IOException {
+    mockReq.setBodyContent("{\"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos", Map.of("id", "58af3a600343927e48e87335"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.patchTodo(ctx);
+    });
+  }
+
+  @Test
+  public void canSetStatusOfManyTodos() throws IOException {
+    ObjectId testOneId = db.getCollection("todos").find(eq("owner", "TestOne")).first().getObjectId("_id");
+    mockReq.setBodyContent("{\"ids\": [\"" + testOneId.toHexString() + "\", \"" + testFourId.toHexString()
+      + "\"], \"status\": false}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/status");
+
+    todoController.setTodosStatus(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, result.get("matched").asLong());
+    // TestFour was already false, so only TestOne actually changed.
+    assertEquals(1, result.get("modified").asLong());
+    assertEquals(false, db.getCollection("todos").find(eq("_id", testOneId)).first().getBoolean("status"));
+    assertEquals(false, db.getCollection("todos").find(eq("_id", testFourId)).first().getBoolean("status"));
+  }
+
+  @Test
+  public void canFlipStatusOfManyTodos() throws IOException {
+    ObjectId testOneId = db.getCollection("todos").find(eq("owner", "TestOne")).first().getObjectId("_id");
+    mockReq.setBodyContent("{\"ids\": [\"" + testOneId.toHexString() + "\", \"" + testFourId.toHexString()
+      + "\"]}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/status");
+
+    todoController.setTodosStatus(ctx);
+
+    ObjectNode result = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    assertEquals(2, result.get("modified").asLong());
+    assertEquals(false, db.getCollection("todos").find(eq("_id", testOneId)).first().getBoolean("status"));
+    assertEquals(true, db.getCollection("todos").find(eq("_id", testFourId)).first().getBoolean("status"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToSettingStatusWithBadId() throws IOException {
+    mockReq.setBodyContent("{\"ids\": [\"bad\"], \"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/status");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.setTodosStatus(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToSettingStatusWithNoIds() throws IOException {
+    mockReq.setBodyContent("{\"ids\": [], \"status\": true}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/todos/status");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.setTodosStatus(ctx);
+    });
+  }
+
   @Test
   public void canDeleteTodo() throws IOException {
 
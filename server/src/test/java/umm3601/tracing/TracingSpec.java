@@ -0,0 +1,157 @@
+package umm3601.tracing;
+
+import static io.javalin.plugin.json.JsonMapperKt.JSON_MAPPER_KEY;
+import static java.util.Map.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJackson;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+/**
+ * Tests that requests and Mongo commands get spans, that those spans
+ * are linked up, and that W3C trace context is passed along.
+ */
+@SuppressWarnings({ "MagicNumber" })
+public class TracingSpec {
+
+  private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+  private static final String PARENT_SPAN_ID = "b7ad6b7169203331";
+
+  private MockHttpServletRequest mockReq = new MockHttpServletRequest();
+  private MockHttpServletResponse mockRes = new MockHttpServletResponse();
+
+  private RecentSpans recentSpans;
+  private OpenTelemetry openTelemetry;
+
+  @BeforeEach
+  public void setupEach() {
+    mockReq.resetAll();
+    mockRes.resetAll();
+    recentSpans = new RecentSpans(RecentSpans.DEFAULT_CAPACITY);
+    // Not the global OpenTelemetry, so the tests don't depend on each other.
+    openTelemetry = OpenTelemetrySdk.builder()
+      .setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(recentSpans)).build())
+      .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+      .build();
+  }
+
+  private Context mockContext() {
+    return ContextUtil.init(
+        mockReq, mockRes,
+        "api/todos",
+        Map.of(),
+        HandlerType.INVALID,
+        Map.ofEntries(
+          entry(JSON_MAPPER_KEY, new JavalinJackson()),
+          entry(ContextUtil.maxRequestSizeKey, new JavalinConfig().maxRequestSize)));
+  }
+
+  private static CommandStartedEvent findStarted(int requestId) {
+    ConnectionDescription connection = new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+    return new CommandStartedEvent(requestId, connection, "test", "find",
+      BsonDocument.parse("{find: 'todos', filter: {status: true}}"));
+  }
+
+  @Test
+  public void requestJoinsTheCallersTrace() {
+    mockReq.addHeader("traceparent", "00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01");
+    Context ctx = mockContext();
+    RouteTracing routeTracing = new RouteTracing(openTelemetry);
+
+    routeTracing.start(ctx);
+    routeTracing.finish(ctx);
+
+    List<Map<String, Object>> spans = recentSpans.recent(TRACE_ID);
+    assertEquals(1, spans.size());
+    assertEquals(PARENT_SPAN_ID, spans.get(0).get("parentSpanId"));
+    assertEquals("SERVER", spans.get(0).get("kind"));
+    // The response tells the caller where the request's span is.
+    String traceparent = mockRes.getHeader("traceparent");
+    assertNotNull(traceparent);
+    assertTrue(traceparent.startsWith("00-" + TRACE_ID + "-" + spans.get(0).get("spanId")));
+  }
+
+  @Test
+  public void requestWithoutTraceparentStartsANewTrace() {
+    Context ctx = mockContext();
+    RouteTracing routeTracing = new RouteTracing(openTelemetry);
+
+    routeTracing.start(ctx);
+    routeTracing.finish(ctx);
+
+    List<Map<String, Object>> spans = recentSpans.recent(null);
+    assertEquals(1, spans.size());
+    assertFalse(spans.get(0).containsKey("parentSpanId"));
+  }
+
+  @Test
+  public void mongoCommandsAreChildrenOfTheRequest() {
+    Context ctx = mockContext();
+    RouteTracing routeTracing = new RouteTracing(openTelemetry);
+    MongoTracing mongoTracing = new MongoTracing(openTelemetry);
+
+    routeTracing.start(ctx);
+    CommandStartedEvent started = findStarted(42);
+    mongoTracing.commandStarted(started);
+    mongoTracing.commandSucceeded(new CommandSucceededEvent(42, started.getConnectionDescription(), "find",
+      new BsonDocument(), 1000));
+    routeTracing.finish(ctx);
+
+    List<Map<String, Object>> spans = recentSpans.recent(null);
+    assertEquals(2, spans.size());
+    // Most recently finished first, so the request is first.
+    Map<String, Object> request = spans.get(0);
+    Map<String, Object> find = spans.get(1);
+    assertEquals("mongo find todos", find.get("name"));
+    assertEquals("CLIENT", find.get("kind"));
+    assertEquals(request.get("traceId"), find.get("traceId"));
+    assertEquals(request.get("spanId"), find.get("parentSpanId"));
+    @SuppressWarnings("unchecked")
+    Map<String, Object> attributes = (Map<String, Object>) find.get("attributes");
+    assertEquals("todos", attributes.get("db.mongodb.collection"));
+  }
+
+  @Test
+  public void keepsOnlyTheMostRecentSpans() {
+    RecentSpans few = new RecentSpans(2);
+    OpenTelemetry limited = OpenTelemetrySdk.builder()
+      .setTracerProvider(SdkTracerProvider.builder().addSpanProcessor(SimpleSpanProcessor.create(few)).build())
+      .build();
+    for (int i = 0; i < 5; i++) {
+      limited.getTracer("test").spanBuilder("span " + i).startSpan().end();
+    }
+
+    List<Map<String, Object>> spans = few.recent(null);
+    assertEquals(2, spans.size());
+    assertEquals("span 4", spans.get(0).get("name"));
+    assertEquals("span 3", spans.get(1).get("name"));
+  }
+}
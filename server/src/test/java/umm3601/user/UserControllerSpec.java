@@ -10,15 +10,18 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -41,6 +44,9 @@ import io.javalin.http.HttpCode;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.http.util.ContextUtil;
 import io.javalin.plugin.json.JavalinJackson;
+import umm3601.columnar.ColumnStore;
+import umm3601.metrics.MetricsRegistry;
+import umm3601.todos.Todo;
 
 /**
 * Tests the logic of the UserController
@@ -133,6 +139,33 @@ public class UserControllerSpec {
     userDocuments.insertMany(testUsers);
     userDocuments.insertOne(sam);
 
+    // Some todos for `with=todos` and `/api/users/{id}/todos`; only the
+    // ones whose owner is exactly a user's name belong to that user.
+    MongoCollection<Document> todoDocuments = db.getCollection("todos");
+    todoDocuments.drop();
+    List<Document> testTodos = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      testTodos.add(
+        new Document()
+          .append("owner", "Sam")
+          .append("status", i % 2 == 0)
+          .append("body", "Sam's todo number " + i)
+          .append("category", "homework"));
+    }
+    testTodos.add(
+      new Document()
+        .append("owner", "Pat")
+        .append("status", true)
+        .append("body", "Pat's only todo")
+        .append("category", "groceries"));
+    testTodos.add(
+      new Document()
+        .append("owner", "Samantha")
+        .append("status", false)
+        .append("body", "Not one of Sam's todos")
+        .append("category", "homework"));
+    todoDocuments.insertMany(testTodos);
+
     userController = new UserController(db);
   }
 
@@ -189,6 +222,23 @@ public class UserControllerSpec {
        javalinJackson.fromJsonString(result, User[].class).length);
   }
 
+  @Test
+  public void canGetAllUsersFromSecondaries() throws IOException {
+    // On a standalone server (or a replica set with no secondaries)
+    // `secondaryPreferred` falls back to the primary, so this works
+    // locally; against a replica set it exercises the secondary path.
+    UserController secondaryController = new UserController(db,
+      ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS));
+    Context ctx = mockContext("api/users");
+    secondaryController.getUsers(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+
+    String result = ctx.resultString();
+    assertEquals(db.getCollection("users").countDocuments(),
+       javalinJackson.fromJsonString(result, User[].class).length);
+  }
+
   @Test
   public void canGetUsersWithAge37() throws IOException {
 
@@ -279,6 +329,30 @@ public class UserControllerSpec {
     }
   }
 
+  @Test
+  public void canGetUsersSortedByNameByDefault() throws IOException {
+
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+
+    assertEquals("Chris", resultUsers[0].name);
+    assertEquals("Sam", resultUsers[resultUsers.length - 1].name);
+  }
+
+  @Test
+  public void respondsAppropriatelyToUnsortableField() throws IOException {
+
+    mockReq.setQueryString("sortby=avatar");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
   @Test
   public void canGetUserWithSpecifiedId() throws IOException {
 
@@ -512,6 +586,143 @@ public class UserControllerSpec {
     });
   }
 
+  @Test
+  public void canGetUserWithTheirTodos() throws IOException {
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+    userController.getUserTodos(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+
+    UserWithTodos sam = javalinJackson.fromJsonString(ctx.resultString(), UserWithTodos.class);
+    assertEquals(samsId.toHexString(), sam._id);
+    assertEquals("Sam", sam.name);
+    assertEquals(3, sam.todos.size());
+    for (Todo todo : sam.todos) {
+      assertEquals("Sam", todo.owner);
+      assertNotNull(todo._id);
+    }
+  }
+
+  @Test
+  public void limitsTheTodosEmbeddedInAUser() throws IOException {
+    mockReq.setQueryString("todolimit=2");
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+    userController.getUserTodos(ctx);
+
+    UserWithTodos sam = javalinJackson.fromJsonString(ctx.resultString(), UserWithTodos.class);
+    assertEquals(2, sam.todos.size());
+  }
+
+  @Test
+  public void respondsAppropriatelyToIllegalTodoLimit() {
+    mockReq.setQueryString("todolimit=0");
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", samsId.toHexString()));
+
+    assertThrows(ValidationException.class, () -> {
+      userController.getUserTodos(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToTodosOfNonexistentUser() {
+    Context ctx = mockContext("api/users/{id}/todos", Map.of("id", "58af3a600343927e48e87335"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getUserTodos(ctx);
+    });
+  }
+
+  @Test
+  public void canGetUsersWithTheirTodos() throws IOException {
+    mockReq.setQueryString("with=todos&company=OHMNET");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+
+    UserWithTodos[] users = javalinJackson.fromJsonString(ctx.resultString(), UserWithTodos[].class);
+    assertEquals(2, users.length);
+    // Sorted by name by default, so Jamie (no todos) comes before Sam.
+    assertEquals("Jamie", users[0].name);
+    assertEquals(0, users[0].todos.size());
+    assertEquals("Sam", users[1].name);
+    assertEquals(3, users[1].todos.size());
+  }
+
+  @Test
+  public void respondsAppropriatelyToListingUsersWithSomethingElse() {
+    mockReq.setQueryString("with=emails");
+    Context ctx = mockContext("api/users");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
+  @Test
+  public void canPatchUser() throws IOException, NoSuchAlgorithmException {
+    mockReq.setBodyContent("{\"age\": 46, \"email\": \"sam@toads.com\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/users", Map.of("id", samsId.toHexString()));
+
+    userController.patchUser(ctx);
+
+    assertEquals(HttpCode.OK.getStatus(), mockRes.getStatus());
+    Document patched = db.getCollection("users").find(eq("_id", samsId)).first();
+    assertNotNull(patched);
+    assertEquals(46, patched.getInteger("age"));
+    assertEquals("sam@toads.com", patched.getString("email"));
+    // The avatar follows the new email, and everything else is unchanged.
+    assertEquals("https://gravatar.com/avatar/" + userController.md5("sam@toads.com") + "?d=identicon",
+      patched.getString("avatar"));
+    assertEquals("Sam", patched.getString("name"));
+    assertEquals("viewer", patched.getString("role"));
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingUserWithInvalidEmail() throws IOException {
+    mockReq.setBodyContent("{\"email\": \"not an email\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/users", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.patchUser(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingUserWithInvalidRole() throws IOException {
+    mockReq.setBodyContent("{\"role\": \"owner\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/users", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.patchUser(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingUserAvatar() throws IOException {
+    mockReq.setBodyContent("{\"avatar\": \"https://example.com/me.png\"}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/users", Map.of("id", samsId.toHexString()));
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.patchUser(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToPatchingNonexistentUser() throws IOException {
+    mockReq.setBodyContent("{\"age\": 30}");
+    mockReq.setMethod("PATCH");
+    Context ctx = mockContext("api/users", Map.of("id", "58af3a600343927e48e87335"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.patchUser(ctx);
+    });
+  }
+
   @Test
   public void canDeleteUser() throws IOException {
 
@@ -529,4 +740,93 @@ public class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  public void columnStoreAnswersFiltersAndKeepsUp() throws IOException {
+    MetricsRegistry metrics = new MetricsRegistry();
+    ColumnStore store = new ColumnStore(db.getCollection("users"), UserController.COLUMN_FIELDS,
+      UserController.BITMAP_FIELDS, metrics);
+    store.rebuild();
+    userController.filterInMemoryWith(store, null);
+
+    mockReq.setQueryString("age=37");
+    Context ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    User[] resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, resultUsers.length);
+    assertEquals("Jamie", resultUsers[0].name);
+    assertEquals("Pat", resultUsers[1].name);
+    assertEquals("IBM", resultUsers[1].company);
+    assertEquals(1L, metrics.snapshot().get("columnStore.users.answered"));
+
+    // Changing Sam's age, and deleting Pat, change who's 37.
+    mockReq.setBodyContent("{\"age\": 37}");
+    mockReq.setMethod("PATCH");
+    userController.patchUser(mockContext("api/users", Map.of("id", samsId.toHexString())));
+    String patsId = db.getCollection("users").find(eq("name", "Pat")).first().getObjectId("_id").toHexString();
+    userController.deleteUser(mockContext("api/users", Map.of("id", patsId)));
+
+    mockReq.setQueryString("age=37&company=ohm&sortby=name&sortorder=desc");
+    ctx = mockContext("api/users");
+    userController.getUsers(ctx);
+    resultUsers = javalinJackson.fromJsonString(ctx.resultString(), User[].class);
+    assertEquals(2, resultUsers.length);
+    assertEquals("Sam", resultUsers[0].name);
+    assertEquals("Jamie", resultUsers[1].name);
+  }
+
+  @Test
+  public void canDeleteUserAndTheirTodos() throws IOException, InterruptedException {
+    mockReq.setQueryString("cascade=true");
+    Context ctx = mockContext("api/users", Map.of("id", samsId.toHexString()));
+    userController.deleteUser(ctx);
+
+    assertEquals(HttpCode.ACCEPTED.getStatus(), mockRes.getStatus());
+    assertEquals(0, db.getCollection("users").countDocuments(eq("_id", samsId)));
+
+    ObjectNode started = javalinJackson.fromJsonString(ctx.resultString(), ObjectNode.class);
+    String jobId = started.get("id").asText();
+    assertEquals("/api/users/deletions/" + jobId, mockRes.getHeader("Location"));
+    assertEquals("Sam", started.get("owner").asText());
+
+    // The todos are deleted in the background, so wait for that to finish.
+    ObjectNode status = null;
+    long giveUpAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (System.nanoTime() < giveUpAt) {
+      mockRes.resetAll();
+      Context statusCtx = mockContext("api/users/deletions/{id}", Map.of("id", jobId));
+      userController.getDeletion(statusCtx);
+      status = javalinJackson.fromJsonString(statusCtx.resultString(), ObjectNode.class);
+      if (status.get("state").asText().equals("DONE")) {
+        break;
+      }
+      Thread.sleep(50);
+    }
+    assertEquals("DONE", status.get("state").asText());
+    assertEquals(3, status.get("deleted").asLong());
+
+    // Only todos whose owner is exactly "Sam" are gone.
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("owner", "Sam")));
+    assertEquals(1, db.getCollection("todos").countDocuments(eq("owner", "Samantha")));
+    assertEquals(1, db.getCollection("todos").countDocuments(eq("owner", "Pat")));
+  }
+
+  @Test
+  public void respondsAppropriatelyToCascadingDeleteOfNonexistentUser() {
+    mockReq.setQueryString("cascade=true");
+    Context ctx = mockContext("api/users", Map.of("id", "58af3a600343927e48e87335"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.deleteUser(ctx);
+    });
+  }
+
+  @Test
+  public void respondsAppropriatelyToNonexistentDeletion() {
+    Context ctx = mockContext("api/users/deletions/{id}", Map.of("id", "nope"));
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getDeletion(ctx);
+    });
+  }
+
 }